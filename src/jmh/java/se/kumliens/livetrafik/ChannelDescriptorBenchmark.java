@@ -0,0 +1,32 @@
+package se.kumliens.livetrafik;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import se.kumliens.livetrafik.SupabaseRealtimeService.ChannelDescriptor;
+
+/**
+ * Channel name parsing, run once per upstream message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class ChannelDescriptorBenchmark {
+
+    @Param({"sl/vehicles/bus", "ul/vehicles", "vehicle-updates-ul-train"})
+    public String channel;
+
+    @Benchmark
+    public ChannelDescriptor from() {
+        return ChannelDescriptor.from(channel);
+    }
+}
@@ -0,0 +1,97 @@
+package se.kumliens.livetrafik;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import se.kumliens.livetrafik.PhoenixEnvelopeReader.PhoenixEnvelope;
+
+/**
+ * Cost of reading Supabase Realtime frames: the streaming envelope reader
+ * against the former {@code readTree} approach, and the whole
+ * {@link SupabaseRealtimeService#handleMessage} path with a no-op broker.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class EnvelopeParsingBenchmark {
+
+    private ObjectMapper mapper;
+    private PhoenixEnvelopeReader reader;
+    private String broadcastFrame;
+    private String heartbeatReply;
+
+    @Setup
+    public void setUp() {
+        mapper = new ObjectMapper();
+        reader = new PhoenixEnvelopeReader(mapper);
+        broadcastFrame = Fixtures.load(Fixtures.UL_BUS_BROADCAST);
+        heartbeatReply = Fixtures.load(Fixtures.HEARTBEAT_REPLY);
+    }
+
+    /** The relay service, built per {@code passthrough} value so only {@link #handleMessage} is run for both. */
+    @State(Scope.Benchmark)
+    public static class Relay {
+
+        @Param({"true", "false"})
+        public boolean passthrough;
+
+        private SupabaseRealtimeService service;
+        private String broadcastFrame;
+
+        @Setup
+        public void setUp() {
+            ObjectMapper mapper = new ObjectMapper();
+            broadcastFrame = Fixtures.load(Fixtures.UL_BUS_BROADCAST);
+            VehicleCacheService cache = new VehicleCacheService(mapper, Duration.ofDays(36500));
+            SimpMessagingTemplate template = new SimpMessagingTemplate((message, timeout) -> true);
+            service = new SupabaseRealtimeService(cache, mapper, template, new SimpleMeterRegistry());
+            service.setPassthroughRelay(passthrough);
+        }
+    }
+
+    @Benchmark
+    public PhoenixEnvelope streamingEnvelopeWithBinding() throws Exception {
+        return reader.read(broadcastFrame, topic -> true);
+    }
+
+    @Benchmark
+    public PhoenixEnvelope streamingEnvelopeSliceOnly() throws Exception {
+        return reader.read(broadcastFrame);
+    }
+
+    @Benchmark
+    public JsonNode treeEnvelope() throws Exception {
+        return mapper.readTree(broadcastFrame);
+    }
+
+    @Benchmark
+    public PhoenixEnvelope streamingHeartbeatReply() throws Exception {
+        return reader.read(heartbeatReply);
+    }
+
+    @Benchmark
+    public JsonNode treeHeartbeatReply() throws Exception {
+        return mapper.readTree(heartbeatReply);
+    }
+
+    @Benchmark
+    public void handleMessage(Relay relay) {
+        relay.service.handleMessage(relay.broadcastFrame);
+    }
+}
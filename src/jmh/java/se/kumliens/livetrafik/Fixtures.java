@@ -0,0 +1,86 @@
+package se.kumliens.livetrafik;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
+
+/**
+ * Benchmark inputs. Frames are loaded from {@code src/jmh/resources/fixtures};
+ * larger fleets are synthesized from the vehicles in the recorded UL bus frame
+ * so every generated vehicle has the same attribute mix as production data.
+ */
+final class Fixtures {
+
+    static final String UL_BUS_BROADCAST = "fixtures/ul-bus-broadcast.json";
+    static final String HEARTBEAT_REPLY = "fixtures/phoenix-heartbeat-reply.json";
+
+    private Fixtures() {
+    }
+
+    static String load(String resource) {
+        try (InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing fixture " + resource);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /** Inner {@code payload.payload} object of the recorded UL bus frame. */
+    static JsonNode recordedPayload(ObjectMapper mapper) {
+        try {
+            return mapper.readTree(load(UL_BUS_BROADCAST)).path("payload").path("payload");
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Builds {@code size} vehicles cycling through the recorded templates, with
+     * unique ids, jittered positions and a fresh {@code updated_at}.
+     */
+    static List<LiveVehicle> fleet(ObjectMapper mapper, int size, long seed) {
+        JsonNode templates = recordedPayload(mapper).path("vehicles");
+        SplittableRandom random = new SplittableRandom(seed);
+        String updatedAt = Instant.now().toString();
+        List<LiveVehicle> vehicles = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ObjectNode vehicle = ((ObjectNode) templates.get(i % templates.size())).deepCopy();
+            vehicle.put("vehicle_id", vehicleId(i));
+            vehicle.put("latitude", vehicle.path("latitude").asDouble() + random.nextDouble(-0.01, 0.01));
+            vehicle.put("longitude", vehicle.path("longitude").asDouble() + random.nextDouble(-0.01, 0.01));
+            vehicle.put("bearing", (double) random.nextInt(360));
+            vehicle.put("updated_at", updatedAt);
+            vehicles.add(mapper.convertValue(vehicle, LiveVehicle.class));
+        }
+        return vehicles;
+    }
+
+    static String vehicleId(int index) {
+        return "9031005" + String.format("%09d", index);
+    }
+
+    static VehicleBroadcastPayload payload(String region, String type, List<LiveVehicle> vehicles, List<String> removed) {
+        VehicleBroadcastPayload payload = new VehicleBroadcastPayload();
+        payload.setRegion(region);
+        payload.setVehicleType(type);
+        payload.setTimestamp(System.currentTimeMillis());
+        payload.setVehicles(vehicles);
+        payload.setRemovedVehicleIds(removed);
+        return payload;
+    }
+}
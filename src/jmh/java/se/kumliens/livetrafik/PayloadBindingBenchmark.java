@@ -0,0 +1,49 @@
+package se.kumliens.livetrafik;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
+
+/**
+ * Binding a recorded vehicle payload into {@link VehicleBroadcastPayload}:
+ * {@code convertValue} from an existing tree versus reading the raw JSON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class PayloadBindingBenchmark {
+
+    private ObjectMapper mapper;
+    private JsonNode payloadTree;
+    private String payloadJson;
+
+    @Setup
+    public void setUp() throws Exception {
+        mapper = new ObjectMapper();
+        payloadTree = Fixtures.recordedPayload(mapper);
+        payloadJson = mapper.writeValueAsString(payloadTree);
+    }
+
+    @Benchmark
+    public VehicleBroadcastPayload convertValueFromTree() {
+        return mapper.convertValue(payloadTree, VehicleBroadcastPayload.class);
+    }
+
+    @Benchmark
+    public VehicleBroadcastPayload readValueFromJson() throws Exception {
+        return mapper.readValue(payloadJson, VehicleBroadcastPayload.class);
+    }
+}
@@ -0,0 +1,91 @@
+package se.kumliens.livetrafik;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.kumliens.livetrafik.VehicleCacheService.CacheMetrics;
+import se.kumliens.livetrafik.model.LiveVehicle;
+import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
+
+/**
+ * {@link VehicleCacheService#applyDelta} and REST snapshot building against a
+ * pre-filled fleet. Each delta updates {@code deltaSize} existing vehicles and
+ * removes and re-adds a few, mirroring what the SL bus feed sends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class VehicleCacheBenchmark {
+
+    private static final int DELTA_RING = 64;
+
+    @Param({"500", "2000", "5000", "20000"})
+    public int fleetSize;
+
+    @Param({"100"})
+    public int deltaSize;
+
+    private VehicleCacheService cache;
+    private List<VehicleBroadcastPayload> deltas;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        ObjectMapper mapper = new ObjectMapper();
+        // TTL far beyond any benchmark run so stale cleanup never evicts the fleet
+        cache = new VehicleCacheService(mapper, Duration.ofDays(36500));
+        List<LiveVehicle> fleet = Fixtures.fleet(mapper, fleetSize, 42L);
+        cache.applyDelta(Fixtures.payload("sl", "bus", fleet, List.of()));
+        cache.applyDelta(Fixtures.payload("sl", "train", Fixtures.fleet(mapper, fleetSize / 10, 7L), List.of()));
+
+        deltas = new ArrayList<>(DELTA_RING);
+        for (int d = 0; d < DELTA_RING; d++) {
+            List<LiveVehicle> updates = new ArrayList<>(deltaSize);
+            for (int i = 0; i < deltaSize; i++) {
+                updates.add(fleet.get((d * deltaSize + i * 7) % fleetSize));
+            }
+            List<String> removed = List.of(
+                updates.get(0).getVehicleId(),
+                fleet.get((d * 31) % fleetSize).getVehicleId());
+            deltas.add(Fixtures.payload("sl", "bus", updates, removed));
+        }
+    }
+
+    private VehicleBroadcastPayload nextDelta() {
+        VehicleBroadcastPayload delta = deltas.get(next);
+        next = (next + 1) % DELTA_RING;
+        return delta;
+    }
+
+    @Benchmark
+    public CacheMetrics applyDelta() {
+        return cache.applyDelta(nextDelta());
+    }
+
+    @Benchmark
+    public RegionSnapshot latestSnapshotUnchanged() {
+        return cache.getLatestVehicles("sl");
+    }
+
+    /** Subtract {@link #applyDelta()} to get the cost of building and encoding a new snapshot. */
+    @Benchmark
+    public byte[] applyDeltaThenLatestSnapshot() {
+        cache.applyDelta(nextDelta());
+        return cache.getLatestVehicles("sl").json();
+    }
+}
@@ -0,0 +1,52 @@
+package se.kumliens.livetrafik;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+
+/**
+ * Transcodes the JSON bodies we already hold (relayed deltas, snapshots) into
+ * CBOR for clients that ask for a binary wire format. The token stream is
+ * copied as is, so the document has exactly the same fields and delta
+ * semantics as the JSON. With string references (RFC 8746 tag 256, on by
+ * default) every repeated key and value such as {@code vehicle_id} or a route
+ * id is sent once per message and referenced by index afterwards.
+ */
+@Component
+public class CborEncoder {
+
+    public static final MimeType CONTENT_TYPE = new MimeType("application", "cbor");
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final CBORFactory cborFactory;
+
+    public CborEncoder(@Value("${wire.cbor.string-refs:true}") boolean stringRefs) {
+        this.cborFactory = CBORFactory.builder()
+            .configure(CBORGenerator.Feature.STRINGREF, stringRefs)
+            .build();
+    }
+
+    public static boolean isCbor(MimeType mimeType) {
+        return mimeType != null && CONTENT_TYPE.isCompatibleWith(mimeType);
+    }
+
+    public byte[] transcode(byte[] json) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, json.length / 2));
+        try (JsonParser parser = jsonFactory.createParser(json);
+                JsonGenerator generator = cborFactory.createGenerator(out)) {
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEvent(parser);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,73 @@
+package se.kumliens.livetrafik;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Bounded, per-region record of which vehicles were upserted or removed at
+ * which cache version. Used to answer {@code ?since=} queries without shipping
+ * the whole fleet. Once entries are evicted, queries older than the eviction
+ * point can no longer be answered and callers fall back to a full snapshot.
+ */
+final class ChangeJournal {
+
+    private final int capacity;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private long floorVersion;
+
+    ChangeJournal(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    synchronized void append(long version, List<LiveVehicle> upserted, List<String> removedIds) {
+        if (upserted.isEmpty() && removedIds.isEmpty()) {
+            return;
+        }
+        if (entries.size() == capacity) {
+            floorVersion = entries.removeFirst().version();
+        }
+        entries.addLast(new Entry(version, List.copyOf(upserted), List.copyOf(removedIds)));
+    }
+
+    /**
+     * Folds every change newer than {@code since} into a single delta, or
+     * returns {@code null} if the journal no longer reaches back that far.
+     */
+    synchronized Changes changesSince(long since) {
+        if (since < floorVersion) {
+            return null;
+        }
+        long version = since;
+        Map<String, LiveVehicle> latest = new LinkedHashMap<>();
+        Iterator<Entry> newestFirst = entries.descendingIterator();
+        Deque<Entry> pending = new ArrayDeque<>();
+        while (newestFirst.hasNext()) {
+            Entry entry = newestFirst.next();
+            if (entry.version() <= since) {
+                break;
+            }
+            pending.addFirst(entry);
+        }
+        for (Entry entry : pending) {
+            // Same remove-first order as applyDelta; a null value marks a removal
+            entry.removedIds().forEach(id -> latest.put(id, null));
+            entry.upserted().forEach(vehicle -> latest.put(vehicle.getVehicleId(), vehicle));
+            version = entry.version();
+        }
+        return new Changes(version, latest);
+    }
+
+    private record Entry(long version, List<LiveVehicle> upserted, List<String> removedIds) { }
+
+    /**
+     * Net effect of the journal since a version: vehicle id to its latest data,
+     * or to {@code null} when the vehicle is gone.
+     */
+    record Changes(long version, Map<String, LiveVehicle> latestById) { }
+}
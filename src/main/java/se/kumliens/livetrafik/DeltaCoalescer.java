@@ -0,0 +1,110 @@
+package se.kumliens.livetrafik;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import se.kumliens.livetrafik.model.IndexedDelta;
+
+/**
+ * Collects vehicle deltas per STOMP topic for a fixed window and emits them as
+ * one frame, merged with the cache's remove-first semantics. The first delta
+ * of a window schedules its flush; a single scheduler thread flushes, so
+ * frames for a topic leave in the order their deltas arrived.
+ */
+@Slf4j
+final class DeltaCoalescer {
+
+    private final ObjectMapper objectMapper;
+    private final long windowMillis;
+    private final BiConsumer<String, byte[]> emitter;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, List<byte[]>> pending = new HashMap<>();
+    private final Counter coalesced;
+    private final DistributionSummary batchSize;
+
+    DeltaCoalescer(ObjectMapper objectMapper, Duration window, BiConsumer<String, byte[]> emitter,
+            MeterRegistry meterRegistry) {
+        this.objectMapper = objectMapper;
+        this.windowMillis = window.toMillis();
+        this.emitter = emitter;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "delta-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.coalesced = Counter.builder("trafik.relay.coalesced")
+            .description("Upstream deltas folded into an earlier delta's frame by the coalescing window")
+            .register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("trafik.relay.coalesce.batch")
+            .description("Upstream deltas per coalesced frame")
+            .register(meterRegistry);
+    }
+
+    void submit(String topic, byte[] payload) {
+        boolean opensWindow;
+        synchronized (pending) {
+            List<byte[]> batch = pending.get(topic);
+            opensWindow = batch == null;
+            if (opensWindow) {
+                batch = new ArrayList<>(4);
+                pending.put(topic, batch);
+            }
+            batch.add(payload);
+        }
+        if (opensWindow) {
+            scheduler.schedule(() -> flush(topic), windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Emits everything still pending and stops the scheduler. */
+    void stop() {
+        scheduler.shutdownNow();
+        List<String> topics;
+        synchronized (pending) {
+            topics = new ArrayList<>(pending.keySet());
+        }
+        topics.forEach(this::flush);
+    }
+
+    private void flush(String topic) {
+        List<byte[]> batch;
+        synchronized (pending) {
+            batch = pending.remove(topic);
+        }
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        batchSize.record(batch.size());
+        if (batch.size() == 1) {
+            emitter.accept(topic, batch.get(0));
+            return;
+        }
+        byte[] merged;
+        try {
+            List<IndexedDelta> deltas = new ArrayList<>(batch.size());
+            for (byte[] payload : batch) {
+                deltas.add(IndexedDelta.parse(objectMapper, payload));
+            }
+            merged = IndexedDelta.merge(objectMapper, deltas);
+        } catch (Exception e) {
+            log.warn("Unable to coalesce {} deltas for {}, relaying them one by one", batch.size(), topic, e);
+            batch.forEach(payload -> emitter.accept(topic, payload));
+            return;
+        }
+        coalesced.increment(batch.size() - 1);
+        emitter.accept(topic, merged);
+    }
+}
@@ -0,0 +1,80 @@
+package se.kumliens.livetrafik;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of ({@code lastUpdated}, handle) pairs in two primitive
+ * arrays, so queueing a vehicle for expiry allocates nothing. Entries are not
+ * removed when a vehicle is updated or removed; the owner skips the ones whose
+ * time no longer matches the table. Not thread-safe; owned by the feed's state
+ * and mutated under its lock.
+ */
+final class ExpiryHeap {
+
+    private long[] times = new long[64];
+    private int[] handles = new int[64];
+    private int size;
+
+    void add(long time, int handle) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            handles = Arrays.copyOf(handles, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (times[parent] <= time) {
+                break;
+            }
+            times[i] = times[parent];
+            handles[i] = handles[parent];
+            i = parent;
+        }
+        times[i] = time;
+        handles[i] = handle;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long peekTime() {
+        return times[0];
+    }
+
+    int peekHandle() {
+        return handles[0];
+    }
+
+    void poll() {
+        if (--size == 0) {
+            return;
+        }
+        long time = times[size];
+        int handle = handles[size];
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && times[child + 1] < times[child]) {
+                child++;
+            }
+            if (time <= times[child]) {
+                break;
+            }
+            times[i] = times[child];
+            handles[i] = handles[child];
+            i = child;
+        }
+        times[i] = time;
+        handles[i] = handle;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
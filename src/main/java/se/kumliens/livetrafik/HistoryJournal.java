@@ -0,0 +1,505 @@
+package se.kumliens.livetrafik;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Append-only record of every change the cache publishes, kept in
+ * memory-mapped segment files under {@code history.journal.path}. Each record
+ * is {@code [length][kind][time]} followed by the change in CBOR with string
+ * references, so repeated ids and attribute names are written once per record.
+ * <p>
+ * Changes are handed to a single writer thread through a bounded queue and
+ * written in batches; the relay thread never waits for the disk, and if the
+ * queue is full the change is dropped and the next segment is started early.
+ * Every segment opens with a checkpoint of all feeds taken from the cache's
+ * published snapshots, so the state at any instant is that checkpoint plus the
+ * segment's changes up to the instant. Segments roll when full or after
+ * {@code history.journal.checkpoint-interval-minutes}, and are deleted once
+ * older than {@code history.journal.retention-hours} or beyond
+ * {@code history.journal.max-bytes}.
+ */
+@Component
+@Slf4j
+public class HistoryJournal implements VehicleChangeListener {
+
+    private static final byte CHANGE = 1;
+    private static final byte CHECKPOINT = 2;
+    /** Length, kind, time. */
+    private static final int RECORD_HEADER = 4 + 1 + 8;
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int MAX_BATCH = 256;
+
+    private final VehicleCacheService vehicleCacheService;
+    private final Path directory;
+    private final int segmentBytes;
+    private final Duration checkpointInterval;
+    private final Duration retention;
+    private final long maxBytes;
+    private final boolean rebuildOnStart;
+    private final BlockingQueue<Pending> queue;
+    private final ObjectMapper cborMapper = new ObjectMapper(CBORFactory.builder()
+        .enable(CBORGenerator.Feature.STRINGREF)
+        .build());
+    private final Counter records;
+    private final Counter dropped;
+    private volatile boolean running;
+    private volatile boolean checkpointDue;
+    private Thread writer;
+
+    // Writer thread only, except the volatile one readers use to stay within what is written
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private volatile Active active = new Active(null, 0);
+
+    @Autowired
+    public HistoryJournal(
+            VehicleCacheService vehicleCacheService,
+            MeterRegistry meterRegistry,
+            @Value("${history.journal.path:}") String path,
+            @Value("${history.journal.segment-bytes:67108864}") int segmentBytes,
+            @Value("${history.journal.checkpoint-interval-minutes:10}") long checkpointIntervalMinutes,
+            @Value("${history.journal.retention-hours:24}") long retentionHours,
+            @Value("${history.journal.max-bytes:1073741824}") long maxBytes,
+            @Value("${history.journal.queue-capacity:4096}") int queueCapacity,
+            @Value("${history.journal.rebuild-on-start:true}") boolean rebuildOnStart) {
+        this(vehicleCacheService, meterRegistry, path.isBlank() ? null : Path.of(path), segmentBytes,
+            Duration.ofMinutes(checkpointIntervalMinutes), Duration.ofHours(retentionHours), maxBytes, queueCapacity,
+            rebuildOnStart);
+    }
+
+    HistoryJournal(VehicleCacheService vehicleCacheService, MeterRegistry meterRegistry, Path directory,
+            int segmentBytes, Duration checkpointInterval, Duration retention, long maxBytes, int queueCapacity,
+            boolean rebuildOnStart) {
+        this.vehicleCacheService = vehicleCacheService;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.checkpointInterval = checkpointInterval;
+        this.retention = retention;
+        this.maxBytes = maxBytes;
+        this.rebuildOnStart = rebuildOnStart;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.records = Counter.builder("trafik.history.records")
+            .description("Changes written to the history journal")
+            .register(meterRegistry);
+        this.dropped = Counter.builder("trafik.history.dropped")
+            .description("Changes dropped because the history journal writer fell behind")
+            .register(meterRegistry);
+        Gauge.builder("trafik.history.queue", queue, BlockingQueue::size)
+            .description("Changes waiting for the history journal writer")
+            .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Seeds feeds the cache has no vehicles for (for instance without a
+     * mapped store) from the newest journalled state, then starts journalling.
+     */
+    @PostConstruct
+    void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to create history journal directory " + directory, ex);
+        }
+        List<Path> existing = segments();
+        if (!existing.isEmpty()) {
+            // Segments of earlier runs are complete
+            active = new Active(existing.get(existing.size() - 1), Integer.MAX_VALUE);
+            segmentStart = startOf(existing.get(existing.size() - 1));
+        }
+        if (rebuildOnStart) {
+            stateAt(System.currentTimeMillis()).ifPresent(feeds -> {
+                long now = System.currentTimeMillis();
+                int restored = 0;
+                for (Feed feed : feeds) {
+                    restored += vehicleCacheService.restore(feed.region(), feed.vehicleType(),
+                        feed.upserted().stream().map(vehicle -> new RestoredVehicle(feed.region(), feed.vehicleType(),
+                            vehicle, vehicle.getUpdatedAtMillis() > 0L ? vehicle.getUpdatedAtMillis() : now)).toList());
+                }
+                log.info("Rebuilt {} vehicles from history journal {}", restored, directory);
+            });
+        }
+        running = true;
+        writer = new Thread(this::runWriter, "history-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        vehicleCacheService.addChangeListener(this);
+        log.info("History journal writing to {}", directory);
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        if (writer != null) {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    @Override
+    public void onChange(VehicleSnapshot snapshot, List<LiveVehicle> upserted, List<String> removedIds,
+            Map<String, String> departedRoutes) {
+        if (!running || (upserted.isEmpty() && removedIds.isEmpty())) {
+            return;
+        }
+        Feed change = new Feed(snapshot.region(), snapshot.vehicleType(), snapshot.version(), List.copyOf(upserted),
+            List.copyOf(removedIds));
+        if (!queue.offer(new Pending(System.currentTimeMillis(), change))) {
+            dropped.increment();
+            checkpointDue = true;
+        }
+    }
+
+    /**
+     * Reconstructs every feed as it was at {@code at}: the checkpoint opening
+     * the newest segment started at or before {@code at}, plus that segment's
+     * changes up to {@code at}. Changes still queued when the following segment
+     * was started are written there, after its checkpoint and with their own
+     * earlier times, so they are taken from it too. A segment still being
+     * opened has no readable checkpoint yet, and the one before it is used
+     * instead. Empty if the journal does not reach back that far.
+     */
+    public Optional<List<Feed>> stateAt(long at) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        List<Path> files = segments();
+        int covering = -1;
+        for (int i = 0; i < files.size() && startOf(files.get(i)) <= at; i++) {
+            covering = i;
+        }
+        for (; covering >= 0; covering--) {
+            Optional<List<Feed>> state = stateAt(at, files.get(covering),
+                covering + 1 < files.size() ? files.get(covering + 1) : null);
+            if (state.isPresent()) {
+                return state;
+            }
+        }
+        return Optional.empty();
+    }
+
+    private Optional<List<Feed>> stateAt(long at, Path covering, Path next) {
+        Reconstruction reconstruction = new Reconstruction();
+        read(covering, (kind, time, body) -> {
+            if (time > at) {
+                return false;
+            }
+            if (kind == CHECKPOINT) {
+                reconstruction.checkpoint(cborMapper.readValue(body, Feed[].class));
+            } else if (kind == CHANGE) {
+                reconstruction.change(cborMapper.readValue(body, Feed.class));
+            }
+            return true;
+        });
+        if (!reconstruction.checkpointed) {
+            return Optional.empty();
+        }
+        if (next != null) {
+            read(next, (kind, time, body) -> {
+                if (kind == CHECKPOINT) {
+                    return true;
+                }
+                if (time > at) {
+                    return false;
+                }
+                if (kind == CHANGE) {
+                    reconstruction.change(cborMapper.readValue(body, Feed.class));
+                }
+                return true;
+            });
+        }
+        return Optional.of(reconstruction.state());
+    }
+
+    /**
+     * Hands every journalled change (not checkpoints) made between
+     * {@code from} and {@code to}, inclusive, to {@code consumer} in the order
+     * it was written, with the time it was published. Used to replay real
+     * traffic in load tests.
+     */
+    public static void replay(Path directory, long from, long to, Consumer<TimedFeed> consumer) {
+        ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+        for (Path file : segments(directory)) {
+            boolean last = startOf(file) > to;
+            read(file, Integer.MAX_VALUE, (kind, time, body) -> {
+                if (time > to) {
+                    // Changes queued when the segment rolled follow its checkpoint with earlier times
+                    return kind == CHECKPOINT;
+                }
+                if (kind == CHANGE && time >= from) {
+                    consumer.accept(new TimedFeed(time, mapper.readValue(body, Feed.class)));
+                }
+                return true;
+            });
+            if (last) {
+                break;
+            }
+        }
+    }
+
+    private void runWriter() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            // Checkpoint what the cache starts with, so history is answerable before the first change
+            roll();
+            while (running || !queue.isEmpty()) {
+                Pending first = queue.poll(250, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Pending pending : batch) {
+                    append(CHANGE, pending.time(), cborMapper.writeValueAsBytes(pending.change()));
+                    records.increment();
+                }
+                active = new Active(active.file(), segment.position());
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            log.error("History journal writer stopped", ex);
+        } finally {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+    }
+
+    private void append(byte kind, long time, byte[] body) throws IOException {
+        int length = RECORD_HEADER + body.length;
+        if (segment == null || checkpointDue || segment.remaining() < length
+                || time - segmentStart >= checkpointInterval.toMillis()) {
+            roll();
+        }
+        if (segment.remaining() < length) {
+            log.warn("Dropping {} byte history record larger than a segment", length);
+            dropped.increment();
+            return;
+        }
+        write(kind, time, body);
+    }
+
+    /**
+     * Starts a new segment with a checkpoint of every feed and applies
+     * retention. The checkpoint is stamped with the time it is taken, since it
+     * already holds changes still queued; those are written after it with their
+     * own, earlier, times and skipped by version when the state is rebuilt.
+     */
+    private void roll() throws IOException {
+        checkpointDue = false;
+        long time = System.currentTimeMillis();
+        if (segment != null) {
+            segment.force();
+        }
+        long start = Math.max(time, segmentStart + 1);
+        Path file = directory.resolve(SEGMENT_PREFIX + String.format("%013d", start) + SEGMENT_SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        segmentStart = start;
+
+        List<Feed> feeds = new ArrayList<>();
+        for (VehicleSnapshot snapshot : vehicleCacheService.snapshots()) {
+            feeds.add(new Feed(snapshot.region(), snapshot.vehicleType(), snapshot.version(), snapshot.vehicles(),
+                List.of()));
+        }
+        byte[] checkpoint = cborMapper.writeValueAsBytes(feeds);
+        if (RECORD_HEADER + checkpoint.length > segment.remaining()) {
+            throw new IOException("Checkpoint of " + checkpoint.length + " bytes does not fit a "
+                + segmentBytes + " byte segment");
+        }
+        write(CHECKPOINT, start, checkpoint);
+        active = new Active(file, segment.position());
+        applyRetention(time);
+    }
+
+    /** Writes the length last, so a reader never sees a record that is only partly written. */
+    private void write(byte kind, long time, byte[] body) {
+        int offset = segment.position();
+        segment.put(offset + 4, kind);
+        segment.putLong(offset + 5, time);
+        segment.put(offset + RECORD_HEADER, body);
+        segment.putInt(offset, body.length);
+        segment.position(offset + RECORD_HEADER + body.length);
+    }
+
+    private void applyRetention(long now) throws IOException {
+        List<Path> files = segments();
+        long cutoff = now - retention.toMillis();
+        long total = (long) files.size() * segmentBytes;
+        // The newest segment is the one being written and always stays
+        for (int i = 0; i < files.size() - 1; i++) {
+            boolean expired = startOf(files.get(i + 1)) <= cutoff;
+            if (!expired && total <= maxBytes) {
+                break;
+            }
+            Files.deleteIfExists(files.get(i));
+            total -= segmentBytes;
+        }
+    }
+
+    private List<Path> segments() {
+        return segments(directory);
+    }
+
+    private static List<Path> segments(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to list history journal " + directory, ex);
+        }
+    }
+
+    private static long startOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void read(Path file, RecordVisitor visitor) {
+        Active current = active;
+        if (file.equals(current.file())) {
+            read(file, current.limit(), visitor);
+        } else if (current.file() != null && startOf(file) < startOf(current.file())) {
+            read(file, Integer.MAX_VALUE, visitor);
+        }
+        // Otherwise the segment is still being opened and has nothing readable yet
+    }
+
+    private static void read(Path file, int limit, RecordVisitor visitor) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = Math.min(limit, buffer.capacity());
+            int offset = 0;
+            while (offset + RECORD_HEADER <= end) {
+                int length = buffer.getInt(offset);
+                if (length <= 0 || offset + RECORD_HEADER + length > end) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                buffer.get(offset + RECORD_HEADER, body);
+                if (!visitor.visit(buffer.get(offset + 4), buffer.getLong(offset + 5), body)) {
+                    break;
+                }
+                offset += RECORD_HEADER + length;
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to read history segment " + file, ex);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor {
+        boolean visit(byte kind, long time, byte[] body) throws IOException;
+    }
+
+    private record Pending(long time, Feed change) { }
+
+    /**
+     * The segment being written and how far it may be read, published together
+     * once its checkpoint is in; {@code file} is {@code null} before the first.
+     */
+    private record Active(Path file, int limit) { }
+
+    /** Feeds rebuilt from a checkpoint and the changes that follow it. */
+    private static final class Reconstruction {
+
+        private final Map<String, Map<String, LiveVehicle>> vehiclesByFeed = new LinkedHashMap<>();
+        private final Map<String, Long> versions = new HashMap<>();
+        private final Map<String, Feed> feeds = new LinkedHashMap<>();
+        private boolean checkpointed;
+
+        void checkpoint(Feed[] checkpoint) {
+            for (Feed feed : checkpoint) {
+                String key = feed.region() + "/" + feed.vehicleType();
+                Map<String, LiveVehicle> vehicles = new LinkedHashMap<>();
+                feed.upserted().forEach(vehicle -> vehicles.put(vehicle.getVehicleId(), vehicle));
+                vehiclesByFeed.put(key, vehicles);
+                versions.put(key, feed.version());
+                feeds.put(key, feed);
+            }
+            checkpointed = true;
+        }
+
+        void change(Feed change) {
+            String key = change.region() + "/" + change.vehicleType();
+            // Already contained in the checkpoint, which may have been taken after the change was queued
+            if (change.version() <= versions.getOrDefault(key, 0L)) {
+                return;
+            }
+            Map<String, LiveVehicle> vehicles = vehiclesByFeed.computeIfAbsent(key, k -> new LinkedHashMap<>());
+            change.removed().forEach(vehicles::remove);
+            change.upserted().forEach(vehicle -> vehicles.put(vehicle.getVehicleId(), vehicle));
+            versions.put(key, change.version());
+            feeds.putIfAbsent(key, change);
+        }
+
+        List<Feed> state() {
+            List<Feed> state = new ArrayList<>(vehiclesByFeed.size());
+            vehiclesByFeed.forEach((key, vehicles) -> {
+                Feed feed = feeds.get(key);
+                state.add(new Feed(feed.region(), feed.vehicleType(), versions.get(key),
+                    List.copyOf(vehicles.values()), List.of()));
+            });
+            return state;
+        }
+    }
+
+    /**
+     * One feed's change at a cache version, or, in a checkpoint or
+     * reconstructed state, all its vehicles at that version.
+     */
+    public record Feed(String region, String vehicleType, long version, List<LiveVehicle> upserted,
+            List<String> removed) { }
+
+    /** A journalled change with the time it was published. */
+    public record TimedFeed(long time, Feed change) { }
+}
@@ -0,0 +1,244 @@
+package se.kumliens.livetrafik;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Memory-mapped copy of the cached fleet, so a restarted server comes up with
+ * the vehicles it had instead of an empty map. The file is a header holding a
+ * string table of feed names followed by fixed-width slots, one per vehicle:
+ * the record length, the feed's index in the string table, the vehicle's
+ * {@code lastUpdated} and the vehicle itself in CBOR. Writes are plain stores
+ * into the mapping and survive a process restart without any fsync on the
+ * relay path; the length is written last, so a record torn by a crash reads as
+ * a free slot. Vehicles that do not fit a slot are not stored.
+ */
+@Slf4j
+final class MappedVehicleStore {
+
+    static final int NO_SLOT = -1;
+
+    private static final int MAGIC = 0x4C565331; // "LVS1"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 4096;
+    private static final int FEED_TABLE_OFFSET = 20;
+    /** Record length, feed index, lastUpdated. */
+    private static final int RECORD_HEADER = 4 + 2 + 8;
+
+    private final Path path;
+    private final int slotCount;
+    private final int slotBytes;
+    private final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+    private final List<String> feeds = new ArrayList<>();
+    private final Counter skipped;
+    private int[] freeSlots;
+    private int freeCount;
+    private int feedTableEnd = FEED_TABLE_OFFSET;
+    private MappedByteBuffer buffer;
+
+    MappedVehicleStore(Path path, int slotCount, int slotBytes, MeterRegistry meterRegistry) {
+        if (slotCount <= 0 || slotBytes <= RECORD_HEADER
+                || HEADER_BYTES + (long) slotCount * slotBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid cache store layout: " + slotCount + " x " + slotBytes + " bytes");
+        }
+        this.path = path;
+        this.slotCount = slotCount;
+        this.slotBytes = slotBytes;
+        this.skipped = Counter.builder("trafik.cache.store.skipped")
+            .description("Vehicle writes the mapped cache store had no slot or not enough room for")
+            .register(meterRegistry);
+        Gauge.builder("trafik.cache.store.used", this, store -> store.usedSlots())
+            .description("Slots in use in the mapped cache store")
+            .register(meterRegistry);
+    }
+
+    Path path() {
+        return path;
+    }
+
+    /**
+     * Maps the file, creating or resetting it if it does not match the
+     * configured layout, and returns the vehicles it holds that were updated
+     * at or after {@code notBefore}. The store is empty afterwards; the caller
+     * re-adds what it keeps through {@link #write}.
+     */
+    synchronized List<RestoredVehicle> open(long notBefore) {
+        List<RestoredVehicle> restored = new ArrayList<>();
+        try {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            long size = HEADER_BYTES + (long) slotCount * slotBytes;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                boolean matches = channel.size() == size;
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (matches && buffer.getInt(0) == MAGIC && buffer.getInt(4) == FORMAT_VERSION
+                        && buffer.getInt(8) == slotCount
+                        && buffer.getInt(12) == slotBytes) {
+                    readFeeds();
+                    readRecords(notBefore, restored);
+                } else if (channel.size() > 0) {
+                    log.warn("Cache store {} has another layout; starting empty", path);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to open cache store " + path, ex);
+        }
+        reset();
+        return restored;
+    }
+
+    /**
+     * Returns the feed's index in the string table, adding it if needed, or
+     * {@code -1} once the header has no room for another name.
+     */
+    synchronized int feed(String region, String vehicleType) {
+        String name = region + "/" + vehicleType;
+        int index = feeds.indexOf(name);
+        if (index >= 0) {
+            return index;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (feedTableEnd + 2 + bytes.length > HEADER_BYTES || feeds.size() == Short.MAX_VALUE) {
+            log.warn("Cache store {} has no room for feed {}", path, name);
+            return -1;
+        }
+        buffer.putShort(feedTableEnd, (short) bytes.length);
+        buffer.put(feedTableEnd + 2, bytes);
+        feedTableEnd += 2 + bytes.length;
+        feeds.add(name);
+        buffer.putInt(16, feeds.size());
+        return feeds.size() - 1;
+    }
+
+    /**
+     * Stores the vehicle in {@code slot}, or in a newly allocated slot when
+     * {@code slot} is {@link #NO_SLOT}, and returns the slot now holding it.
+     * Returns {@link #NO_SLOT}, freeing {@code slot}, if the vehicle cannot be
+     * stored.
+     */
+    int write(int slot, int feed, LiveVehicle vehicle, long lastUpdated) {
+        byte[] body;
+        try {
+            body = cborMapper.writeValueAsBytes(vehicle);
+        } catch (IOException ex) {
+            body = null;
+        }
+        if (body == null || body.length > slotBytes - RECORD_HEADER) {
+            free(slot);
+            skipped.increment();
+            return NO_SLOT;
+        }
+        if (slot == NO_SLOT && (slot = allocate()) == NO_SLOT) {
+            skipped.increment();
+            return NO_SLOT;
+        }
+        int offset = offset(slot);
+        buffer.putInt(offset, 0);
+        buffer.putShort(offset + 4, (short) feed);
+        buffer.putLong(offset + 6, lastUpdated);
+        buffer.put(offset + RECORD_HEADER, body);
+        buffer.putInt(offset, body.length);
+        return slot;
+    }
+
+    synchronized void free(int slot) {
+        if (slot == NO_SLOT) {
+            return;
+        }
+        buffer.putInt(offset(slot), 0);
+        freeSlots[freeCount++] = slot;
+    }
+
+    /** Flushes the mapping to disk; a restart does not need it, a power cut does. */
+    synchronized void force() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    synchronized int usedSlots() {
+        return buffer == null ? 0 : slotCount - freeCount;
+    }
+
+    private synchronized int allocate() {
+        return freeCount == 0 ? NO_SLOT : freeSlots[--freeCount];
+    }
+
+    private int offset(int slot) {
+        return HEADER_BYTES + slot * slotBytes;
+    }
+
+    private void readFeeds() {
+        int count = buffer.getInt(16);
+        int position = FEED_TABLE_OFFSET;
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[buffer.getShort(position)];
+            buffer.get(position + 2, bytes);
+            feeds.add(new String(bytes, StandardCharsets.UTF_8));
+            position += 2 + bytes.length;
+        }
+    }
+
+    private void readRecords(long notBefore, List<RestoredVehicle> restored) {
+        for (int slot = 0; slot < slotCount; slot++) {
+            int offset = offset(slot);
+            int length = buffer.getInt(offset);
+            int feed = buffer.getShort(offset + 4);
+            long lastUpdated = buffer.getLong(offset + 6);
+            if (length <= 0 || length > slotBytes - RECORD_HEADER || feed < 0 || feed >= feeds.size()
+                    || lastUpdated < notBefore) {
+                continue;
+            }
+            byte[] body = new byte[length];
+            buffer.get(offset + RECORD_HEADER, body);
+            try {
+                String[] name = feeds.get(feed).split("/", 2);
+                restored.add(new RestoredVehicle(name[0], name[1], cborMapper.readValue(body, LiveVehicle.class),
+                    lastUpdated));
+            } catch (IOException ex) {
+                log.debug("Skipping unreadable record in slot {} of {}", slot, path, ex);
+            }
+        }
+    }
+
+    /** Clears every slot and rewrites the header, keeping the feed table. */
+    private void reset() {
+        for (int slot = 0; slot < slotCount; slot++) {
+            buffer.putInt(offset(slot), 0);
+        }
+        freeSlots = new int[slotCount];
+        freeCount = slotCount;
+        for (int i = 0; i < slotCount; i++) {
+            freeSlots[i] = slotCount - 1 - i;
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putInt(8, slotCount);
+        buffer.putInt(12, slotBytes);
+        List<String> kept = List.copyOf(feeds);
+        feeds.clear();
+        feedTableEnd = FEED_TABLE_OFFSET;
+        buffer.putInt(16, 0);
+        kept.forEach(name -> {
+            String[] parts = name.split("/", 2);
+            feed(parts[0], parts[1]);
+        });
+    }
+}
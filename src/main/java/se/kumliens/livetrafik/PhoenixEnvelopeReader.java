@@ -0,0 +1,164 @@
+package se.kumliens.livetrafik;
+
+import java.io.IOException;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
+
+/**
+ * Streams the Phoenix envelope of a Supabase Realtime frame without building a
+ * tree. Frames that are neither broadcasts nor replies are abandoned as soon as
+ * their {@code event} is known; vehicle broadcasts have the bounds of the inner
+ * payload recorded so it can be relayed verbatim, and are bound straight into a
+ * {@link VehicleBroadcastPayload} when the caller needs one for the cache.
+ */
+final class PhoenixEnvelopeReader {
+
+    private static final String BROADCAST = "broadcast";
+    private static final String PHX_REPLY = "phx_reply";
+    private static final String VEHICLES = "vehicles";
+
+    private final ObjectMapper objectMapper;
+    private final ObjectReader payloadReader;
+
+    PhoenixEnvelopeReader(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        this.payloadReader = objectMapper.readerFor(VehicleBroadcastPayload.class);
+    }
+
+    PhoenixEnvelope read(String frame) throws IOException {
+        return read(frame, topic -> false);
+    }
+
+    /**
+     * Reads the envelope fields of a text frame. The inner vehicle payload is
+     * bound during the same pass when {@code bindPayload} accepts the topic;
+     * this requires {@code topic} to precede {@code payload}, as Phoenix sends it.
+     */
+    PhoenixEnvelope read(String frame, Predicate<String> bindPayload) throws IOException {
+        Cursor cursor = new Cursor();
+        try (JsonParser parser = objectMapper.createParser(frame)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return cursor.toEnvelope();
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "topic" -> cursor.topic = parser.getValueAsString();
+                    case "event" -> {
+                        cursor.event = parser.getValueAsString();
+                        if (!BROADCAST.equals(cursor.event) && !PHX_REPLY.equals(cursor.event)) {
+                            // Heartbeats, presence and system frames: nothing else to read
+                            return cursor.toEnvelope();
+                        }
+                    }
+                    case "payload" -> {
+                        if (value == JsonToken.START_OBJECT && !cursor.isOtherEvent()) {
+                            readPayload(parser, cursor, bindPayload);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        return cursor.toEnvelope();
+    }
+
+    private void readPayload(JsonParser parser, Cursor cursor, Predicate<String> bindPayload) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "event" -> cursor.broadcastEvent = parser.getValueAsString();
+                case "status" -> cursor.status = parser.getValueAsString();
+                case "payload" -> {
+                    if (value == JsonToken.START_OBJECT && cursor.mayBeVehicleBroadcast()) {
+                        cursor.payloadStart = (int) parser.currentTokenLocation().getCharOffset();
+                        if (cursor.topic != null && bindPayload.test(cursor.topic)) {
+                            cursor.vehiclePayload = payloadReader.readValue(parser);
+                        } else {
+                            readInnerPayload(parser, cursor);
+                        }
+                        cursor.payloadEnd = (int) parser.currentTokenLocation().getCharOffset() + 1;
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+    }
+
+    private void readInnerPayload(JsonParser parser, Cursor cursor) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("timestamp".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                cursor.timestamp = parser.getLongValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static final class Cursor {
+        private String topic;
+        private String event;
+        private String broadcastEvent;
+        private String status;
+        private int payloadStart = -1;
+        private int payloadEnd = -1;
+        private long timestamp;
+        private VehicleBroadcastPayload vehiclePayload;
+
+        private boolean isOtherEvent() {
+            return event != null && !BROADCAST.equals(event) && !PHX_REPLY.equals(event);
+        }
+
+        private boolean mayBeVehicleBroadcast() {
+            return (event == null || BROADCAST.equals(event))
+                && (broadcastEvent == null || VEHICLES.equals(broadcastEvent));
+        }
+
+        private PhoenixEnvelope toEnvelope() {
+            if (vehiclePayload != null && vehiclePayload.getTimestamp() != null) {
+                timestamp = vehiclePayload.getTimestamp();
+            }
+            return new PhoenixEnvelope(topic, event, broadcastEvent, status,
+                payloadStart, payloadEnd, timestamp, vehiclePayload);
+        }
+    }
+
+    /**
+     * Envelope fields of a single frame. {@code payloadStart}/{@code payloadEnd}
+     * are char offsets into the original frame, or {@code -1} when the frame
+     * carried no broadcast payload object. {@code vehiclePayload} is only set
+     * when binding was requested for the topic.
+     */
+    record PhoenixEnvelope(
+        String topic,
+        String event,
+        String broadcastEvent,
+        String status,
+        int payloadStart,
+        int payloadEnd,
+        long timestamp,
+        VehicleBroadcastPayload vehiclePayload
+    ) {
+        boolean isVehicleBroadcast() {
+            return BROADCAST.equals(event) && VEHICLES.equals(broadcastEvent) && payloadStart >= 0;
+        }
+
+        String payload(String frame) {
+            return frame.substring(payloadStart, payloadEnd);
+        }
+    }
+}
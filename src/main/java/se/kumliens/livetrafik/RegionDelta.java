@@ -0,0 +1,23 @@
+package se.kumliens.livetrafik;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Response body for {@code /api/latest/{region}?since=}. Uses the same field
+ * names and remove-first semantics as the STOMP delta payloads. When the change
+ * journal no longer reaches back to {@code since}, {@code full} is set and
+ * {@code vehicles} holds the complete fleet instead.
+ */
+public record RegionDelta(
+    @JsonProperty("vehicles") List<LiveVehicle> vehicles,
+    @JsonProperty("removed_vehicle_ids") List<String> removedVehicleIds,
+    @JsonProperty("region") String region,
+    @JsonProperty("since") long since,
+    @JsonProperty("version") long version,
+    @JsonProperty("full") boolean full,
+    @JsonProperty("timestamp") long timestamp
+) { }
@@ -0,0 +1,19 @@
+package se.kumliens.livetrafik;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Response body for {@code /api/history/{region}?at=}: the bus and train
+ * vehicles the region held at {@code at}, reconstructed from the history
+ * journal, with the newest vehicle update among them as {@code timestamp}.
+ */
+public record RegionHistory(
+    @JsonProperty("vehicles") List<LiveVehicle> vehicles,
+    @JsonProperty("region") String region,
+    @JsonProperty("at") long at,
+    @JsonProperty("timestamp") long timestamp
+) { }
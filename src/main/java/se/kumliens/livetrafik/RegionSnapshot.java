@@ -0,0 +1,92 @@
+package se.kumliens.livetrafik;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Immutable, combined bus and train view of a region as served by
+ * {@code /api/latest/{region}}. {@code json} holds the complete pre-encoded
+ * response body and is shared by every request for the same version; the
+ * gzip and CBOR encoded copies are built on first demand and shared the same
+ * way.
+ */
+public final class RegionSnapshot {
+
+    private final String region;
+    private final long version;
+    private final List<LiveVehicle> vehicles;
+    private final long timestamp;
+    private final byte[] json;
+    private volatile byte[] gzipJson;
+    private volatile byte[] cbor;
+
+    RegionSnapshot(String region, long version, List<LiveVehicle> vehicles, long timestamp, byte[] json) {
+        this.region = region;
+        this.version = version;
+        this.vehicles = vehicles;
+        this.timestamp = timestamp;
+        this.json = json;
+    }
+
+    public String region() {
+        return region;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public List<LiveVehicle> vehicles() {
+        return vehicles;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public byte[] json() {
+        return json;
+    }
+
+    /**
+     * Returns {@link #json()} gzip-compressed. Concurrent first callers may
+     * compress twice, but every later request for this version reuses the bytes.
+     */
+    public byte[] gzipJson() {
+        byte[] compressed = gzipJson;
+        if (compressed == null) {
+            compressed = gzip(json);
+            gzipJson = compressed;
+        }
+        return compressed;
+    }
+
+    /** Returns {@link #json()} transcoded to CBOR, memoised like {@link #gzipJson()}. */
+    public byte[] cbor(CborEncoder encoder) {
+        byte[] encoded = cbor;
+        if (encoded == null) {
+            try {
+                encoded = encoder.transcode(json);
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Failed to encode snapshot as CBOR", ex);
+            }
+            cbor = encoded;
+        }
+        return encoded;
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 6));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192)) {
+            gzip.write(data);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to gzip snapshot", ex);
+        }
+        return out.toByteArray();
+    }
+}
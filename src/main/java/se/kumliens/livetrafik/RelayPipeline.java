@@ -0,0 +1,176 @@
+package se.kumliens.livetrafik;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Staged relay for one upstream connection: ingest → parse → merge → fan-out,
+ * each stage on its own thread and linked to the next by a bounded
+ * {@link SpscRingBuffer}. The socket's read thread only ingests, so a slow
+ * stage no longer stalls reading; stages overlap across messages while every
+ * message still passes merge before fan-out, keeping the cache ahead of what
+ * subscribers have been sent.
+ * <p>
+ * When the ingest buffer is full the {@link Overflow} policy applies: either
+ * the read thread waits (backpressure reaches the upstream socket) or the
+ * message is dropped before it touches the cache. Buffers between later
+ * stages always wait, since dropping after the merge would leave clients
+ * behind the cache.
+ */
+@Slf4j
+final class RelayPipeline<P, M> {
+
+    enum Overflow {
+        BLOCK, DROP;
+
+        static Overflow parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Overflow overflow;
+    private final Stage<String> parseStage;
+    private final Stage<P> mergeStage;
+    private final Stage<M> fanoutStage;
+    private final Counter dropped;
+    private volatile boolean running = true;
+
+    RelayPipeline(String shard, int capacity, Overflow overflow, Function<String, P> parse, Function<P, M> merge,
+            Consumer<M> dispatch, MeterRegistry meterRegistry) {
+        this.overflow = overflow;
+        this.fanoutStage = new Stage<>(shard, "fanout", capacity, dispatch, meterRegistry);
+        this.mergeStage = new Stage<>(shard, "merge", capacity, parsed -> {
+            M outbound = merge.apply(parsed);
+            if (outbound != null) {
+                fanoutStage.offer(outbound, true);
+            }
+        }, meterRegistry);
+        this.parseStage = new Stage<>(shard, "parse", capacity, message -> {
+            P parsed = parse.apply(message);
+            if (parsed != null) {
+                mergeStage.offer(parsed, true);
+            }
+        }, meterRegistry);
+        this.dropped = Counter.builder("trafik.relay.pipeline.dropped")
+            .description("Upstream messages dropped because the relay pipeline's ingest buffer was full")
+            .tag("shard", shard)
+            .register(meterRegistry);
+        List.of(fanoutStage, mergeStage, parseStage).forEach(Stage::start);
+    }
+
+    /**
+     * Hands a message from the socket's read thread to the pipeline. Returns
+     * {@code false} if it was dropped.
+     */
+    boolean submit(String message) {
+        if (parseStage.offer(message, overflow == Overflow.BLOCK)) {
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    void stop() {
+        running = false;
+        List.of(parseStage, mergeStage, fanoutStage).forEach(Stage::wake);
+    }
+
+    private final class Stage<I> {
+
+        private final String name;
+        private final SpscRingBuffer<I> buffer;
+        private final Consumer<I> handler;
+        private final Timer latency;
+        private final Counter blocked;
+        private final Thread thread;
+        private volatile boolean waiting;
+
+        private Stage(String shard, String name, int capacity, Consumer<I> handler, MeterRegistry meterRegistry) {
+            this.name = name;
+            this.buffer = new SpscRingBuffer<>(capacity);
+            this.handler = handler;
+            this.latency = Timer.builder("trafik.relay.stage.latency")
+                .description("Time a relay pipeline stage spends on one upstream message")
+                .tag("shard", shard)
+                .tag("stage", name)
+                .publishPercentileHistogram(true)
+                .publishPercentiles(0.5, 0.9, 0.95, 0.99)
+                .minimumExpectedValue(Duration.ofNanos(10_000))
+                .maximumExpectedValue(Duration.ofMillis(500))
+                .register(meterRegistry);
+            this.blocked = Counter.builder("trafik.relay.stage.blocked")
+                .description("Times a producer waited because a relay stage's buffer was full")
+                .tag("shard", shard)
+                .tag("stage", name)
+                .register(meterRegistry);
+            Gauge.builder("trafik.relay.stage.depth", buffer, SpscRingBuffer::size)
+                .description("Messages waiting in front of a relay pipeline stage")
+                .tag("shard", shard)
+                .tag("stage", name)
+                .register(meterRegistry);
+            this.thread = new Thread(this::run, "relay-" + shard + "-" + name);
+            this.thread.setDaemon(true);
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        /** Called by the stage's single producer. */
+        private boolean offer(I item, boolean block) {
+            boolean counted = false;
+            while (!buffer.offer(item)) {
+                if (!block || !running) {
+                    return false;
+                }
+                if (!counted) {
+                    blocked.increment();
+                    counted = true;
+                }
+                LockSupport.parkNanos(BACKOFF_NANOS);
+            }
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+
+        private void wake() {
+            LockSupport.unpark(thread);
+        }
+
+        private void run() {
+            while (running) {
+                I item = buffer.poll();
+                if (item == null) {
+                    waiting = true;
+                    if (running && buffer.isEmpty()) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    handler.accept(item);
+                } catch (RuntimeException ex) {
+                    log.error("Relay stage {} failed", name, ex);
+                }
+                latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package se.kumliens.livetrafik;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/** A vehicle read back from disk on startup, with the feed it belongs to and when it was last updated. */
+record RestoredVehicle(String region, String vehicleType, LiveVehicle vehicle, long lastUpdated) { }
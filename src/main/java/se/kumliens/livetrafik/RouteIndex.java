@@ -0,0 +1,55 @@
+package se.kumliens.livetrafik;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Vehicle ids of one feed keyed by route, so route queries and per-route
+ * deltas never scan the whole feed. Not thread-safe; owned by the feed's state
+ * and mutated under its lock.
+ */
+final class RouteIndex {
+
+    private final Map<String, Set<String>> idsByRoute = new HashMap<>();
+
+    void add(LiveVehicle vehicle) {
+        String route = vehicle.routeKey();
+        if (route != null) {
+            idsByRoute.computeIfAbsent(route, r -> new HashSet<>()).add(vehicle.getVehicleId());
+        }
+    }
+
+    void remove(LiveVehicle vehicle) {
+        String route = vehicle.routeKey();
+        if (route == null) {
+            return;
+        }
+        Set<String> ids = idsByRoute.get(route);
+        if (ids != null && ids.remove(vehicle.getVehicleId()) && ids.isEmpty()) {
+            idsByRoute.remove(route);
+        }
+    }
+
+    /** Returns {@code true} if the vehicle moved off the route {@code previous} was listed under. */
+    boolean move(LiveVehicle previous, LiveVehicle current) {
+        if (previous == null) {
+            add(current);
+            return false;
+        }
+        if (Objects.equals(previous.routeKey(), current.routeKey())) {
+            return false;
+        }
+        remove(previous);
+        add(current);
+        return previous.routeKey() != null;
+    }
+
+    Set<String> idsOn(String route) {
+        return idsByRoute.getOrDefault(route, Set.of());
+    }
+}
@@ -0,0 +1,20 @@
+package se.kumliens.livetrafik;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Response body for {@code /api/latest/{region}/route/{routeId}}: the bus and
+ * train vehicles currently on one route, with the region's cache version so it
+ * can be combined with {@code ?since=} deltas and route topic messages.
+ */
+public record RouteVehicles(
+    @JsonProperty("vehicles") List<LiveVehicle> vehicles,
+    @JsonProperty("region") String region,
+    @JsonProperty("route") String route,
+    @JsonProperty("version") long version,
+    @JsonProperty("timestamp") long timestamp
+) { }
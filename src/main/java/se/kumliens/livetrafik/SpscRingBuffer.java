@@ -0,0 +1,63 @@
+package se.kumliens.livetrafik;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded ring buffer for exactly one producer thread and one consumer
+ * thread. No locks: the producer publishes a slot by advancing {@code tail},
+ * the consumer frees it by advancing {@code head}. Capacity is rounded up to a
+ * power of two.
+ */
+final class SpscRingBuffer<E> {
+
+    private final Object[] slots;
+    private final int mask;
+    /** Next slot to read; written by the consumer only. */
+    private final AtomicLong head = new AtomicLong();
+    /** Next slot to write; written by the producer only. */
+    private final AtomicLong tail = new AtomicLong();
+
+    SpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /** Producer side. Returns {@code false} if the buffer is full. */
+    boolean offer(E element) {
+        long t = tail.get();
+        if (t - head.get() == slots.length) {
+            return false;
+        }
+        slots[(int) (t & mask)] = element;
+        // A full volatile write, so a consumer that is about to park either sees it or gets unparked
+        tail.set(t + 1);
+        return true;
+    }
+
+    /** Consumer side. Returns {@code null} if the buffer is empty. */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int index = (int) (h & mask);
+        E element = (E) slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+}
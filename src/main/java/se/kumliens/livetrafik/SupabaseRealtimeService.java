@@ -1,11 +1,14 @@
 package se.kumliens.livetrafik;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -14,19 +17,27 @@ import java.util.concurrent.atomic.AtomicLong;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.handshake.ServerHandshake;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.stereotype.Service;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import se.kumliens.livetrafik.PhoenixEnvelopeReader.PhoenixEnvelope;
 import se.kumliens.livetrafik.VehicleCacheService.CacheMetrics;
+import se.kumliens.livetrafik.model.LiveVehicle;
 import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
 
 /**
@@ -46,6 +57,9 @@ public class SupabaseRealtimeService {
     private final Timer stompDispatchTimer;
     private final Counter stompDispatchCounter;
     private final Counter supabasePayloadCounter;
+    private final DistributionSummary relayBytes;
+    private final Counter unchangedVehicles;
+    private final PhoenixEnvelopeReader envelopeReader;
     
     @Value("${supabase.url}")
     private String supabaseWsUrl;
@@ -61,12 +75,37 @@ public class SupabaseRealtimeService {
     
     @Value("${supabase.vehicle-types:bus,train}")
     private String vehicleTypesProperty;
+
+    @Value("${relay.passthrough:true}")
+    private boolean passthroughRelay;
+
+    @Value("${relay.coalesce-window-ms:0}")
+    private long coalesceWindowMillis;
+
+    @Value("${relay.field-diff:false}")
+    private boolean fieldDiff;
     
-    private WebSocketClient wsClient;
-    private ScheduledExecutorService heartbeatExecutor;
+    @Value("${supabase.connections:1}")
+    private int connectionCount;
+
+    @Value("${relay.pipeline.capacity:1024}")
+    private int pipelineCapacity;
+
+    @Value("${relay.pipeline.overflow:block}")
+    private String pipelineOverflow;
+
+    /** Heartbeats and reconnects for all upstream connections. */
+    private final ScheduledExecutorService upstreamScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "supabase-upstream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile List<UpstreamShard> shards = List.of();
+    private volatile boolean stopped;
+    private DeltaCoalescer deltaCoalescer;
     private final AtomicInteger messageRef = new AtomicInteger(1);
     private final AtomicLong relayedMessages = new AtomicLong();
-    private volatile boolean supabaseConnected;
+    private boolean expiryRelayRegistered;
     private List<String> channelNames = List.of();
     private List<String> activeRegions = List.of("ul", "sl");
     private List<String> vehicleTypes = List.of("bus", "train");
@@ -96,164 +135,227 @@ public class SupabaseRealtimeService {
             .register(meterRegistry);
         this.stompDispatchCounter = meterRegistry.counter("trafik.stomp.messages.sent");
         this.supabasePayloadCounter = meterRegistry.counter("trafik.supabase.payloads.received");
+        this.relayBytes = DistributionSummary.builder("trafik.relay.bytes")
+            .description("Payload bytes relayed to STOMP verbatim, skipping the parse and re-serialization round trip")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        this.unchangedVehicles = Counter.builder("trafik.relay.diff.unchanged")
+            .description("Upstream vehicles left out of field-level deltas because nothing but updated_at changed")
+            .register(meterRegistry);
+        this.envelopeReader = new PhoenixEnvelopeReader(objectMapper);
     }
 
     /**
-     * Establishes the WebSocket connection to Supabase Realtime and subscribes to
-     * all configured region/type channels.
+     * Establishes the WebSocket connections to Supabase Realtime and subscribes
+     * to all configured region/type channels. With {@code supabase.connections}
+     * above one the channels are spread round-robin over that many
+     * connections; each has its own read thread and {@link RelayPipeline}, so
+     * one channel's messages are handled in order while different shards use
+     * different cores.
      */
     @PostConstruct
     public void connect() {
-        String fullUrl = supabaseWsUrl + "?apikey=" + supabaseAnonKey + "&vsn=1.0.0";
         this.activeRegions = resolveList(regionsProperty, List.of("ul", "sl"));
         this.vehicleTypes = resolveList(vehicleTypesProperty, List.of("bus", "train"));
         this.channelNames = resolveChannelNames();
-        
-        try {
-            wsClient = new WebSocketClient(new URI(fullUrl)) {
-                @Override
-                public void onOpen(ServerHandshake handshake) {
-                    log.info("Connected to Supabase Realtime");
-                    supabaseConnected = true;
-                    joinChannels();
-                    startHeartbeat();
-                }
-
-                @Override
-                public void onMessage(String message) {
-                    handleMessage(message);
-                }
-
-                @Override
-                public void onClose(int code, String reason, boolean remote) {
-                    log.warn("WebSocket closed: {} - {}. Reconnecting...", code, reason);
-                    supabaseConnected = false;
-                    scheduleReconnect();
-                }
-
-                @Override
-                public void onError(Exception ex) {
-                    log.error("WebSocket error", ex);
-                    supabaseConnected = false;
-                }
-            };
-            
-            wsClient.connect();
-            
-        } catch (Exception e) {
-            log.error("Failed to create WebSocket client", e);
-            scheduleReconnect();
+        if (fieldDiff && !expiryRelayRegistered) {
+            // Expired vehicles are not reported by any delta, so clients would otherwise keep them
+            vehicleCacheService.addExpiryListener((snapshot, upserted, removedIds, departedRoutes) ->
+                dispatch(new Outbound("/topic/" + snapshot.region() + "/vehicles/" + snapshot.vehicleType(), null,
+                    fieldDiff(snapshot.region(), snapshot.vehicleType(), snapshot.latestTimestamp(), List.of(),
+                        removedIds))));
+            expiryRelayRegistered = true;
+            if (coalesceWindowMillis > 0) {
+                log.warn("relay.coalesce-window-ms is ignored for typed feeds when relay.field-diff is enabled");
+            }
+        }
+        if (deltaCoalescer == null && coalesceWindowMillis > 0) {
+            deltaCoalescer = new DeltaCoalescer(objectMapper, Duration.ofMillis(coalesceWindowMillis),
+                this::publish, meterRegistry);
+            log.info("Coalescing vehicle deltas per channel over {} ms", coalesceWindowMillis);
         }
-    }
-    
-    private void joinChannels() {
-        channelNames.forEach(channel -> {
-            String joinMessage = String.format("""
-                {
-                    "topic": "realtime:%s",
-                    "event": "phx_join",
-                    "payload": {
-                        "config": {
-                            "broadcast": {
-                                "self": false
-                            }
-                        }
-                    },
-                    "ref": "%d"
-                }
-                """, channel, messageRef.getAndIncrement());
-
-            wsClient.send(joinMessage);
-            log.info("Sent join request for channel: {}", channel);
-        });
 
-        log.info("Supabase Realtime: subscribing to {} channels", channelNames.size());
+        int shardCount = Math.max(1, Math.min(connectionCount, channelNames.size()));
+        List<List<String>> channelsByShard = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            channelsByShard.add(new ArrayList<>());
+        }
+        for (int i = 0; i < channelNames.size(); i++) {
+            channelsByShard.get(i % shardCount).add(channelNames.get(i));
+        }
+        List<UpstreamShard> created = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            created.add(new UpstreamShard(i, List.copyOf(channelsByShard.get(i))));
+        }
+        shards = List.copyOf(created);
+        log.info("Supabase Realtime: {} channels over {} connection(s)", channelNames.size(), shardCount);
+        shards.forEach(UpstreamShard::connect);
     }
-    
-    private void startHeartbeat() {
-        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
-        heartbeatExecutor.scheduleAtFixedRate(() -> {
-            if (wsClient != null && wsClient.isOpen()) {
-                String heartbeat = String.format("""
-                    {
-                        "topic": "phoenix",
-                        "event": "heartbeat",
-                        "payload": {},
-                        "ref": "%d"
-                    }
-                    """, messageRef.getAndIncrement());
-                wsClient.send(heartbeat);
-                log.trace("Sent heartbeat");
-            }
-        }, 30, 30, TimeUnit.SECONDS);
+
+    /** Parses, merges and dispatches one upstream message on the calling thread. */
+    void handleMessage(String message) {
+        Ingested ingested = parse(message);
+        Outbound outbound = ingested == null ? null : merge(ingested);
+        if (outbound != null) {
+            dispatch(outbound);
+        }
     }
-    
-    private void handleMessage(String message) {
+
+    /**
+     * Parse stage: reads the Phoenix envelope and, for vehicle broadcasts, the
+     * channel, the inner payload and, for typed feeds, the bound delta.
+     * Returns {@code null} for anything that is not relayed.
+     */
+    private Ingested parse(String message) {
         try {
-            JsonNode root = objectMapper.readTree(message);
-            String event = root.path("event").asText();
-            String topic = root.path("topic").asText();
-
-            if ("broadcast".equals(event)) {
-                JsonNode payload = root.path("payload");
-                String broadcastEvent = payload.path("event").asText();
-
-                if ("vehicles".equals(broadcastEvent)) {
-                    JsonNode vehiclePayload = payload.path("payload");
-                    supabasePayloadCounter.increment(); // Count all incoming payloads
-                    recordSupabaseLatency(vehiclePayload); // Measure as early as possible
-                    handleVehiclePayload(topic, vehiclePayload);
-                }
-            } else if ("phx_reply".equals(event)) {
-                String status = root.path("payload").path("status").asText();
-                log.debug("Channel join status: {} ({})", status, topic);
+            PhoenixEnvelope envelope = envelopeReader.read(message, this::isTypedTopic);
+
+            if (envelope.isVehicleBroadcast()) {
+                supabasePayloadCounter.increment(); // Count all incoming payloads
+                recordSupabaseLatency(envelope.timestamp()); // Measure as early as possible
+                return ingest(envelope, message);
+            } else if ("phx_reply".equals(envelope.event())) {
+                log.debug("Channel join status: {} ({})", envelope.status(), envelope.topic());
             }
 
         } catch (Exception e) {
             log.error("Error parsing message: {}", message, e);
         }
+        return null;
+    }
+
+    private Ingested ingest(PhoenixEnvelope envelope, String message) throws IOException {
+        String channel = extractChannel(envelope.topic());
+        if (channel == null) {
+            log.warn("Unable to extract channel from topic {}", envelope.topic());
+            return null;
+        }
+
+        String rawPayload = envelope.payload(message);
+        ChannelDescriptor descriptor = ChannelDescriptor.from(channel);
+        VehicleBroadcastPayload dto = null;
+        // Combined region feeds skip the cache to avoid duplicate legacy broadcasts
+        if (descriptor.type() != null) {
+            dto = envelope.vehiclePayload() != null
+                ? envelope.vehiclePayload()
+                : objectMapper.readValue(rawPayload, VehicleBroadcastPayload.class);
+        }
+        return new Ingested("/topic/" + channel, descriptor, rawPayload, dto);
     }
 
     /**
-     * Maps an incoming Supabase channel payload to the equivalent STOMP topic
-     * and updates the cache for typed feeds.
+     * Merge stage: updates the cache for typed feeds and decides what to
+     * publish. The cache is updated before the payload is published, so a
+     * subscriber's snapshot already holds every delta published before it
+     * subscribed. With {@code relay.field-diff} typed feeds publish each
+     * vehicle reduced to the attributes that changed, plus the vehicles
+     * removed; vehicles where only {@code updated_at} changed are left out, and
+     * nothing is published if no vehicle changed.
      */
-    private void handleVehiclePayload(String topic, JsonNode vehiclePayload) {
-        String channel = extractChannel(topic);
-        if (channel == null) {
-            log.warn("Unable to extract channel from topic {}", topic);
-            return;
+    private Outbound merge(Ingested ingested) {
+        VehicleBroadcastPayload dto = ingested.dto();
+        if (dto == null || !fieldDiff) {
+            if (dto != null) {
+                updateCache(dto, ingested.descriptor(), null, null);
+            }
+            // Broadcast upstream payload to clients regardless of vehicles/removed entries
+            return new Outbound(ingested.stompTopic(), ingested.rawPayload(), null);
         }
+        List<LiveVehicle> changes = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        updateCache(dto, ingested.descriptor(), changes, removed);
+        unchangedVehicles.increment(Math.max(0, dto.getVehicles().size() - changes.size()));
+        if (changes.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
+        long timestamp = dto.getTimestamp() != null ? dto.getTimestamp() : System.currentTimeMillis();
+        return new Outbound(ingested.stompTopic(), null,
+            fieldDiff(dto.getRegion(), dto.getVehicleType(), timestamp, changes, removed));
+    }
 
-        // Broadcast upstream payload to clients regardless of vehicles/removed entries
-        String stompTopic = "/topic/" + channel;
+    /**
+     * Fan-out stage: publishes to the STOMP topic. In passthrough mode the
+     * inner payload is published exactly as received; otherwise it is parsed
+     * into a tree and re-serialized by the message converter. With a
+     * coalescing window the payload is handed to the {@link DeltaCoalescer}
+     * instead.
+     */
+    private void dispatch(Outbound outbound) {
+        String stompTopic = outbound.stompTopic();
+        try {
+            if (outbound.diff() != null) {
+                publish(stompTopic, objectMapper.writeValueAsBytes(outbound.diff()),
+                    VehicleBroadcastPayload.FIELD_DIFF_CONTENT_TYPE);
+            } else if (deltaCoalescer != null) {
+                deltaCoalescer.submit(stompTopic, outbound.rawPayload().getBytes(StandardCharsets.UTF_8));
+            } else if (passthroughRelay) {
+                publish(stompTopic, outbound.rawPayload().getBytes(StandardCharsets.UTF_8));
+            } else {
+                long dispatchStart = System.nanoTime();
+                messagingTemplate.convertAndSend(stompTopic, objectMapper.readTree(outbound.rawPayload()));
+                recordDispatch(stompTopic, dispatchStart);
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Failed to publish payload to {}", stompTopic, ex);
+        }
+    }
+
+    private static VehicleBroadcastPayload fieldDiff(String region, String vehicleType, long timestamp,
+            List<LiveVehicle> changes, List<String> removed) {
+        VehicleBroadcastPayload diff = new VehicleBroadcastPayload();
+        diff.setVehicles(changes);
+        diff.setRemovedVehicleIds(removed);
+        diff.setRegion(region);
+        diff.setVehicleType(vehicleType);
+        diff.setTimestamp(timestamp);
+        return diff;
+    }
+
+    private void publish(String stompTopic, byte[] body) {
+        publish(stompTopic, body, MimeTypeUtils.APPLICATION_JSON);
+    }
+
+    private void publish(String stompTopic, byte[] body, MimeType contentType) {
         long dispatchStart = System.nanoTime();
-        messagingTemplate.convertAndSend(stompTopic, vehiclePayload);
+        messagingTemplate.send(stompTopic, jsonMessage(body, contentType));
+        relayBytes.record(body.length);
+        recordDispatch(stompTopic, dispatchStart);
+    }
+
+    private void recordDispatch(String stompTopic, long dispatchStart) {
         stompDispatchTimer.record(Duration.ofNanos(System.nanoTime() - dispatchStart));
         stompDispatchCounter.increment();
         log.debug("Forwarded payload to {}", stompTopic);
         relayedMessages.incrementAndGet();
+    }
 
-        ChannelDescriptor descriptor = ChannelDescriptor.from(channel);
-        if (descriptor.type() == null) {
-            // Combined region feed – no cache update to avoid duplicate legacy broadcasts
-            return;
-        }
+    private boolean isTypedTopic(String topic) {
+        String channel = extractChannel(topic);
+        return channel != null && ChannelDescriptor.from(channel).type() != null;
+    }
+
+    private static Message<byte[]> jsonMessage(byte[] body, MimeType contentType) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setContentType(contentType);
+        accessor.setLeaveMutable(true);
+        return MessageBuilder.createMessage(body, accessor.getMessageHeaders());
+    }
 
-        VehicleBroadcastPayload dto = objectMapper.convertValue(vehiclePayload, VehicleBroadcastPayload.class);
+    private void updateCache(VehicleBroadcastPayload dto, ChannelDescriptor descriptor, List<LiveVehicle> changes,
+            List<String> removed) {
         dto.backfillRegionAndType(descriptor.region(), descriptor.type());
 
-        CacheMetrics metrics = vehicleCacheService.applyDelta(dto);
-        log.debug("[STOMP] vehicles update: region={} type={} received={} removed={} cacheSize={}",
+        CacheMetrics metrics = vehicleCacheService.applyDelta(dto, changes, removed);
+        log.debug("[STOMP] vehicles update: region={} type={} received={} removed={} cacheSize={} freshnessMs={}",
             dto.getRegion(),
             dto.getVehicleType(),
             dto.getVehicles().size(),
             dto.getRemovedVehicleIds().size(),
-            metrics.cacheSize());
+            metrics.cacheSize(),
+            metrics.latestTimestamp() > 0L ? System.currentTimeMillis() - metrics.latestTimestamp() : -1L);
     }
 
-    private void recordSupabaseLatency(JsonNode vehiclePayload) {
-        long timestamp = vehiclePayload.path("timestamp").asLong(0L);
+    private void recordSupabaseLatency(long timestamp) {
         if (timestamp <= 0L) {
             return;
         }
@@ -263,13 +365,6 @@ public class SupabaseRealtimeService {
         }
     }
     
-    private void scheduleReconnect() {
-        Executors.newSingleThreadScheduledExecutor().schedule(() -> {
-            log.info("Attempting to reconnect...");
-            connect();
-        }, 5, TimeUnit.SECONDS);
-    }
-
     private List<String> resolveChannelNames() {
         List<String> explicitChannels = resolveList(channelNamesProperty, List.of());
         if (!explicitChannels.isEmpty()) {
@@ -303,7 +398,13 @@ public class SupabaseRealtimeService {
         return topic.startsWith("realtime:") ? topic.substring("realtime:".length()) : topic;
     }
 
-    private record ChannelDescriptor(String region, String type) {
+    private record Ingested(String stompTopic, ChannelDescriptor descriptor, String rawPayload,
+            VehicleBroadcastPayload dto) { }
+
+    /** What to publish: the upstream payload as is, or a field-level delta when {@code diff} is set. */
+    private record Outbound(String stompTopic, String rawPayload, VehicleBroadcastPayload diff) { }
+
+    record ChannelDescriptor(String region, String type) {
         static ChannelDescriptor from(String channel) {
             if (channel == null || channel.isBlank()) {
                 return new ChannelDescriptor("ul", "bus");
@@ -327,11 +428,11 @@ public class SupabaseRealtimeService {
     
     @PreDestroy
     public void disconnect() {
-        if (heartbeatExecutor != null) {
-            heartbeatExecutor.shutdown();
-        }
-        if (wsClient != null) {
-            wsClient.close();
+        stopped = true;
+        upstreamScheduler.shutdownNow();
+        shards.forEach(UpstreamShard::close);
+        if (deltaCoalescer != null) {
+            deltaCoalescer.stop();
         }
     }
 
@@ -340,6 +441,141 @@ public class SupabaseRealtimeService {
     }
 
     public boolean isSupabaseConnected() {
-        return supabaseConnected && wsClient != null && wsClient.isOpen();
+        List<UpstreamShard> current = shards;
+        return !current.isEmpty() && current.stream().allMatch(UpstreamShard::isConnected);
+    }
+
+    /** Overrides {@code relay.passthrough} for instances built without Spring, such as benchmarks. */
+    void setPassthroughRelay(boolean passthroughRelay) {
+        this.passthroughRelay = passthroughRelay;
+    }
+
+    /**
+     * One upstream connection and the channels joined on it. Messages are
+     * handed from the client's read thread to the shard's {@link RelayPipeline},
+     * so the socket keeps being drained while deltas are parsed, merged and
+     * dispatched.
+     */
+    private final class UpstreamShard {
+
+        private final int index;
+        private final List<String> channels;
+        private final RelayPipeline<Ingested, Outbound> pipeline;
+        private volatile WebSocketClient client;
+        private volatile boolean connected;
+
+        private UpstreamShard(int index, List<String> channels) {
+            this.index = index;
+            this.channels = channels;
+            this.pipeline = new RelayPipeline<>(Integer.toString(index), pipelineCapacity,
+                RelayPipeline.Overflow.parse(pipelineOverflow), SupabaseRealtimeService.this::parse,
+                SupabaseRealtimeService.this::merge, SupabaseRealtimeService.this::dispatch, meterRegistry);
+            upstreamScheduler.scheduleAtFixedRate(this::sendHeartbeat, 30, 30, TimeUnit.SECONDS);
+        }
+
+        private void connect() {
+            if (stopped) {
+                return;
+            }
+            String fullUrl = supabaseWsUrl + "?apikey=" + supabaseAnonKey + "&vsn=1.0.0";
+            try {
+                client = new WebSocketClient(new URI(fullUrl)) {
+                    @Override
+                    public void onOpen(ServerHandshake handshake) {
+                        log.info("Connected to Supabase Realtime (shard {})", index);
+                        connected = true;
+                        joinChannels(this);
+                    }
+
+                    @Override
+                    public void onMessage(String message) {
+                        pipeline.submit(message);
+                    }
+
+                    @Override
+                    public void onClose(int code, String reason, boolean remote) {
+                        log.warn("WebSocket closed (shard {}): {} - {}. Reconnecting...", index, code, reason);
+                        connected = false;
+                        scheduleReconnect();
+                    }
+
+                    @Override
+                    public void onError(Exception ex) {
+                        log.error("WebSocket error (shard {})", index, ex);
+                        connected = false;
+                    }
+                };
+                client.connect();
+            } catch (Exception e) {
+                log.error("Failed to create WebSocket client (shard {})", index, e);
+                scheduleReconnect();
+            }
+        }
+
+        private void joinChannels(WebSocketClient target) {
+            channels.forEach(channel -> {
+                String joinMessage = String.format("""
+                    {
+                        "topic": "realtime:%s",
+                        "event": "phx_join",
+                        "payload": {
+                            "config": {
+                                "broadcast": {
+                                    "self": false
+                                }
+                            }
+                        },
+                        "ref": "%d"
+                    }
+                    """, channel, messageRef.getAndIncrement());
+
+                target.send(joinMessage);
+                log.info("Sent join request for channel: {} (shard {})", channel, index);
+            });
+        }
+
+        private void sendHeartbeat() {
+            WebSocketClient current = client;
+            if (current != null && current.isOpen()) {
+                String heartbeat = String.format("""
+                    {
+                        "topic": "phoenix",
+                        "event": "heartbeat",
+                        "payload": {},
+                        "ref": "%d"
+                    }
+                    """, messageRef.getAndIncrement());
+                current.send(heartbeat);
+                log.trace("Sent heartbeat (shard {})", index);
+            }
+        }
+
+        private void scheduleReconnect() {
+            if (stopped) {
+                return;
+            }
+            try {
+                upstreamScheduler.schedule(() -> {
+                    log.info("Attempting to reconnect shard {}...", index);
+                    connect();
+                }, 5, TimeUnit.SECONDS);
+            } catch (RejectedExecutionException ex) {
+                log.debug("Not reconnecting shard {} during shutdown", index);
+            }
+        }
+
+        private boolean isConnected() {
+            WebSocketClient current = client;
+            return connected && current != null && current.isOpen();
+        }
+
+        private void close() {
+            WebSocketClient current = client;
+            if (current != null) {
+                current.close();
+            }
+            pipeline.stop();
+        }
     }
 }
+
@@ -1,50 +1,251 @@
 package se.kumliens.livetrafik;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import se.kumliens.livetrafik.model.BoundingBox;
+import se.kumliens.livetrafik.model.LiveVehicle;
 import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
 
 /**
  * Maintains per-region, per-vehicle-type caches using remove-first delta merge
- * semantics and provides combined snapshots for REST clients.
+ * semantics and provides combined snapshots for REST clients. Every applied
+ * delta publishes an immutable, versioned {@link VehicleSnapshot}; readers never
+ * touch the live maps.
  */
 @Service
 @Slf4j
 public class VehicleCacheService {
 
+    private static final byte[] VEHICLES_PREFIX = "{\"vehicles\":[".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REGION_FIELD = "],\"region\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIMESTAMP_FIELD = ",\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VERSION_FIELD = ",\"version\":".getBytes(StandardCharsets.US_ASCII);
+
     private final ObjectMapper objectMapper;
     private final Duration staleTtl;
     private final Map<CacheKey, VehicleState> stateByKey = new ConcurrentHashMap<>();
+    private final Map<String, RegionSnapshot> regionSnapshots = new ConcurrentHashMap<>();
+    private final Map<String, ChangeJournal> journals = new ConcurrentHashMap<>();
+    /**
+     * Versions issued by this process are all greater than this: the start
+     * time in microseconds, so a version (and ETag, and {@code since} cursor)
+     * from before a restart never names different content after it. Stays
+     * below 2^53, so JavaScript clients read it exactly.
+     */
+    private final long epochVersion = System.currentTimeMillis() * 1000L;
+    private final AtomicLong versionSequence = new AtomicLong(epochVersion);
+    private final List<VehicleChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<VehicleChangeListener> expiryListeners = new CopyOnWriteArrayList<>();
+    private final int journalSize;
+    private final MeterRegistry meterRegistry;
+    private final Duration sweepInterval;
+    private final MappedVehicleStore store;
+    private ScheduledExecutorService sweeper;
 
     @Autowired
     public VehicleCacheService(
             ObjectMapper objectMapper,
-            @Value("${vehicles.cache.ttl-minutes:5}") long cacheTtlMinutes) {
-        this(objectMapper, Duration.ofMinutes(cacheTtlMinutes));
+            MeterRegistry meterRegistry,
+            @Value("${vehicles.cache.ttl-minutes:5}") long cacheTtlMinutes,
+            @Value("${vehicles.cache.journal-size:256}") int journalSize,
+            @Value("${vehicles.cache.sweep-interval-seconds:15}") long sweepIntervalSeconds,
+            @Value("${vehicles.cache.store.path:}") String storePath,
+            @Value("${vehicles.cache.store.slots:65536}") int storeSlots,
+            @Value("${vehicles.cache.store.slot-bytes:512}") int storeSlotBytes) {
+        this(objectMapper, meterRegistry, Duration.ofMinutes(cacheTtlMinutes), journalSize,
+            Duration.ofSeconds(sweepIntervalSeconds), storePath.isBlank() ? null
+                : new MappedVehicleStore(Path.of(storePath), storeSlots, storeSlotBytes, meterRegistry));
+    }
+
+    public VehicleCacheService(
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            long cacheTtlMinutes,
+            int journalSize,
+            long sweepIntervalSeconds) {
+        this(objectMapper, meterRegistry, cacheTtlMinutes, journalSize, sweepIntervalSeconds, "", 0, 0);
     }
 
     VehicleCacheService(ObjectMapper objectMapper, Duration staleTtl) {
+        this(objectMapper, staleTtl, 256);
+    }
+
+    VehicleCacheService(ObjectMapper objectMapper, Duration staleTtl, int journalSize) {
+        this(objectMapper, new SimpleMeterRegistry(), staleTtl, journalSize, Duration.ZERO);
+    }
+
+    VehicleCacheService(
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            Duration staleTtl,
+            int journalSize,
+            Duration sweepInterval) {
+        this(objectMapper, meterRegistry, staleTtl, journalSize, sweepInterval, null);
+    }
+
+    VehicleCacheService(
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            Duration staleTtl,
+            int journalSize,
+            Duration sweepInterval,
+            MappedVehicleStore store) {
         this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
         this.staleTtl = staleTtl;
+        this.journalSize = journalSize;
+        this.sweepInterval = sweepInterval;
+        this.store = store;
+    }
+
+    @PostConstruct
+    void start() {
+        restoreFromStore();
+        startSweeper();
+    }
+
+    @PreDestroy
+    void stop() {
+        if (sweeper != null) {
+            sweeper.shutdown();
+        }
+        if (store != null) {
+            store.force();
+        }
+    }
+
+    /**
+     * Reloads the vehicles the mapped store held when the previous process
+     * stopped and publishes them as each feed's first version. Runs before any
+     * listener registers or delta arrives.
+     */
+    private void restoreFromStore() {
+        if (store == null) {
+            return;
+        }
+        List<RestoredVehicle> restored = store.open(System.currentTimeMillis() - staleTtl.toMillis());
+        Map<CacheKey, List<RestoredVehicle>> byFeed = new HashMap<>();
+        restored.forEach(vehicle -> byFeed.computeIfAbsent(CacheKey.of(vehicle.region(), vehicle.vehicleType()),
+            unused -> new ArrayList<>()).add(vehicle));
+        byFeed.forEach((key, vehicles) -> restore(key.region(), key.vehicleType(), vehicles));
+        log.info("Restored {} vehicles in {} feeds from {}", restored.size(), byFeed.size(), store.path());
+    }
+
+    /**
+     * Seeds an empty feed with vehicles read back from disk, dropping those
+     * older than the TTL, and publishes them as one version. Feeds that
+     * already hold vehicles are left alone. Returns the number restored.
+     */
+    int restore(String region, String vehicleType, List<RestoredVehicle> vehicles) {
+        CacheKey key = CacheKey.of(sanitize(region), sanitize(vehicleType));
+        if (key.region() == null || key.vehicleType() == null) {
+            return 0;
+        }
+        long notBefore = System.currentTimeMillis() - staleTtl.toMillis();
+        VehicleState state = stateByKey.computeIfAbsent(key, unused -> newState(key.region(), key.vehicleType()));
+        synchronized (state) {
+            if (state.size() > 0) {
+                return 0;
+            }
+            List<LiveVehicle> upserted = new ArrayList<>(vehicles.size());
+            for (RestoredVehicle restored : vehicles) {
+                if (restored.lastUpdated() >= notBefore) {
+                    state.upsert(List.of(restored.vehicle()), restored.lastUpdated(), upserted, null);
+                }
+            }
+            if (!upserted.isEmpty()) {
+                commit(state, upserted, List.of());
+            }
+            return upserted.size();
+        }
+    }
+
+    /**
+     * Starts the background sweeper that expires stale vehicles in feeds that
+     * have stopped receiving deltas. Active feeds are also cleaned inline.
+     */
+    private void startSweeper() {
+        if (sweepInterval.isZero() || sweepInterval.isNegative()) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vehicle-cache-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long intervalMillis = sweepInterval.toMillis();
+        sweeper.scheduleAtFixedRate(this::sweepExpired, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("Vehicle cache sweeper scheduled every {}s", sweepInterval.toSeconds());
     }
 
     /**
-     * Applies a delta payload using remove-first semantics.
+     * Expires stale vehicles across all feeds. Only entries that are actually
+     * due are touched, courtesy of each state's expiry index.
+     */
+    void sweepExpired() {
+        try {
+            long now = System.currentTimeMillis();
+            stateByKey.values().forEach(state -> {
+                synchronized (state) {
+                    List<String> removedIds = new ArrayList<>();
+                    if (state.cleanup(now, staleTtl, removedIds) > 0) {
+                        commit(state, List.of(), removedIds);
+                        notify(expiryListeners, state.published(), List.of(), removedIds, Map.of());
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            log.error("Vehicle cache sweep failed", ex);
+        }
+    }
+
+    /**
+     * Applies a delta payload using remove-first semantics and publishes a new
+     * immutable snapshot of the affected (region, type) cache.
      */
     public CacheMetrics applyDelta(VehicleBroadcastPayload payload) {
+        return applyDelta(payload, null, null);
+    }
+
+    /**
+     * Applies a delta like {@link #applyDelta(VehicleBroadcastPayload)} and
+     * collects what it changed for field-level relaying: {@code changes} gets
+     * each upserted vehicle reduced to the attributes that differ from the
+     * cached version (see {@link LiveVehicle#changesSince}), leaving out
+     * vehicles where nothing but {@code updated_at} changed, and
+     * {@code removed} gets every vehicle this call removed, including expired
+     * ones.
+     */
+    public CacheMetrics applyDelta(VehicleBroadcastPayload payload, List<LiveVehicle> changes, List<String> removed) {
         String region = sanitize(payload.getRegion());
         String vehicleType = sanitize(payload.getVehicleType());
 
@@ -54,63 +255,258 @@ public class VehicleCacheService {
         }
 
         CacheKey key = CacheKey.of(region, vehicleType);
-        VehicleState state = stateByKey.computeIfAbsent(key, unused -> new VehicleState());
+        VehicleState state = stateByKey.computeIfAbsent(key, unused -> newState(region, vehicleType));
 
         payload.backfillRegionAndType(region, vehicleType);
 
         long now = System.currentTimeMillis();
-        int removed = state.removeAll(payload.getRemovedVehicleIds());
-        int updated = state.upsert(payload.getVehicles(), now);
-        int cleaned = state.cleanup(now, staleTtl);
+        List<String> removedIds = new ArrayList<>();
+        List<LiveVehicle> upserted = new ArrayList<>(payload.getVehicles().size());
+        synchronized (state) {
+            int removedCount = state.removeAll(payload.getRemovedVehicleIds(), removedIds);
+            int updated = state.upsert(payload.getVehicles(), now, upserted, changes);
+            int cleaned = state.cleanup(now, staleTtl, removedIds);
+            if (removed != null) {
+                removed.addAll(removedIds);
+            }
+
+            if (removedCount + updated + cleaned > 0) {
+                commit(state, upserted, removedIds);
+            }
+
+            return new CacheMetrics(region, vehicleType, removedCount, updated, cleaned, state.size(),
+                state.published().version(), state.latestTimestamp());
+        }
+    }
+
+    private VehicleState newState(String region, String vehicleType) {
+        ChangeJournal journal = journals.computeIfAbsent(region, unused -> new ChangeJournal(journalSize));
+        Counter evictions = Counter.builder("trafik.cache.evictions")
+            .description("Vehicles expired from the cache by stale cleanup")
+            .tag("region", region)
+            .tag("type", vehicleType)
+            .register(meterRegistry);
+        return new VehicleState(region, vehicleType, journal, evictions, store);
+    }
+
+    /**
+     * Publishes the state under a new version and journals the change. Versions
+     * are allocated under the region journal's lock so journal order always
+     * matches version order.
+     */
+    private void commit(VehicleState state, List<LiveVehicle> upserted, List<String> removedIds) {
+        ChangeJournal journal = state.journal();
+        synchronized (journal) {
+            long version = versionSequence.incrementAndGet();
+            state.publish(version);
+            journal.append(version, upserted, removedIds);
+        }
+        notify(listeners, state.published(), upserted, removedIds, state.drainDepartedRoutes());
+    }
+
+    private static void notify(List<VehicleChangeListener> listeners, VehicleSnapshot snapshot,
+            List<LiveVehicle> upserted, List<String> removedIds, Map<String, String> departedRoutes) {
+        for (VehicleChangeListener listener : listeners) {
+            try {
+                listener.onChange(snapshot, upserted, removedIds, departedRoutes);
+            } catch (RuntimeException ex) {
+                log.warn("Vehicle change listener failed", ex);
+            }
+        }
+    }
+
+    public void addChangeListener(VehicleChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Registers a listener for vehicles expired by the background sweeper
+     * only, i.e. removals that no {@link #applyDelta} call reports.
+     */
+    public void addExpiryListener(VehicleChangeListener listener) {
+        expiryListeners.add(listener);
+    }
+
+    /**
+     * Runs {@code action} with the feed's current snapshot and the vehicles
+     * inside {@code box}, found through the feed's grid index. The action runs
+     * with the feed locked, so no change is published while it runs.
+     */
+    public void withVehiclesWithin(String region, String vehicleType, BoundingBox box,
+            BiConsumer<VehicleSnapshot, List<LiveVehicle>> action) {
+        VehicleState state = stateByKey.get(CacheKey.of(sanitize(region), sanitize(vehicleType)));
+        if (state == null) {
+            action.accept(VehicleSnapshot.empty(sanitize(region), sanitize(vehicleType)), List.of());
+            return;
+        }
+        synchronized (state) {
+            action.accept(state.published(), state.within(box));
+        }
+    }
 
-        return new CacheMetrics(region, vehicleType, removed, updated, cleaned, state.size());
+    /**
+     * Returns the bus and train vehicles on one route, looked up through each
+     * feed's route index rather than by scanning the region.
+     */
+    public RouteVehicles getRouteVehicles(String region, String route) {
+        String sanitizedRegion = sanitize(region);
+        String routeKey = route == null || route.isBlank() ? null : route.trim();
+        List<LiveVehicle> vehicles = new ArrayList<>();
+        long version = 0L;
+        long timestamp = 0L;
+        if (sanitizedRegion != null && routeKey != null) {
+            for (String vehicleType : List.of("bus", "train")) {
+                VehicleState state = stateByKey.get(CacheKey.of(sanitizedRegion, vehicleType));
+                if (state == null) {
+                    continue;
+                }
+                synchronized (state) {
+                    vehicles.addAll(state.onRoute(routeKey));
+                    version = Math.max(version, state.published().version());
+                    timestamp = Math.max(timestamp, state.published().latestTimestamp());
+                }
+            }
+        }
+        return new RouteVehicles(vehicles, sanitizedRegion != null ? sanitizedRegion : region, routeKey,
+            version, timestamp);
     }
 
     /**
      * Returns the latest combined snapshot for a region used by the REST API.
+     * The snapshot and its encoded body are built once per cache version and
+     * shared by all readers until the next delta is applied.
      */
-    public Map<String, Object> getLatestVehicles(String region) {
+    public RegionSnapshot getLatestVehicles(String region) {
         String sanitizedRegion = sanitize(region);
         if (sanitizedRegion == null) {
-            return Map.of(
-                "vehicles", objectMapper.createArrayNode(),
-                "region", region,
-                "timestamp", 0L
-            );
+            return emptyRegionSnapshot(region);
+        }
+
+        ChangeJournal journal = journals.get(sanitizedRegion);
+        if (journal == null) {
+            // No feed in the region yet, so no journal lock to read under; such a snapshot is never cached
+            VehicleSnapshot bus = snapshotFor(sanitizedRegion, "bus");
+            VehicleSnapshot train = snapshotFor(sanitizedRegion, "train");
+            return buildRegionSnapshot(sanitizedRegion, Math.max(bus.version(), train.version()), bus, train);
+        }
+        VehicleSnapshot bus;
+        VehicleSnapshot train;
+        // Versions are allocated under the journal's lock, so both feeds are read as of one region version
+        synchronized (journal) {
+            bus = snapshotFor(sanitizedRegion, "bus");
+            train = snapshotFor(sanitizedRegion, "train");
+        }
+        long version = Math.max(bus.version(), train.version());
+
+        RegionSnapshot cached = regionSnapshots.get(sanitizedRegion);
+        if (cached != null && cached.version() == version) {
+            return cached;
+        }
+
+        RegionSnapshot built = buildRegionSnapshot(sanitizedRegion, version, bus, train);
+        if (version == 0L) {
+            // Nothing cached for this region yet; avoid pinning snapshots for arbitrary path values
+            return built;
+        }
+        regionSnapshots.merge(sanitizedRegion, built,
+            (current, candidate) -> candidate.version() > current.version() ? candidate : current);
+        return built;
+    }
+
+    /**
+     * Returns the upserts and removals for a region since the given cache
+     * version, folded into a single delta. Falls back to the full region when
+     * the change journal no longer covers {@code since} or {@code since} was
+     * issued before the last restart.
+     */
+    public RegionDelta getChangesSince(String region, long since) {
+        RegionSnapshot snapshot = getLatestVehicles(region);
+        String sanitizedRegion = sanitize(region);
+        ChangeJournal journal = sanitizedRegion == null ? null : journals.get(sanitizedRegion);
+        // A cursor from another process (or from the future) cannot be answered with a partial delta
+        ChangeJournal.Changes changes = since > snapshot.version() || since <= epochVersion ? null
+            : journal == null ? new ChangeJournal.Changes(since, Map.of())
+            : journal.changesSince(since);
+
+        if (changes == null) {
+            return new RegionDelta(snapshot.vehicles(), List.of(), snapshot.region(), since,
+                snapshot.version(), true, snapshot.timestamp());
         }
 
-        Snapshot bus = snapshotFor(sanitizedRegion, "bus");
-        Snapshot train = snapshotFor(sanitizedRegion, "train");
+        List<LiveVehicle> vehicles = new ArrayList<>();
+        List<String> removedIds = new ArrayList<>();
+        changes.latestById().forEach((id, vehicle) -> {
+            if (vehicle == null) {
+                removedIds.add(id);
+            } else {
+                vehicles.add(vehicle);
+            }
+        });
+        return new RegionDelta(vehicles, removedIds, snapshot.region(), since,
+            changes.version(), false, snapshot.timestamp());
+    }
 
-        ArrayNode combined = objectMapper.createArrayNode();
-        combined.addAll(bus.data());
-        combined.addAll(train.data());
+    /** Returns the current published snapshot of every feed that has received data. */
+    public List<VehicleSnapshot> snapshots() {
+        return stateByKey.values().stream().map(VehicleState::published).toList();
+    }
 
+    /**
+     * Returns the current published snapshot for a single (region, type) feed.
+     */
+    public VehicleSnapshot snapshotFor(String region, String vehicleType) {
+        VehicleState state = stateByKey.get(CacheKey.of(sanitize(region), sanitize(vehicleType)));
+        return state == null ? VehicleSnapshot.empty(sanitize(region), sanitize(vehicleType)) : state.published();
+    }
+
+    private RegionSnapshot buildRegionSnapshot(String region, long version, VehicleSnapshot bus, VehicleSnapshot train) {
+        List<LiveVehicle> combined = new ArrayList<>(bus.vehicles().size() + train.vehicles().size());
+        combined.addAll(bus.vehicles());
+        combined.addAll(train.vehicles());
         long timestamp = Math.max(bus.latestTimestamp(), train.latestTimestamp());
 
-        return Map.of(
-            "vehicles", combined,
-            "region", sanitizedRegion,
-            "timestamp", timestamp
-        );
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(64 + estimatedSize(bus, train));
+            body.write(VEHICLES_PREFIX);
+            byte[] busJson = bus.vehiclesJson(objectMapper);
+            byte[] trainJson = train.vehiclesJson(objectMapper);
+            body.write(busJson);
+            if (busJson.length > 0 && trainJson.length > 0) {
+                body.write(',');
+            }
+            body.write(trainJson);
+            body.write(REGION_FIELD);
+            body.write(objectMapper.writeValueAsBytes(region));
+            body.write(TIMESTAMP_FIELD);
+            body.write(Long.toString(timestamp).getBytes(StandardCharsets.US_ASCII));
+            body.write(VERSION_FIELD);
+            body.write(Long.toString(version).getBytes(StandardCharsets.US_ASCII));
+            body.write('}');
+            return new RegionSnapshot(region, version, Collections.unmodifiableList(combined), timestamp, body.toByteArray());
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to encode snapshot for region " + region, ex);
+        }
     }
 
-    private Snapshot snapshotFor(String region, String vehicleType) {
-        VehicleState state = stateByKey.get(CacheKey.of(region, vehicleType));
-        if (state == null) {
-            return new Snapshot(objectMapper.createArrayNode(), 0L);
+    private static int estimatedSize(VehicleSnapshot bus, VehicleSnapshot train) {
+        return (bus.vehicles().size() + train.vehicles().size()) * 256;
+    }
+
+    private RegionSnapshot emptyRegionSnapshot(String region) {
+        try {
+            byte[] json = objectMapper.writeValueAsBytes(Map.of("vehicles", List.of(), "region", String.valueOf(region), "timestamp", 0L, "version", 0L));
+            return new RegionSnapshot(region, 0L, List.of(), 0L, json);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
         }
-        return new Snapshot(state.snapshot(objectMapper), state.latestTimestamp());
     }
 
     int sizeForTesting(String region, String vehicleType) {
-        VehicleState state = stateByKey.get(CacheKey.of(sanitize(region), sanitize(vehicleType)));
-        return state == null ? 0 : state.size();
+        return snapshotFor(region, vehicleType).vehicles().size();
     }
 
-    ArrayNode snapshotForTesting(String region, String vehicleType) {
-        VehicleState state = stateByKey.get(CacheKey.of(sanitize(region), sanitize(vehicleType)));
-        return state == null ? objectMapper.createArrayNode() : state.snapshot(objectMapper);
+    List<LiveVehicle> snapshotForTesting(String region, String vehicleType) {
+        return snapshotFor(region, vehicleType).vehicles();
     }
 
     private static String sanitize(String value) {
@@ -126,10 +522,46 @@ public class VehicleCacheService {
         }
     }
 
+    /**
+     * Live entries for one (region, type) feed, mutated only under the state's
+     * monitor: by the relay pipeline's merge thread that owns the feed's
+     * channel and, for expiry, by the sweeper. Readers that look at the table
+     * take the monitor too, so the table and indexes are plain fields. Readers
+     * outside the lock only ever see the immutable snapshot published once a
+     * whole delta has been merged, never a vehicle that is removed but not yet
+     * re-added.
+     */
     private static final class VehicleState {
-        private final Map<String, StoredVehicle> entries = new ConcurrentHashMap<>();
+        private final VehicleTable entries = new VehicleTable();
+        private final VehicleGrid grid = new VehicleGrid();
+        private final RouteIndex routes = new RouteIndex();
+        /** Vehicle id → route it was listed under, for vehicles removed or moved off a route since the last commit. */
+        private final Map<String, String> departedRoutes = new HashMap<>();
+        /** Min-heap on lastUpdated; entries superseded by a later upsert or removal are skipped lazily. */
+        private final ExpiryHeap expiryIndex = new ExpiryHeap();
+        private final ChangeJournal journal;
+        private final Counter evictions;
+        /** Mapped copy of the entries for warm restarts, or {@code null}. */
+        private final MappedVehicleStore store;
+        private final int storeFeed;
+        private long maxLastUpdated;
+        private boolean maxStale;
+        private volatile VehicleSnapshot published;
+
+        VehicleState(String region, String vehicleType, ChangeJournal journal, Counter evictions,
+                MappedVehicleStore store) {
+            this.published = VehicleSnapshot.empty(region, vehicleType);
+            this.journal = journal;
+            this.evictions = evictions;
+            this.storeFeed = store == null ? -1 : store.feed(region, vehicleType);
+            this.store = storeFeed < 0 ? null : store;
+        }
+
+        ChangeJournal journal() {
+            return journal;
+        }
 
-        int removeAll(List<String> ids) {
+        int removeAll(List<String> ids, List<String> removedIds) {
             if (ids == null || ids.isEmpty()) {
                 return 0;
             }
@@ -138,76 +570,205 @@ public class VehicleCacheService {
                 if (id == null || id.isBlank()) {
                     continue;
                 }
-                removed += entries.remove(id) != null ? 1 : 0;
+                int handle = entries.handleOf(id);
+                if (handle != VehicleTable.ABSENT) {
+                    LiveVehicle previous = entries.vehicle(handle);
+                    onRemoved(entries.lastUpdated(handle));
+                    evict(handle);
+                    grid.remove(previous);
+                    departed(previous);
+                    removedIds.add(id);
+                    removed++;
+                }
             }
             return removed;
         }
 
-        int upsert(List<ObjectNode> vehicles, long fallbackTimestamp) {
+        int upsert(List<LiveVehicle> vehicles, long fallbackTimestamp, List<LiveVehicle> upserted,
+                List<LiveVehicle> changes) {
             if (vehicles == null || vehicles.isEmpty()) {
                 return 0;
             }
             int updated = 0;
-            for (ObjectNode vehicle : vehicles) {
+            for (LiveVehicle vehicle : vehicles) {
                 if (vehicle == null) {
                     continue;
                 }
-                String vehicleId = vehicle.path("vehicle_id").asText(null);
+                String vehicleId = vehicle.getVehicleId();
                 if (vehicleId == null || vehicleId.isBlank()) {
                     continue;
                 }
-                long updatedAt = resolveUpdatedAt(vehicle, fallbackTimestamp);
-                entries.put(vehicleId, new StoredVehicle(vehicle.deepCopy(), updatedAt));
+                long updatedAt = vehicle.getUpdatedAtMillis() > 0L ? vehicle.getUpdatedAtMillis() : fallbackTimestamp;
+                int handle = entries.intern(vehicleId);
+                LiveVehicle previousVehicle = entries.vehicle(handle);
+                if (previousVehicle != null && entries.lastUpdated(handle) > updatedAt) {
+                    onRemoved(entries.lastUpdated(handle));
+                }
+                // LiveVehicle is immutable, so the instance can be shared with snapshots
+                entries.set(handle, vehicle, updatedAt);
+                if (store != null) {
+                    entries.setStoreSlot(handle, store.write(entries.storeSlot(handle), storeFeed, vehicle, updatedAt));
+                }
+                if (changes != null) {
+                    LiveVehicle changed = vehicle.changesSince(previousVehicle);
+                    if (changed != null) {
+                        changes.add(changed);
+                    }
+                }
+                grid.move(previousVehicle, vehicle);
+                if (routes.move(previousVehicle, vehicle)) {
+                    departedRoutes.putIfAbsent(vehicleId, previousVehicle.routeKey());
+                }
+                if (updatedAt > maxLastUpdated) {
+                    maxLastUpdated = updatedAt;
+                }
+                expiryIndex.add(updatedAt, handle);
+                upserted.add(vehicle);
                 updated++;
             }
             return updated;
         }
 
-        int cleanup(long now, Duration ttl) {
+        /**
+         * Evicts entries older than the TTL. Only heap entries that are due are
+         * visited, so the cost is proportional to evictions, not fleet size.
+         */
+        int cleanup(long now, Duration ttl, List<String> removedIds) {
             long threshold = now - ttl.toMillis();
             int removed = 0;
-            for (Map.Entry<String, StoredVehicle> entry : entries.entrySet()) {
-                if (entry.getValue().lastUpdated() < threshold) {
-                    entries.remove(entry.getKey(), entry.getValue());
+            while (!expiryIndex.isEmpty() && expiryIndex.peekTime() < threshold) {
+                long lastUpdated = expiryIndex.peekTime();
+                int handle = expiryIndex.peekHandle();
+                expiryIndex.poll();
+                // A later upsert (or a recycled handle) leaves a different time behind
+                if (entries.isLive(handle) && entries.lastUpdated(handle) == lastUpdated) {
+                    LiveVehicle vehicle = entries.vehicle(handle);
+                    removedIds.add(entries.id(handle));
+                    onRemoved(lastUpdated);
+                    evict(handle);
+                    grid.remove(vehicle);
+                    departed(vehicle);
                     removed++;
                 }
             }
+            if (removed > 0) {
+                evictions.increment(removed);
+            }
+            compactExpiryIndex();
             return removed;
         }
 
-        ArrayNode snapshot(ObjectMapper mapper) {
-            ArrayNode array = mapper.createArrayNode();
-            entries.values().forEach(stored -> array.add(stored.vehicle().deepCopy()));
-            return array;
+        /**
+         * Every upsert leaves the previous heap entry behind; rebuild once the
+         * garbage outweighs the live entries so the heap stays O(fleet size).
+         */
+        private void compactExpiryIndex() {
+            if (expiryIndex.size() > 2 * entries.size() + 64) {
+                expiryIndex.clear();
+                for (int handle = 0; handle < entries.handleLimit(); handle++) {
+                    if (entries.isLive(handle)) {
+                        expiryIndex.add(entries.lastUpdated(handle), handle);
+                    }
+                }
+            }
         }
 
-        long latestTimestamp() {
-            return entries.values().stream()
-                .mapToLong(StoredVehicle::lastUpdated)
-                .max()
-                .orElse(0L);
+        private void evict(int handle) {
+            if (store != null) {
+                store.free(entries.storeSlot(handle));
+            }
+            entries.remove(handle);
         }
 
-        int size() {
-            return entries.size();
+        /**
+         * Copies the live vehicles into the immutable snapshot for this
+         * version. This is the one step of a commit that is still O(fleet
+         * size): removal, upsert and expiry only touch the vehicles involved,
+         * but every published version holds its own list.
+         */
+        void publish(long version) {
+            List<LiveVehicle> vehicles = new ArrayList<>(entries.size());
+            for (int handle = 0; handle < entries.handleLimit(); handle++) {
+                if (entries.isLive(handle)) {
+                    vehicles.add(entries.vehicle(handle));
+                }
+            }
+            published = new VehicleSnapshot(published.region(), published.vehicleType(), version,
+                Collections.unmodifiableList(vehicles), latestTimestamp());
         }
 
-        private static long resolveUpdatedAt(ObjectNode vehicle, long fallbackTimestamp) {
-            String updatedAt = vehicle.path("updated_at").asText(null);
-            if (updatedAt == null || updatedAt.isBlank()) {
-                return fallbackTimestamp;
+        VehicleSnapshot published() {
+            return published;
+        }
+
+        List<LiveVehicle> within(BoundingBox box) {
+            List<LiveVehicle> vehicles = new ArrayList<>();
+            for (String id : grid.candidatesWithin(box)) {
+                int handle = entries.handleOf(id);
+                if (handle != VehicleTable.ABSENT && box.contains(entries.vehicle(handle))) {
+                    vehicles.add(entries.vehicle(handle));
+                }
             }
-            try {
-                return Instant.parse(updatedAt).toEpochMilli();
-            } catch (Exception ex) {
-                return fallbackTimestamp;
+            return vehicles;
+        }
+
+        List<LiveVehicle> onRoute(String route) {
+            List<LiveVehicle> vehicles = new ArrayList<>();
+            for (String id : routes.idsOn(route)) {
+                int handle = entries.handleOf(id);
+                if (handle != VehicleTable.ABSENT) {
+                    vehicles.add(entries.vehicle(handle));
+                }
             }
+            return vehicles;
+        }
+
+        /** Hands over the routes vehicles left since the last call. */
+        Map<String, String> drainDepartedRoutes() {
+            if (departedRoutes.isEmpty()) {
+                return Map.of();
+            }
+            Map<String, String> departed = Map.copyOf(departedRoutes);
+            departedRoutes.clear();
+            return departed;
+        }
+
+        private void departed(LiveVehicle vehicle) {
+            routes.remove(vehicle);
+            String route = vehicle.routeKey();
+            if (route != null) {
+                departedRoutes.putIfAbsent(vehicle.getVehicleId(), route);
+            }
+        }
+
+        /**
+         * Newest {@code lastUpdated} in the feed. Maintained on upsert; only
+         * rescanned after the entry holding the maximum has gone away.
+         */
+        long latestTimestamp() {
+            if (maxStale) {
+                long max = 0L;
+                for (int handle = 0; handle < entries.handleLimit(); handle++) {
+                    if (entries.isLive(handle)) {
+                        max = Math.max(max, entries.lastUpdated(handle));
+                    }
+                }
+                maxLastUpdated = max;
+                maxStale = false;
+            }
+            return maxLastUpdated;
         }
-    }
 
-    private record StoredVehicle(ObjectNode vehicle, long lastUpdated) { }
+        private void onRemoved(long lastUpdated) {
+            if (lastUpdated >= maxLastUpdated) {
+                maxStale = true;
+            }
+        }
 
-    private record Snapshot(ArrayNode data, long latestTimestamp) { }
+        int size() {
+            return entries.size();
+        }
+    }
 
     public record CacheMetrics(
         String region,
@@ -215,10 +776,12 @@ public class VehicleCacheService {
         int removedCount,
         int updatedCount,
         int cleanedCount,
-        int cacheSize
+        int cacheSize,
+        long version,
+        long latestTimestamp
     ) {
         private static CacheMetrics empty(String region, String type) {
-            return new CacheMetrics(region, type, 0, 0, 0, 0);
+            return new CacheMetrics(region, type, 0, 0, 0, 0, 0L, 0L);
         }
     }
 }
@@ -0,0 +1,25 @@
+package se.kumliens.livetrafik;
+
+import java.util.List;
+import java.util.Map;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Notified by {@link VehicleCacheService} each time a (region, type) feed
+ * publishes a new version. Called with the feed's lock held, so calls for one
+ * feed arrive in version order and must not block.
+ */
+@FunctionalInterface
+public interface VehicleChangeListener {
+
+    /**
+     * @param snapshot the newly published snapshot
+     * @param upserted vehicles added or updated by this version
+     * @param removedIds vehicles removed by this version, including expired ones
+     * @param departedRoutes vehicle id → route it was listed under before this
+     *        version, for vehicles that were removed or switched route
+     */
+    void onChange(VehicleSnapshot snapshot, List<LiveVehicle> upserted, List<String> removedIds,
+            Map<String, String> departedRoutes);
+}
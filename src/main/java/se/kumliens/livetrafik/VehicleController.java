@@ -1,35 +1,191 @@
 package se.kumliens.livetrafik;
 
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import se.kumliens.livetrafik.model.LiveVehicle;
+
 /**
  * Exposes REST endpoints for retrieving cached vehicle data and a simple health
  * probe so external monitors can verify that the service is alive.
  */
 @RestController
 @RequestMapping("/api")
-@CrossOrigin(origins = "*")
+@CrossOrigin(origins = "*", exposedHeaders = HttpHeaders.ETAG)
 public class VehicleController {
 
+    private static final MediaType APPLICATION_CBOR = new MediaType("application", "cbor");
+
     private final VehicleCacheService vehicleCacheService;
+    private final CborEncoder cborEncoder;
+    private final HistoryJournal historyJournal;
 
-    public VehicleController(VehicleCacheService vehicleCacheService) {
+    public VehicleController(VehicleCacheService vehicleCacheService, CborEncoder cborEncoder,
+            HistoryJournal historyJournal) {
         this.vehicleCacheService = vehicleCacheService;
+        this.cborEncoder = cborEncoder;
+        this.historyJournal = historyJournal;
     }
 
     /**
      * Returns the latest cached vehicles for the requested region, combining bus
-     * and train payloads as persisted by {@link VehicleCacheService}.
+     * and train payloads as persisted by {@link VehicleCacheService}. The body is
+     * the snapshot's pre-encoded JSON, written without another serialization pass.
+     * The cache version doubles as a strong ETag, so {@code If-None-Match}
+     * requests for an unchanged region are answered with {@code 304}. Clients
+     * sending {@code Accept: application/cbor} get the same document in CBOR.
      */
     @GetMapping("/latest/{region}")
-    public Map<String, Object> getLatestVehicles(@PathVariable String region) {
-        return vehicleCacheService.getLatestVehicles(region);
+    public ResponseEntity<byte[]> getLatestVehicles(
+            @PathVariable String region,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        RegionSnapshot snapshot = vehicleCacheService.getLatestVehicles(region);
+        if (acceptsCbor(accept)) {
+            return ResponseEntity.ok()
+                .eTag(etag(snapshot.version() + "-cbor"))
+                .varyBy(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING)
+                .contentType(APPLICATION_CBOR)
+                .body(snapshot.cbor(cborEncoder));
+        }
+        if (acceptsGzip(acceptEncoding)) {
+            // Compressed once per cache version and shared by every client
+            return ResponseEntity.ok()
+                .eTag(etag(snapshot.version() + "-gzip"))
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .varyBy(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(snapshot.gzipJson());
+        }
+        return ResponseEntity.ok()
+            .eTag(etag(snapshot.version()))
+            .varyBy(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING)
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(snapshot.json());
+    }
+
+    /**
+     * Returns only the vehicles upserted or removed since the given cache
+     * version (taken from a previous response's {@code version} field or ETag).
+     * If the server no longer remembers that far back, the full region is
+     * returned with {@code full=true}.
+     */
+    @GetMapping(value = "/latest/{region}", params = "since")
+    public ResponseEntity<RegionDelta> getVehicleChanges(@PathVariable String region, @RequestParam long since) {
+        RegionDelta delta = vehicleCacheService.getChangesSince(region, since);
+        return ResponseEntity.ok()
+            .eTag(etag(delta.version()))
+            .body(delta);
+    }
+
+    /**
+     * Returns the vehicles currently on one route (matched against
+     * {@code route_id}, or {@code route} where no id is sent), looked up
+     * through the cache's route index instead of filtering the whole region.
+     */
+    @GetMapping("/latest/{region}/route/{routeId}")
+    public ResponseEntity<RouteVehicles> getRouteVehicles(@PathVariable String region, @PathVariable String routeId) {
+        RouteVehicles vehicles = vehicleCacheService.getRouteVehicles(region, routeId);
+        return ResponseEntity.ok()
+            .eTag(etag(vehicles.version()))
+            .body(vehicles);
+    }
+
+    /**
+     * Returns the bus and train vehicles the region held at {@code at} (an
+     * ISO-8601 instant or epoch milliseconds), reconstructed from the history
+     * journal. Answers {@code 404} when the journal is off or does not reach
+     * back that far.
+     */
+    @GetMapping("/history/{region}")
+    public ResponseEntity<RegionHistory> getHistory(@PathVariable String region, @RequestParam String at) {
+        long instant;
+        try {
+            instant = at.chars().allMatch(Character::isDigit) ? Long.parseLong(at) : Instant.parse(at).toEpochMilli();
+        } catch (NumberFormatException | DateTimeParseException ex) {
+            return ResponseEntity.badRequest().build();
+        }
+        String sanitizedRegion = region.trim().toLowerCase();
+        return historyJournal.stateAt(instant)
+            .map(feeds -> {
+                List<LiveVehicle> vehicles = new ArrayList<>();
+                feeds.stream()
+                    .filter(feed -> feed.region().equals(sanitizedRegion))
+                    .forEach(feed -> vehicles.addAll(feed.upserted()));
+                long timestamp = vehicles.stream().mapToLong(LiveVehicle::getUpdatedAtMillis).max().orElse(0L);
+                return ResponseEntity.ok(new RegionHistory(vehicles, sanitizedRegion, instant, timestamp));
+            })
+            .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    private static String etag(String version) {
+        return "\"" + version + "\"";
+    }
+
+    private static String etag(long version) {
+        return etag(Long.toString(version));
+    }
+
+    /** Only an explicit CBOR media type selects it; wildcards keep JSON. */
+    private static boolean acceptsCbor(String accept) {
+        if (accept == null || accept.isBlank()) {
+            return false;
+        }
+        try {
+            for (MediaType mediaType : MediaType.parseMediaTypes(accept)) {
+                if (mediaType.equalsTypeAndSubtype(APPLICATION_CBOR) && mediaType.getQualityValue() > 0.0) {
+                    return true;
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return false;
+        }
+        for (String candidate : acceptEncoding.split(",")) {
+            String[] parts = candidate.trim().split(";");
+            String coding = parts[0].trim();
+            if (!"gzip".equalsIgnoreCase(coding) && !"*".equals(coding)) {
+                continue;
+            }
+            if (!hasZeroQuality(parts)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasZeroQuality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2)) == 0.0;
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+            }
+        }
+        return false;
     }
     
     /**
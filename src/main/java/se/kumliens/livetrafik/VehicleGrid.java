@@ -0,0 +1,67 @@
+package se.kumliens.livetrafik;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import se.kumliens.livetrafik.model.BoundingBox;
+import se.kumliens.livetrafik.model.GeoGrid;
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Vehicle ids of one feed bucketed by {@link GeoGrid} cell, so viewport
+ * queries only visit the cells they overlap. Not thread-safe; owned by the
+ * feed's state and mutated under its lock.
+ */
+final class VehicleGrid {
+
+    private final Map<Long, Set<String>> idsByCell = new HashMap<>();
+
+    void add(LiveVehicle vehicle) {
+        if (vehicle.hasPosition()) {
+            idsByCell.computeIfAbsent(GeoGrid.cellOf(vehicle), cell -> new HashSet<>()).add(vehicle.getVehicleId());
+        }
+    }
+
+    void remove(LiveVehicle vehicle) {
+        if (!vehicle.hasPosition()) {
+            return;
+        }
+        long cell = GeoGrid.cellOf(vehicle);
+        Set<String> ids = idsByCell.get(cell);
+        if (ids != null && ids.remove(vehicle.getVehicleId()) && ids.isEmpty()) {
+            idsByCell.remove(cell);
+        }
+    }
+
+    void move(LiveVehicle previous, LiveVehicle current) {
+        if (previous != null) {
+            if (previous.hasPosition() && current.hasPosition()
+                    && GeoGrid.cellOf(previous) == GeoGrid.cellOf(current)) {
+                return;
+            }
+            remove(previous);
+        }
+        add(current);
+    }
+
+    /** Ids in the cells overlapping {@code box}; callers check exact positions. */
+    List<String> candidatesWithin(BoundingBox box) {
+        List<String> candidates = new ArrayList<>();
+        if (GeoGrid.cellCount(box) > idsByCell.size()) {
+            // Fewer occupied cells than cells in the box: walk the occupied ones
+            idsByCell.values().forEach(candidates::addAll);
+        } else {
+            GeoGrid.forEachCell(box, cell -> {
+                Set<String> ids = idsByCell.get(cell);
+                if (ids != null) {
+                    candidates.addAll(ids);
+                }
+            });
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,107 @@
+package se.kumliens.livetrafik;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Immutable view of a single (region, type) cache, published by
+ * {@link VehicleCacheService#applyDelta} once a delta has been fully merged.
+ * The JSON for the vehicle list is encoded at most once per version.
+ */
+public final class VehicleSnapshot {
+
+    private static final byte[] SNAPSHOT_START = "{\"vehicles\":[".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SNAPSHOT_REMOVED = "],\"removed_vehicle_ids\":[],\"region\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SNAPSHOT_TYPE = ",\"vehicleType\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SNAPSHOT_TIMESTAMP = ",\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SNAPSHOT_VERSION = ",\"version\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SNAPSHOT_END = ",\"snapshot\":true}".getBytes(StandardCharsets.US_ASCII);
+
+    private final String region;
+    private final String vehicleType;
+    private final long version;
+    private final List<LiveVehicle> vehicles;
+    private final long latestTimestamp;
+    private volatile byte[] vehiclesJson;
+    private volatile byte[] snapshotJson;
+
+    VehicleSnapshot(String region, String vehicleType, long version, List<LiveVehicle> vehicles, long latestTimestamp) {
+        this.region = region;
+        this.vehicleType = vehicleType;
+        this.version = version;
+        this.vehicles = vehicles;
+        this.latestTimestamp = latestTimestamp;
+    }
+
+    static VehicleSnapshot empty(String region, String vehicleType) {
+        return new VehicleSnapshot(region, vehicleType, 0L, List.of(), 0L);
+    }
+
+    public String region() {
+        return region;
+    }
+
+    public String vehicleType() {
+        return vehicleType;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public List<LiveVehicle> vehicles() {
+        return vehicles;
+    }
+
+    public long latestTimestamp() {
+        return latestTimestamp;
+    }
+
+    /**
+     * Returns the vehicles encoded as comma-separated JSON objects without the
+     * surrounding brackets, so several snapshots can be spliced into one array.
+     */
+    byte[] vehiclesJson(ObjectMapper mapper) throws JsonProcessingException {
+        byte[] encoded = vehiclesJson;
+        if (encoded == null) {
+            byte[] array = mapper.writeValueAsBytes(vehicles);
+            encoded = Arrays.copyOfRange(array, 1, array.length - 1);
+            vehiclesJson = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Returns the whole feed as one message in the STOMP delta format, tagged
+     * with {@code "version"} and {@code "snapshot":true}, for new subscribers.
+     * Encoded at most once per version.
+     */
+    public byte[] snapshotJson(ObjectMapper mapper) throws JsonProcessingException {
+        byte[] encoded = snapshotJson;
+        if (encoded == null) {
+            byte[] vehicles = vehiclesJson(mapper);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(vehicles.length + 160);
+            out.writeBytes(SNAPSHOT_START);
+            out.writeBytes(vehicles);
+            out.writeBytes(SNAPSHOT_REMOVED);
+            out.writeBytes(mapper.writeValueAsBytes(region));
+            out.writeBytes(SNAPSHOT_TYPE);
+            out.writeBytes(mapper.writeValueAsBytes(vehicleType));
+            out.writeBytes(SNAPSHOT_TIMESTAMP);
+            out.writeBytes(Long.toString(latestTimestamp).getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(SNAPSHOT_VERSION);
+            out.writeBytes(Long.toString(version).getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(SNAPSHOT_END);
+            encoded = out.toByteArray();
+            snapshotJson = encoded;
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,197 @@
+package se.kumliens.livetrafik;
+
+import java.util.Arrays;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Vehicles of one feed in an open-addressing table. Each vehicle id is
+ * interned to a dense {@code int} handle and the vehicle and its last update
+ * live in parallel columns indexed by that handle, so a merge looks up,
+ * replaces and ages vehicles through arrays instead of map entries and boxed
+ * timestamps. Handles of removed vehicles are recycled. Not thread-safe;
+ * owned by the feed's state and mutated under its lock.
+ */
+final class VehicleTable {
+
+    static final int ABSENT = -1;
+
+    /** Linear-probing index: handle + 1, or 0 for an empty slot. Kept at most half full. */
+    private int[] slots;
+    private int mask;
+    private String[] ids;
+    private int[] hashes;
+    private LiveVehicle[] vehicles;
+    private long[] lastUpdated;
+    /** Slot in the {@link MappedVehicleStore}, if the feed is stored. */
+    private int[] storeSlots;
+    private int[] freeHandles = new int[16];
+    private int freeCount;
+    /** Handles below this have been issued at least once. */
+    private int handleLimit;
+    private int size;
+
+    VehicleTable() {
+        this(16);
+    }
+
+    VehicleTable(int expectedSize) {
+        int capacity = Math.max(8, Integer.highestOneBit(Math.max(1, expectedSize) - 1) << 1);
+        slots = new int[capacity * 2];
+        mask = slots.length - 1;
+        ids = new String[capacity];
+        hashes = new int[capacity];
+        vehicles = new LiveVehicle[capacity];
+        lastUpdated = new long[capacity];
+        storeSlots = new int[capacity];
+    }
+
+    int handleOf(String id) {
+        int hash = hash(id);
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int handle = slots[i] - 1;
+            if (handle < 0) {
+                return ABSENT;
+            }
+            if (hashes[handle] == hash && ids[handle].equals(id)) {
+                return handle;
+            }
+        }
+    }
+
+    /**
+     * Returns the handle for the id, issuing a new one if the id is not in the
+     * table yet. A new handle reads as {@code null} / {@code 0} until {@link #set},
+     * with no store slot.
+     */
+    int intern(String id) {
+        int hash = hash(id);
+        int i = hash & mask;
+        for (; ; i = (i + 1) & mask) {
+            int handle = slots[i] - 1;
+            if (handle < 0) {
+                break;
+            }
+            if (hashes[handle] == hash && ids[handle].equals(id)) {
+                return handle;
+            }
+        }
+        int handle = allocate();
+        ids[handle] = id;
+        hashes[handle] = hash;
+        storeSlots[handle] = MappedVehicleStore.NO_SLOT;
+        slots[i] = handle + 1;
+        if (++size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return handle;
+    }
+
+    void set(int handle, LiveVehicle vehicle, long updatedAt) {
+        vehicles[handle] = vehicle;
+        lastUpdated[handle] = updatedAt;
+    }
+
+    void setStoreSlot(int handle, int storeSlot) {
+        storeSlots[handle] = storeSlot;
+    }
+
+    void remove(int handle) {
+        int i = hashes[handle] & mask;
+        while (slots[i] != handle + 1) {
+            i = (i + 1) & mask;
+        }
+        deleteSlot(i);
+        ids[handle] = null;
+        vehicles[handle] = null;
+        lastUpdated[handle] = 0L;
+        if (freeCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+        }
+        freeHandles[freeCount++] = handle;
+        size--;
+    }
+
+    boolean isLive(int handle) {
+        return handle >= 0 && handle < handleLimit && ids[handle] != null;
+    }
+
+    String id(int handle) {
+        return ids[handle];
+    }
+
+    LiveVehicle vehicle(int handle) {
+        return vehicles[handle];
+    }
+
+    long lastUpdated(int handle) {
+        return lastUpdated[handle];
+    }
+
+    int storeSlot(int handle) {
+        return storeSlots[handle];
+    }
+
+    /** Exclusive upper bound for iterating handles; skip the ones that are not {@link #isLive live}. */
+    int handleLimit() {
+        return handleLimit;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return freeHandles[--freeCount];
+        }
+        if (handleLimit == vehicles.length) {
+            int capacity = vehicles.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            vehicles = Arrays.copyOf(vehicles, capacity);
+            lastUpdated = Arrays.copyOf(lastUpdated, capacity);
+            storeSlots = Arrays.copyOf(storeSlots, capacity);
+        }
+        return handleLimit++;
+    }
+
+    /** Backward-shift deletion, so lookups never have to step over tombstones. */
+    private void deleteSlot(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int entry = slots[j];
+            if (entry == 0) {
+                slots[i] = 0;
+                return;
+            }
+            int ideal = hashes[entry - 1] & mask;
+            boolean reachable = i <= j ? (i < ideal && ideal <= j) : (i < ideal || ideal <= j);
+            if (!reachable) {
+                slots[i] = entry;
+                i = j;
+            }
+        }
+    }
+
+    private void rehash(int slotCount) {
+        slots = new int[slotCount];
+        mask = slotCount - 1;
+        for (int handle = 0; handle < handleLimit; handle++) {
+            if (ids[handle] == null) {
+                continue;
+            }
+            int i = hashes[handle] & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = handle + 1;
+        }
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
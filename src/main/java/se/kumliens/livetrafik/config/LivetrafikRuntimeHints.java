@@ -6,6 +6,8 @@ import org.springframework.aot.hint.RuntimeHintsRegistrar;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
 
+import se.kumliens.livetrafik.HistoryJournal;
+import se.kumliens.livetrafik.model.LiveVehicle;
 import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
 
 public class LivetrafikRuntimeHints implements RuntimeHintsRegistrar {
@@ -18,5 +20,11 @@ public class LivetrafikRuntimeHints implements RuntimeHintsRegistrar {
             MemberCategory.INVOKE_PUBLIC_METHODS,
             MemberCategory.DECLARED_FIELDS,
             MemberCategory.INVOKE_DECLARED_METHODS);
+        hints.reflection().registerType(LiveVehicle.class, MemberCategory.DECLARED_FIELDS);
+        hints.reflection().registerType(LiveVehicle.Serializer.class, MemberCategory.INVOKE_DECLARED_CONSTRUCTORS);
+        hints.reflection().registerType(LiveVehicle.Deserializer.class, MemberCategory.INVOKE_DECLARED_CONSTRUCTORS);
+        hints.reflection().registerType(HistoryJournal.Feed.class,
+            MemberCategory.INVOKE_DECLARED_CONSTRUCTORS,
+            MemberCategory.INVOKE_PUBLIC_METHODS);
     }
 }
@@ -0,0 +1,107 @@
+package se.kumliens.livetrafik.config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.lang.NonNull;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Applies one endpoint's {@code permessage-deflate} settings to WebSocket
+ * handshakes. The servlet container negotiates the extension itself from the
+ * request's {@code Sec-WebSocket-Extensions} header, so the offers are
+ * rewritten before the handshake reaches it: dropped when compression is off
+ * for the endpoint, and given {@code server_no_context_takeover} when context
+ * takeover is off, which makes the server reset its compressor after every
+ * message instead of keeping a 32 KiB window per connection.
+ */
+final class PerMessageDeflateFilter extends OncePerRequestFilter {
+
+    static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+
+    private final boolean enabled;
+    private final boolean contextTakeover;
+
+    PerMessageDeflateFilter(boolean enabled, boolean contextTakeover) {
+        this.enabled = enabled;
+        this.contextTakeover = contextTakeover;
+    }
+
+    @Override
+    protected void doFilterInternal(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+            @NonNull FilterChain chain) throws ServletException, IOException {
+        if ((enabled && contextTakeover) || !"websocket".equalsIgnoreCase(request.getHeader(HttpHeaders.UPGRADE))
+                || request.getHeader(WebSocketHttpHeaders.SEC_WEBSOCKET_EXTENSIONS) == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        List<String> offers = rewrite(Collections.list(request.getHeaders(WebSocketHttpHeaders.SEC_WEBSOCKET_EXTENSIONS)));
+        chain.doFilter(new ExtensionOffersRequest(request, offers), response);
+    }
+
+    /** Returns the extension offers in the header values after applying this endpoint's settings. */
+    List<String> rewrite(List<String> headerValues) {
+        List<String> offers = new ArrayList<>();
+        for (String value : headerValues) {
+            for (String offer : value.split(",")) {
+                String trimmed = offer.trim();
+                String name = trimmed.split(";", 2)[0].trim();
+                if (trimmed.isEmpty() || (!enabled && PERMESSAGE_DEFLATE.equalsIgnoreCase(name))) {
+                    continue;
+                }
+                boolean addNoTakeover = PERMESSAGE_DEFLATE.equalsIgnoreCase(name) && !contextTakeover
+                    && !trimmed.toLowerCase().contains(SERVER_NO_CONTEXT_TAKEOVER);
+                offers.add(addNoTakeover ? trimmed + "; " + SERVER_NO_CONTEXT_TAKEOVER : trimmed);
+            }
+        }
+        return offers;
+    }
+
+    private static final class ExtensionOffersRequest extends HttpServletRequestWrapper {
+
+        private final String extensions;
+
+        private ExtensionOffersRequest(HttpServletRequest request, List<String> offers) {
+            super(request);
+            this.extensions = offers.isEmpty() ? null : String.join(", ", offers);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return isExtensions(name) ? extensions : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            if (!isExtensions(name)) {
+                return super.getHeaders(name);
+            }
+            return Collections.enumeration(extensions == null ? List.of() : List.of(extensions));
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            List<String> names = Collections.list(super.getHeaderNames());
+            if (extensions == null) {
+                names.removeIf(ExtensionOffersRequest::isExtensions);
+            }
+            return Collections.enumeration(names);
+        }
+
+        private static boolean isExtensions(String name) {
+            return WebSocketHttpHeaders.SEC_WEBSOCKET_EXTENSIONS.equalsIgnoreCase(name);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package se.kumliens.livetrafik.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * {@code permessage-deflate} settings for the {@code /ws-native} and SockJS
+ * ({@code /ws}) endpoints registered in {@link WebSocketConfig}, applied to
+ * their handshakes by {@link PerMessageDeflateFilter}.
+ */
+@Configuration
+public class WebSocketCompressionConfig {
+
+    @Bean
+    public FilterRegistrationBean<PerMessageDeflateFilter> nativeDeflateFilter(
+            @Value("${websocket.deflate.native.enabled:true}") boolean enabled,
+            @Value("${websocket.deflate.native.context-takeover:true}") boolean contextTakeover) {
+        FilterRegistrationBean<PerMessageDeflateFilter> registration =
+            new FilterRegistrationBean<>(new PerMessageDeflateFilter(enabled, contextTakeover));
+        registration.setName("nativeDeflateFilter");
+        registration.addUrlPatterns("/ws-native", "/ws-native/*");
+        return registration;
+    }
+
+    @Bean
+    public FilterRegistrationBean<PerMessageDeflateFilter> sockJsDeflateFilter(
+            @Value("${websocket.deflate.sockjs.enabled:true}") boolean enabled,
+            @Value("${websocket.deflate.sockjs.context-takeover:true}") boolean contextTakeover) {
+        FilterRegistrationBean<PerMessageDeflateFilter> registration =
+            new FilterRegistrationBean<>(new PerMessageDeflateFilter(enabled, contextTakeover));
+        registration.setName("sockJsDeflateFilter");
+        registration.addUrlPatterns("/ws/*");
+        return registration;
+    }
+}
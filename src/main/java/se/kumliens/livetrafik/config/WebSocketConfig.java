@@ -1,28 +1,52 @@
 package se.kumliens.livetrafik.config;
 
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+
+import se.kumliens.livetrafik.monitoring.WebSocketDeflateMetrics;
+import se.kumliens.livetrafik.stomp.ClientSessionRegistry;
 
 /**
  * Configures the STOMP broker relaying used by browser clients, exposing the
- * `/ws` endpoint over SockJS and enabling the `/topic` destinations.
+ * `/ws` endpoint over SockJS and enabling the `/topic` destinations. With
+ * {@code stomp.broker.fanout} (default) `/topic` is served by
+ * {@code TopicFanoutBroker}; the simple broker then only handles the session
+ * lifecycle and `/queue`. Compression of both endpoints is configured in
+ * {@link WebSocketCompressionConfig}.
  */
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
+    private final ClientSessionRegistry clientSessionRegistry;
+    private final WebSocketDeflateMetrics deflateMetrics;
+    private final boolean fanoutBroker;
+
+    public WebSocketConfig(
+            ClientSessionRegistry clientSessionRegistry,
+            WebSocketDeflateMetrics deflateMetrics,
+            @Value("${stomp.broker.fanout:true}") boolean fanoutBroker) {
+        this.clientSessionRegistry = clientSessionRegistry;
+        this.deflateMetrics = deflateMetrics;
+        this.fanoutBroker = fanoutBroker;
+    }
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        config.enableSimpleBroker("/topic");
+        config.enableSimpleBroker(fanoutBroker ? "/queue" : "/topic");
         config.setApplicationDestinationPrefixes("/app");
     }
 
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
+        // A viewport SEND right after its SUBSCRIBE must find the subscription
+        registry.setPreserveReceiveOrder(true);
         registry.addEndpoint("/ws")
                 .setAllowedOriginPatterns("*")
                 .withSockJS();
@@ -30,5 +54,12 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         registry.addEndpoint("/ws-native")
                 .setAllowedOriginPatterns("*");
     }
+
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration.addDecoratorFactory(clientSessionRegistry);
+        // Added last so it wraps outermost and also sees frames the registry writes directly
+        registration.addDecoratorFactory(deflateMetrics);
+    }
 }
 
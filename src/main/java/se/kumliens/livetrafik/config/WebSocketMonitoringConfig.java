@@ -16,6 +16,7 @@ import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerCo
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
+import se.kumliens.livetrafik.stomp.SessionOutboundQueues;
 
 @Configuration
 public class WebSocketMonitoringConfig implements WebSocketMessageBrokerConfigurer {
@@ -23,9 +24,11 @@ public class WebSocketMonitoringConfig implements WebSocketMessageBrokerConfigur
     private static final String ENQUEUED_AT_HEADER = "trafik.enqueuedAt";
 
     private final MeterRegistry meterRegistry;
+    private final SessionOutboundQueues sessionOutboundQueues;
 
-    public WebSocketMonitoringConfig(MeterRegistry meterRegistry) {
+    public WebSocketMonitoringConfig(MeterRegistry meterRegistry, SessionOutboundQueues sessionOutboundQueues) {
         this.meterRegistry = meterRegistry;
+        this.sessionOutboundQueues = sessionOutboundQueues;
     }
 
     @Override
@@ -36,7 +39,9 @@ public class WebSocketMonitoringConfig implements WebSocketMessageBrokerConfigur
                 .maxPoolSize(64)
                 .queueCapacity(10_000);
 
-        registration.interceptors(new OutboundLatencyInterceptor(meterRegistry));
+        // The latency interceptor sees every message; the per-session queues then take over delivery for open
+        // sessions, so only the rest reaches the shared pool above
+        registration.interceptors(new OutboundLatencyInterceptor(meterRegistry), sessionOutboundQueues);
     }
 
     private static class OutboundLatencyInterceptor implements ChannelInterceptor {
@@ -71,6 +76,10 @@ public class WebSocketMonitoringConfig implements WebSocketMessageBrokerConfigur
             @NonNull MessageChannel channel,
             boolean sent,
             @Nullable Exception ex) {
+            if (!sent) {
+                // Taken over by a session queue; its wait is recorded as trafik.stomp.outbound.session.wait
+                return;
+            }
             Object header = message.getHeaders().get(ENQUEUED_AT_HEADER);
             if (header instanceof Long enqueuedAt) {
                 queueTimer.record(Duration.ofNanos(System.nanoTime() - enqueuedAt));
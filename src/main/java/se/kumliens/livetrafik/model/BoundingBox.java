@@ -0,0 +1,50 @@
+package se.kumliens.livetrafik.model;
+
+import java.util.List;
+
+/**
+ * Geographic bounding box in GeoJSON order ({@code minLon, minLat, maxLon,
+ * maxLat}), as sent by map clients for viewport subscriptions.
+ */
+public record BoundingBox(double minLon, double minLat, double maxLon, double maxLat) {
+
+    public BoundingBox {
+        if (!(minLon <= maxLon && minLat <= maxLat) || minLat < -90 || maxLat > 90 || minLon < -180 || maxLon > 180) {
+            throw new IllegalArgumentException("Invalid bounding box: " + minLon + "," + minLat + "," + maxLon + "," + maxLat);
+        }
+    }
+
+    /** Parses {@code "minLon,minLat,maxLon,maxLat"}. */
+    public static BoundingBox parse(String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing bounding box");
+        }
+        String[] parts = value.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Bounding box needs four comma-separated values: " + value);
+        }
+        try {
+            return new BoundingBox(Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()),
+                Double.parseDouble(parts[2].trim()), Double.parseDouble(parts[3].trim()));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid bounding box: " + value, ex);
+        }
+    }
+
+    public static BoundingBox of(List<? extends Number> values) {
+        if (values == null || values.size() != 4 || values.contains(null)) {
+            throw new IllegalArgumentException("Bounding box needs four values: " + values);
+        }
+        return new BoundingBox(values.get(0).doubleValue(), values.get(1).doubleValue(),
+            values.get(2).doubleValue(), values.get(3).doubleValue());
+    }
+
+    public boolean contains(double latitude, double longitude) {
+        return latitude >= minLat && latitude <= maxLat && longitude >= minLon && longitude <= maxLon;
+    }
+
+    /** Vehicles without a position are never inside a box. */
+    public boolean contains(LiveVehicle vehicle) {
+        return vehicle.hasPosition() && contains(vehicle.getLatitude(), vehicle.getLongitude());
+    }
+}
@@ -0,0 +1,52 @@
+package se.kumliens.livetrafik.model;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Fixed lat/lon grid used to index vehicles and viewports by area. Cells are
+ * {@value #CELL_DEGREES}° square, about 5.5 × 2.8 km around Stockholm, so a
+ * city viewport touches a handful of cells.
+ */
+public final class GeoGrid {
+
+    public static final double CELL_DEGREES = 0.05;
+
+    private GeoGrid() {
+    }
+
+    public static long cellOf(double latitude, double longitude) {
+        return key(row(latitude), column(longitude));
+    }
+
+    public static long cellOf(LiveVehicle vehicle) {
+        return cellOf(vehicle.getLatitude(), vehicle.getLongitude());
+    }
+
+    public static long cellCount(BoundingBox box) {
+        long rows = row(box.maxLat()) - row(box.minLat()) + 1L;
+        long columns = column(box.maxLon()) - column(box.minLon()) + 1L;
+        return rows * columns;
+    }
+
+    public static void forEachCell(BoundingBox box, LongConsumer action) {
+        int maxRow = row(box.maxLat());
+        int maxColumn = column(box.maxLon());
+        for (int row = row(box.minLat()); row <= maxRow; row++) {
+            for (int column = column(box.minLon()); column <= maxColumn; column++) {
+                action.accept(key(row, column));
+            }
+        }
+    }
+
+    private static int row(double latitude) {
+        return (int) Math.floor(latitude / CELL_DEGREES);
+    }
+
+    private static int column(double longitude) {
+        return (int) Math.floor(longitude / CELL_DEGREES);
+    }
+
+    private static long key(int row, int column) {
+        return ((long) row << 32) | (column & 0xFFFFFFFFL);
+    }
+}
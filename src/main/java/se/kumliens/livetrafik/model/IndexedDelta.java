@@ -0,0 +1,156 @@
+package se.kumliens.livetrafik.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A vehicle delta payload indexed by vehicle: the id and byte range of every
+ * vehicle object in the original JSON. Several deltas can then be merged into
+ * one body by splicing those ranges, without decoding or re-encoding vehicles.
+ */
+public record IndexedDelta(
+    List<Slice> vehicles,
+    List<String> removedVehicleIds,
+    String region,
+    String vehicleType,
+    Long timestamp
+) {
+
+    private static final byte[] VEHICLES_START = "{\"vehicles\":[".getBytes();
+    private static final byte[] REMOVED_FIELD = "],\"removed_vehicle_ids\":".getBytes();
+
+    /**
+     * A vehicle object within {@code source}, {@code [start, end)} in bytes.
+     * {@code vehicleId} is {@code null} for a vehicle sent without one.
+     */
+    public record Slice(String vehicleId, byte[] source, int start, int end) {
+    }
+
+    public static IndexedDelta parse(ObjectMapper objectMapper, byte[] payload) throws IOException {
+        List<Slice> vehicles = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        String region = null;
+        String vehicleType = null;
+        Long timestamp = null;
+        try (JsonParser parser = objectMapper.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Vehicle delta is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "vehicles" -> readVehicles(parser, value, payload, vehicles);
+                    case "removed_vehicle_ids" -> {
+                        while (value == JsonToken.START_ARRAY && parser.nextToken() != JsonToken.END_ARRAY) {
+                            removed.add(parser.getValueAsString());
+                        }
+                    }
+                    case "region" -> region = parser.getValueAsString();
+                    case "vehicleType" -> vehicleType = parser.getValueAsString();
+                    case "timestamp" -> timestamp = value == JsonToken.VALUE_NUMBER_INT ? parser.getLongValue() : null;
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        return new IndexedDelta(vehicles, removed, region, vehicleType, timestamp);
+    }
+
+    /**
+     * Merges deltas, oldest first, with the cache's remove-first semantics: a
+     * later upsert replaces earlier data for a vehicle and a later removal
+     * cancels earlier upserts. Vehicles without an id are all kept. Region, type
+     * and timestamp come from the newest delta that carries them and are left
+     * out if none does.
+     */
+    public static byte[] merge(ObjectMapper objectMapper, List<IndexedDelta> deltas) throws IOException {
+        // Keyed by id, or by the slice itself for vehicles without one, which nothing can supersede
+        Map<Object, Slice> upserts = new LinkedHashMap<>();
+        Set<String> removed = new LinkedHashSet<>();
+        String region = null;
+        String vehicleType = null;
+        Long timestamp = null;
+        int size = 0;
+        for (IndexedDelta delta : deltas) {
+            for (String vehicleId : delta.removedVehicleIds) {
+                upserts.remove(vehicleId);
+                removed.add(vehicleId);
+            }
+            for (Slice slice : delta.vehicles) {
+                if (slice.vehicleId == null) {
+                    upserts.put(slice, slice);
+                } else {
+                    upserts.remove(slice.vehicleId);
+                    upserts.put(slice.vehicleId, slice);
+                    removed.remove(slice.vehicleId);
+                }
+                size += slice.end - slice.start + 1;
+            }
+            region = delta.region != null ? delta.region : region;
+            vehicleType = delta.vehicleType != null ? delta.vehicleType : vehicleType;
+            timestamp = delta.timestamp != null ? delta.timestamp : timestamp;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 256);
+        out.write(VEHICLES_START);
+        boolean first = true;
+        for (Slice slice : upserts.values()) {
+            if (!first) {
+                out.write(',');
+            }
+            out.write(slice.source, slice.start, slice.end - slice.start);
+            first = false;
+        }
+        out.write(REMOVED_FIELD);
+        out.write(objectMapper.writeValueAsBytes(removed));
+        writeField(objectMapper, out, "region", region);
+        writeField(objectMapper, out, "vehicleType", vehicleType);
+        writeField(objectMapper, out, "timestamp", timestamp);
+        out.write('}');
+        return out.toByteArray();
+    }
+
+    private static void writeField(ObjectMapper objectMapper, ByteArrayOutputStream out, String name, Object value)
+            throws IOException {
+        if (value == null) {
+            return;
+        }
+        out.write(',');
+        out.write(objectMapper.writeValueAsBytes(name));
+        out.write(':');
+        out.write(objectMapper.writeValueAsBytes(value));
+    }
+
+    private static void readVehicles(JsonParser parser, JsonToken value, byte[] payload, List<Slice> vehicles)
+            throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            int start = (int) parser.currentTokenLocation().getByteOffset();
+            String vehicleId = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (LiveVehicle.VEHICLE_ID.equals(field) && token == JsonToken.VALUE_STRING) {
+                    vehicleId = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            int end = (int) parser.currentTokenLocation().getByteOffset() + 1;
+            vehicles.add(new Slice(vehicleId, payload, start, end));
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package se.kumliens.livetrafik.model;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Compact, immutable representation of a single vehicle as broadcast by the
+ * Supabase Edge Functions. Well-known attributes are held in primitive or
+ * interned fields; anything else is kept verbatim in a flat {@code extras}
+ * slot so the JSON written back to clients carries every upstream field.
+ * <p>
+ * Numeric attributes that were absent upstream are {@link Double#NaN} and are
+ * omitted when serialized; ones sent as JSON integers are written back as
+ * integers. The written object has the same fields and values as the upstream
+ * one, but not necessarily in the same order: the well-known attributes come
+ * first, followed by the others in the order they were received.
+ */
+@Getter
+@Builder(toBuilder = true)
+@JsonSerialize(using = LiveVehicle.Serializer.class)
+@JsonDeserialize(using = LiveVehicle.Deserializer.class)
+public final class LiveVehicle {
+
+    public static final String VEHICLE_ID = "vehicle_id";
+    public static final String TRIP_ID = "trip_id";
+    public static final String ROUTE = "route";
+    public static final String ROUTE_ID = "route_id";
+    public static final String LATITUDE = "latitude";
+    public static final String LONGITUDE = "longitude";
+    public static final String BEARING = "bearing";
+    public static final String SPEED = "speed";
+    public static final String UPDATED_AT = "updated_at";
+
+    private static final String[] NO_NAMES = new String[0];
+    private static final Object[] NO_VALUES = new Object[0];
+    private static final int LATITUDE_INTEGRAL = 1;
+    private static final int LONGITUDE_INTEGRAL = 1 << 1;
+    private static final int BEARING_INTEGRAL = 1 << 2;
+    private static final int SPEED_INTEGRAL = 1 << 3;
+
+    private final String vehicleId;
+    private final String tripId;
+    private final String route;
+    private final String routeId;
+    @Builder.Default
+    private final double latitude = Double.NaN;
+    @Builder.Default
+    private final double longitude = Double.NaN;
+    @Builder.Default
+    private final double bearing = Double.NaN;
+    @Builder.Default
+    private final double speed = Double.NaN;
+    private final String updatedAt;
+    /** {@code updated_at} in epoch millis, or {@code 0} when absent or unparseable. */
+    private final long updatedAtMillis;
+    /** Bit per numeric attribute that was sent as a JSON integer. */
+    @Getter(AccessLevel.NONE)
+    private final int integralNumbers;
+    /** Names of attributes without a dedicated field, parallel to {@link #extraValues}. */
+    @Getter(AccessLevel.NONE)
+    @Builder.Default
+    private final String[] extraNames = NO_NAMES;
+    /** String, Boolean, Number, {@code null} or {@link JsonNode} for nested values. */
+    @Getter(AccessLevel.NONE)
+    @Builder.Default
+    private final Object[] extraValues = NO_VALUES;
+
+    public boolean hasPosition() {
+        return !Double.isNaN(latitude) && !Double.isNaN(longitude);
+    }
+
+    /**
+     * The route the vehicle is indexed and published under: {@code route_id},
+     * or the line in {@code route} for feeds that do not send one.
+     */
+    public String routeKey() {
+        String key = routeId != null && !routeId.isBlank() ? routeId : route;
+        return key == null || key.isBlank() ? null : key.trim();
+    }
+
+    /**
+     * Returns the value of an attribute without a dedicated field, or
+     * {@code null} if it was not sent.
+     */
+    public Object extra(String name) {
+        int index = indexOfExtra(name);
+        return index < 0 ? null : extraValues[index];
+    }
+
+    /**
+     * Returns what changed since {@code previous} as a partial vehicle:
+     * {@code vehicle_id}, the attributes whose values differ and
+     * {@code updated_at}. Attributes that are no longer sent are carried as
+     * {@code null}. Returns {@code null} if only {@code updated_at} changed, and
+     * this vehicle if there is no previous version.
+     */
+    public LiveVehicle changesSince(LiveVehicle previous) {
+        if (previous == null) {
+            return this;
+        }
+        LiveVehicleBuilder diff = LiveVehicle.builder().vehicleId(vehicleId).integralNumbers(integralNumbers);
+        List<String> names = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        boolean changed = false;
+        if (!Objects.equals(tripId, previous.tripId)) {
+            changed = true;
+            diff.tripId(cleared(TRIP_ID, tripId, names, values));
+        }
+        if (!Objects.equals(route, previous.route)) {
+            changed = true;
+            diff.route(cleared(ROUTE, route, names, values));
+        }
+        if (!Objects.equals(routeId, previous.routeId)) {
+            changed = true;
+            diff.routeId(cleared(ROUTE_ID, routeId, names, values));
+        }
+        if (Double.compare(latitude, previous.latitude) != 0) {
+            changed = true;
+            diff.latitude(cleared(LATITUDE, latitude, names, values));
+        }
+        if (Double.compare(longitude, previous.longitude) != 0) {
+            changed = true;
+            diff.longitude(cleared(LONGITUDE, longitude, names, values));
+        }
+        if (Double.compare(bearing, previous.bearing) != 0) {
+            changed = true;
+            diff.bearing(cleared(BEARING, bearing, names, values));
+        }
+        if (Double.compare(speed, previous.speed) != 0) {
+            changed = true;
+            diff.speed(cleared(SPEED, speed, names, values));
+        }
+        for (int i = 0; i < extraNames.length; i++) {
+            int before = previous.indexOfExtra(extraNames[i]);
+            if (before < 0 || !Objects.equals(extraValues[i], previous.extraValues[before])) {
+                changed = true;
+                names.add(extraNames[i]);
+                values.add(extraValues[i]);
+            }
+        }
+        for (String name : previous.extraNames) {
+            if (indexOfExtra(name) < 0) {
+                changed = true;
+                names.add(name);
+                values.add(null);
+            }
+        }
+        if (!changed) {
+            return null;
+        }
+        if (!names.isEmpty()) {
+            diff.extraNames(names.toArray(NO_NAMES)).extraValues(values.toArray());
+        }
+        return diff.updatedAt(updatedAt).updatedAtMillis(updatedAtMillis).build();
+    }
+
+    private int indexOfExtra(String name) {
+        for (int i = 0; i < extraNames.length; i++) {
+            if (extraNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Passes {@code value} through, recording an explicit {@code null} for the attribute if it is absent. */
+    private static String cleared(String name, String value, List<String> names, List<Object> values) {
+        if (value == null) {
+            names.add(name);
+            values.add(null);
+        }
+        return value;
+    }
+
+    private static double cleared(String name, double value, List<String> names, List<Object> values) {
+        if (Double.isNaN(value)) {
+            names.add(name);
+            values.add(null);
+        }
+        return value;
+    }
+
+    static long parseUpdatedAt(String updatedAt) {
+        if (updatedAt == null || updatedAt.isBlank()) {
+            return 0L;
+        }
+        try {
+            return Instant.parse(updatedAt).toEpochMilli();
+        } catch (Exception ex) {
+            return 0L;
+        }
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : value.intern();
+    }
+
+    public static final class Serializer extends JsonSerializer<LiveVehicle> {
+
+        @Override
+        public void serialize(LiveVehicle vehicle, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeStartObject();
+            writeString(gen, VEHICLE_ID, vehicle.vehicleId);
+            writeString(gen, TRIP_ID, vehicle.tripId);
+            writeString(gen, ROUTE, vehicle.route);
+            writeString(gen, ROUTE_ID, vehicle.routeId);
+            writeNumber(gen, LATITUDE, vehicle.latitude, (vehicle.integralNumbers & LATITUDE_INTEGRAL) != 0);
+            writeNumber(gen, LONGITUDE, vehicle.longitude, (vehicle.integralNumbers & LONGITUDE_INTEGRAL) != 0);
+            writeNumber(gen, BEARING, vehicle.bearing, (vehicle.integralNumbers & BEARING_INTEGRAL) != 0);
+            writeNumber(gen, SPEED, vehicle.speed, (vehicle.integralNumbers & SPEED_INTEGRAL) != 0);
+            writeString(gen, UPDATED_AT, vehicle.updatedAt);
+            for (int i = 0; i < vehicle.extraNames.length; i++) {
+                gen.writeFieldName(vehicle.extraNames[i]);
+                writeExtra(gen, vehicle.extraValues[i]);
+            }
+            gen.writeEndObject();
+        }
+
+        private static void writeString(JsonGenerator gen, String name, String value) throws IOException {
+            if (value != null) {
+                gen.writeStringField(name, value);
+            }
+        }
+
+        private static void writeNumber(JsonGenerator gen, String name, double value, boolean integral)
+                throws IOException {
+            if (Double.isNaN(value)) {
+                return;
+            }
+            if (integral) {
+                gen.writeNumberField(name, (long) value);
+            } else {
+                gen.writeNumberField(name, value);
+            }
+        }
+
+        private static void writeExtra(JsonGenerator gen, Object value) throws IOException {
+            switch (value) {
+                case null -> gen.writeNull();
+                case String s -> gen.writeString(s);
+                case Boolean b -> gen.writeBoolean(b);
+                case Integer n -> gen.writeNumber(n);
+                case Long n -> gen.writeNumber(n);
+                case Double n -> gen.writeNumber(n);
+                case BigInteger n -> gen.writeNumber(n);
+                case BigDecimal n -> gen.writeNumber(n);
+                case JsonNode node -> gen.writeTree(node);
+                default -> gen.writeObject(value);
+            }
+        }
+    }
+
+    public static final class Deserializer extends JsonDeserializer<LiveVehicle> {
+
+        @Override
+        public LiveVehicle deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
+            if (!parser.isExpectedStartObjectToken()) {
+                return (LiveVehicle) ctxt.handleUnexpectedToken(LiveVehicle.class, parser);
+            }
+            LiveVehicleBuilder builder = LiveVehicle.builder();
+            List<String> names = null;
+            List<Object> values = null;
+            int integralNumbers = 0;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (readKnownField(field, token, parser, builder)) {
+                    if (token == JsonToken.VALUE_NUMBER_INT) {
+                        integralNumbers |= integralBit(field);
+                    }
+                    continue;
+                }
+                if (names == null) {
+                    names = new ArrayList<>(8);
+                    values = new ArrayList<>(8);
+                }
+                names.add(field);
+                values.add(readExtra(token, parser, ctxt));
+            }
+
+            if (names != null) {
+                builder.extraNames(names.toArray(NO_NAMES));
+                builder.extraValues(values.toArray());
+            }
+            return builder.integralNumbers(integralNumbers).build();
+        }
+
+        private static int integralBit(String field) {
+            return switch (field) {
+                case LATITUDE -> LATITUDE_INTEGRAL;
+                case LONGITUDE -> LONGITUDE_INTEGRAL;
+                case BEARING -> BEARING_INTEGRAL;
+                case SPEED -> SPEED_INTEGRAL;
+                default -> 0;
+            };
+        }
+
+        private static boolean readKnownField(String field, JsonToken token, JsonParser parser, LiveVehicleBuilder builder)
+                throws IOException {
+            boolean isText = token == JsonToken.VALUE_STRING;
+            // Integers beyond a long would not survive the double, so they stay verbatim in extras
+            boolean isNumber = token == JsonToken.VALUE_NUMBER_FLOAT
+                || token == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER;
+            switch (field) {
+                case VEHICLE_ID -> {
+                    if (!isText) {
+                        return false;
+                    }
+                    builder.vehicleId(parser.getText());
+                }
+                case TRIP_ID -> {
+                    if (!isText) {
+                        return false;
+                    }
+                    builder.tripId(intern(parser.getText()));
+                }
+                case ROUTE -> {
+                    if (!isText) {
+                        return false;
+                    }
+                    builder.route(intern(parser.getText()));
+                }
+                case ROUTE_ID -> {
+                    if (!isText) {
+                        return false;
+                    }
+                    builder.routeId(intern(parser.getText()));
+                }
+                case UPDATED_AT -> {
+                    if (!isText) {
+                        return false;
+                    }
+                    String updatedAt = parser.getText();
+                    builder.updatedAt(updatedAt).updatedAtMillis(parseUpdatedAt(updatedAt));
+                }
+                case LATITUDE -> {
+                    if (!isNumber) {
+                        return false;
+                    }
+                    builder.latitude(parser.getDoubleValue());
+                }
+                case LONGITUDE -> {
+                    if (!isNumber) {
+                        return false;
+                    }
+                    builder.longitude(parser.getDoubleValue());
+                }
+                case BEARING -> {
+                    if (!isNumber) {
+                        return false;
+                    }
+                    builder.bearing(parser.getDoubleValue());
+                }
+                case SPEED -> {
+                    if (!isNumber) {
+                        return false;
+                    }
+                    builder.speed(parser.getDoubleValue());
+                }
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static Object readExtra(JsonToken token, JsonParser parser, DeserializationContext ctxt) throws IOException {
+            return switch (token) {
+                case VALUE_STRING -> parser.getText();
+                case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> parser.getNumberValue();
+                case VALUE_TRUE -> Boolean.TRUE;
+                case VALUE_FALSE -> Boolean.FALSE;
+                case VALUE_NULL -> null;
+                default -> ctxt.readTree(parser);
+            };
+        }
+    }
+}
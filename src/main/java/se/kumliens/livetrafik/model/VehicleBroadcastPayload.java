@@ -2,10 +2,13 @@ package se.kumliens.livetrafik.model;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -19,8 +22,12 @@ import lombok.Setter;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class VehicleBroadcastPayload {
 
+    /** Content type of field-level deltas, whose vehicles only carry the attributes that changed. */
+    public static final MimeType FIELD_DIFF_CONTENT_TYPE =
+        new MimeType(MimeTypeUtils.APPLICATION_JSON, Map.of("delta", "fields"));
+
     @JsonProperty("vehicles")
-    private List<ObjectNode> vehicles = Collections.emptyList();
+    private List<LiveVehicle> vehicles = Collections.emptyList();
 
     @JsonProperty("removed_vehicle_ids")
     private List<String> removedVehicleIds = Collections.emptyList();
@@ -29,7 +36,7 @@ public class VehicleBroadcastPayload {
     private String vehicleType;
     private Long timestamp;
 
-    public List<ObjectNode> getVehicles() {
+    public List<LiveVehicle> getVehicles() {
         return vehicles == null ? Collections.emptyList() : vehicles;
     }
 
@@ -0,0 +1,161 @@
+package se.kumliens.livetrafik.monitoring;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Counts sessions that negotiated {@code permessage-deflate} per endpoint and
+ * estimates what compression buys and costs. The container's compressor
+ * exposes no numbers, so a sample of outgoing frames on compressed sessions
+ * is deflated again here at the same (default) level: each sample records
+ * its compression ratio and the time spent deflating it. Every sample is
+ * compressed on its own, which matches sessions without context takeover;
+ * with context takeover the real ratio is at least as good.
+ */
+@Component
+public class WebSocketDeflateMetrics implements WebSocketHandlerDecoratorFactory {
+
+    private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+
+    private final MeterRegistry meterRegistry;
+    private final double sampleRate;
+    /** One compressor for all samples; a sample is skipped rather than waiting for it. */
+    private final ReentrantLock deflaterLock = new ReentrantLock();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] buffer = new byte[16 * 1024];
+
+    public WebSocketDeflateMetrics(MeterRegistry meterRegistry,
+            @Value("${websocket.deflate.sample-rate:0.05}") double sampleRate) {
+        this.meterRegistry = meterRegistry;
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                WebSocketExtension deflate = negotiatedDeflate(session);
+                if (deflate == null) {
+                    super.afterConnectionEstablished(session);
+                    return;
+                }
+                String endpoint = endpointOf(session.getUri());
+                Counter.builder("trafik.ws.deflate.sessions")
+                    .description("WebSocket sessions that negotiated permessage-deflate")
+                    .tag("endpoint", endpoint)
+                    .tag("context_takeover",
+                        Boolean.toString(!deflate.getParameters().containsKey(SERVER_NO_CONTEXT_TAKEOVER)))
+                    .register(meterRegistry)
+                    .increment();
+                super.afterConnectionEstablished(sampleRate > 0 ? new SampledSession(session, endpoint) : session);
+            }
+        };
+    }
+
+    @PreDestroy
+    void release() {
+        deflaterLock.lock();
+        try {
+            deflater.end();
+        } finally {
+            deflaterLock.unlock();
+        }
+    }
+
+    private static WebSocketExtension negotiatedDeflate(WebSocketSession session) {
+        for (WebSocketExtension extension : session.getExtensions()) {
+            if (PERMESSAGE_DEFLATE.equalsIgnoreCase(extension.getName())) {
+                return extension;
+            }
+        }
+        return null;
+    }
+
+    private static String endpointOf(URI uri) {
+        return uri != null && uri.getPath().startsWith("/ws-native") ? "native" : "sockjs";
+    }
+
+    private void sample(String endpoint, WebSocketMessage<?> message) {
+        byte[] payload = switch (message) {
+            case TextMessage text -> text.asBytes();
+            case BinaryMessage binary -> copy(binary.getPayload());
+            default -> null;
+        };
+        if (payload == null || payload.length == 0 || !deflaterLock.tryLock()) {
+            return;
+        }
+        int compressed = 0;
+        long start = System.nanoTime();
+        try {
+            deflater.reset();
+            deflater.setInput(payload);
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buffer);
+            }
+        } finally {
+            deflaterLock.unlock();
+        }
+        long elapsed = System.nanoTime() - start;
+        Timer.builder("trafik.ws.deflate.time")
+            .description("Time to deflate a sampled outgoing frame, a proxy for compression CPU cost")
+            .tag("endpoint", endpoint)
+            .register(meterRegistry)
+            .record(elapsed, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder("trafik.ws.deflate.ratio")
+            .description("Uncompressed to compressed size of sampled outgoing frames")
+            .tag("endpoint", endpoint)
+            .register(meterRegistry)
+            .record((double) payload.length / Math.max(1, compressed));
+    }
+
+    private static byte[] copy(ByteBuffer payload) {
+        ByteBuffer view = payload.duplicate();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
+    private final class SampledSession extends WebSocketSessionDecorator {
+
+        private final String endpoint;
+
+        private SampledSession(WebSocketSession session, String endpoint) {
+            super(session);
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            super.sendMessage(message);
+            if (ThreadLocalRandom.current().nextDouble() < sampleRate) {
+                sample(endpoint, message);
+            }
+        }
+    }
+}
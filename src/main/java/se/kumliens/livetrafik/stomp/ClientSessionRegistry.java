@@ -0,0 +1,115 @@
+package se.kumliens.livetrafik.stomp;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tracks the open client WebSocket sessions by id so outbound components can
+ * reach a session directly, e.g. to close a client that cannot keep up or to
+ * write a frame that was encoded once for all subscribers. Registered as a
+ * transport decorator in {@code WebSocketConfig}.
+ * <p>
+ * Sessions are handed on to the STOMP handler behind a send lock, so direct
+ * writes from here and Spring's own writes never interleave.
+ */
+@Component
+@Slf4j
+public class ClientSessionRegistry implements WebSocketHandlerDecoratorFactory {
+
+    private final Map<String, SerializedSession> sessions = new ConcurrentHashMap<>();
+
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                SerializedSession serialized = new SerializedSession(session);
+                sessions.put(session.getId(), serialized);
+                super.afterConnectionEstablished(serialized);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                // Unregister first so nothing new is routed to the session while it is torn down
+                sessions.remove(session.getId());
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+
+    public boolean isOpen(String sessionId) {
+        return sessions.containsKey(sessionId);
+    }
+
+    public WebSocketSession find(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Writes a message straight to the session. Returns {@code false} if the
+     * session is no longer registered.
+     */
+    public boolean send(String sessionId, WebSocketMessage<?> message) throws IOException {
+        WebSocketSession session = sessions.get(sessionId);
+        if (session == null) {
+            return false;
+        }
+        session.sendMessage(message);
+        return true;
+    }
+
+    /** SockJS carries text frames only. */
+    public boolean supportsBinary(String sessionId) {
+        SerializedSession session = sessions.get(sessionId);
+        return session != null && !(WebSocketSessionDecorator.unwrap(session) instanceof SockJsSession);
+    }
+
+    public void close(String sessionId, CloseStatus status) {
+        WebSocketSession session = sessions.get(sessionId);
+        if (session == null) {
+            return;
+        }
+        try {
+            session.close(status);
+        } catch (IOException ex) {
+            log.debug("Failed to close session {}", sessionId, ex);
+        }
+    }
+
+    private static final class SerializedSession extends WebSocketSessionDecorator {
+
+        private final ReentrantLock sendLock = new ReentrantLock();
+
+        private SerializedSession(WebSocketSession session) {
+            super(session);
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            sendLock.lock();
+            try {
+                super.sendMessage(message);
+            } finally {
+                sendLock.unlock();
+            }
+        }
+    }
+}
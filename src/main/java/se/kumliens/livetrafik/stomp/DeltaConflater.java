@@ -0,0 +1,95 @@
+package se.kumliens.livetrafik.stomp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.kumliens.livetrafik.model.IndexedDelta;
+
+/**
+ * Merges runs of undelivered vehicle deltas into one body via
+ * {@link IndexedDelta#merge}. The broker hands every subscriber the same
+ * payload instance, so indexes and merged bodies are memoised by payload
+ * identity and shared by sessions that lag on the same deltas.
+ */
+final class DeltaConflater {
+
+    private static final int MAX_CACHED = 256;
+
+    private final ObjectMapper objectMapper;
+    private final Map<PayloadRun, IndexedDelta> indexed = new ConcurrentHashMap<>();
+    private final Map<PayloadRun, byte[]> merged = new ConcurrentHashMap<>();
+
+    DeltaConflater(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    byte[] merge(List<byte[]> payloads) throws IOException {
+        PayloadRun run = new PayloadRun(payloads.toArray(byte[][]::new));
+        byte[] body = merged.get(run);
+        if (body == null) {
+            List<IndexedDelta> deltas = new ArrayList<>(payloads.size());
+            for (byte[] payload : payloads) {
+                deltas.add(index(payload));
+            }
+            body = IndexedDelta.merge(objectMapper, deltas);
+            cache(merged, run, body);
+        }
+        return body;
+    }
+
+    private IndexedDelta index(byte[] payload) throws IOException {
+        PayloadRun key = new PayloadRun(new byte[][] {payload});
+        IndexedDelta delta = indexed.get(key);
+        if (delta == null) {
+            delta = IndexedDelta.parse(objectMapper, payload);
+            cache(indexed, key, delta);
+        }
+        return delta;
+    }
+
+    private static <V> void cache(Map<PayloadRun, V> cache, PayloadRun key, V value) {
+        if (cache.size() >= MAX_CACHED) {
+            // Runs only repeat while sessions lag on the same deltas; older entries are dead weight
+            cache.clear();
+        }
+        cache.put(key, value);
+    }
+
+    /** Sequence of payloads compared by identity, never by content. */
+    private static final class PayloadRun {
+        private final byte[][] payloads;
+        private final int hash;
+
+        private PayloadRun(byte[][] payloads) {
+            this.payloads = payloads;
+            int h = 1;
+            for (byte[] payload : payloads) {
+                h = 31 * h + System.identityHashCode(payload);
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof PayloadRun run) || run.payloads.length != payloads.length) {
+                return false;
+            }
+            for (int i = 0; i < payloads.length; i++) {
+                if (run.payloads[i] != payloads[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package se.kumliens.livetrafik.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import se.kumliens.livetrafik.CborEncoder;
+
+/**
+ * A STOMP MESSAGE frame encoded once for every subscriber of a destination.
+ * The frame is split around the {@code subscription} header value, so a
+ * session's copy only needs that value patched in; copies are memoised per
+ * subscription id since clients tend to reuse the same ids ({@code sub-0}).
+ */
+final class PreEncodedFrame {
+
+    /** Message header carrying the frame on per-session messages. */
+    static final String HEADER = "trafik.preEncodedFrame";
+
+    private static final String SUBSCRIPTION_MARKER = "\u0001subscription\u0001";
+    private static final int MAX_CACHED = 64;
+
+    private final byte[] payload;
+    private final byte[] head;
+    private final byte[] tail;
+    private final boolean binary;
+    private final Map<String, WebSocketMessage<?>> textBySubscription = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> bytesBySubscription = new ConcurrentHashMap<>();
+
+    private PreEncodedFrame(byte[] payload, byte[] head, byte[] tail, boolean binary) {
+        this.payload = payload;
+        this.head = head;
+        this.tail = tail;
+        this.binary = binary;
+    }
+
+    static PreEncodedFrame encode(StompEncoder encoder, String destination, MimeType contentType,
+            Map<String, List<String>> nativeHeaders, String messageId, byte[] payload) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.MESSAGE);
+        if (nativeHeaders != null) {
+            nativeHeaders.forEach((name, values) -> values.forEach(value -> accessor.addNativeHeader(name, value)));
+        }
+        accessor.setDestination(destination);
+        if (contentType != null) {
+            accessor.setContentType(contentType);
+        }
+        accessor.setSubscriptionId(SUBSCRIPTION_MARKER);
+        accessor.setMessageId(messageId);
+        byte[] frame = encoder.encode(accessor.getMessageHeaders(), payload);
+
+        // Headers precede the body, so the first hit is the subscription header
+        byte[] marker = SUBSCRIPTION_MARKER.getBytes(StandardCharsets.UTF_8);
+        int at = indexOf(frame, marker);
+        byte[] head = Arrays.copyOfRange(frame, 0, at);
+        byte[] tail = Arrays.copyOfRange(frame, at + marker.length, frame.length);
+        boolean binary = payload.length > 0 && contentType != null
+            && (MimeTypeUtils.APPLICATION_OCTET_STREAM.isCompatibleWith(contentType) || CborEncoder.isCbor(contentType));
+        return new PreEncodedFrame(payload, head, tail, binary);
+    }
+
+    /**
+     * Returns the frame attached to a per-session message, or {@code null} if
+     * there is none or the payload was replaced (e.g. by conflation) since.
+     */
+    static PreEncodedFrame from(Message<?> message) {
+        return message.getHeaders().get(HEADER) instanceof PreEncodedFrame frame && frame.payload == message.getPayload()
+            ? frame
+            : null;
+    }
+
+    /** Whether the frame is written as a binary WebSocket message where the transport allows it. */
+    boolean binary() {
+        return binary;
+    }
+
+    /** The message body the frame was encoded from. */
+    byte[] payload() {
+        return payload;
+    }
+
+    /**
+     * The WebSocket message for one subscription. Binary frames fall back to
+     * text on transports that cannot carry binary messages, as Spring's STOMP
+     * handler does for SockJS.
+     */
+    WebSocketMessage<?> toWebSocketMessage(String subscriptionId, boolean binarySupported) {
+        if (binary && binarySupported) {
+            // A BinaryMessage's buffer is consumed on send, so only the bytes are shared
+            return new BinaryMessage(bytesFor(subscriptionId));
+        }
+        WebSocketMessage<?> text = textBySubscription.get(subscriptionId);
+        if (text == null) {
+            text = new TextMessage(bytesFor(subscriptionId));
+            if (textBySubscription.size() < MAX_CACHED) {
+                textBySubscription.put(subscriptionId, text);
+            }
+        }
+        return text;
+    }
+
+    private byte[] bytesFor(String subscriptionId) {
+        byte[] bytes = bytesBySubscription.get(subscriptionId);
+        if (bytes == null) {
+            byte[] id = escape(subscriptionId).getBytes(StandardCharsets.UTF_8);
+            bytes = new byte[head.length + id.length + tail.length];
+            System.arraycopy(head, 0, bytes, 0, head.length);
+            System.arraycopy(id, 0, bytes, head.length, id.length);
+            System.arraycopy(tail, 0, bytes, head.length + id.length, tail.length);
+            if (bytesBySubscription.size() < MAX_CACHED) {
+                bytesBySubscription.put(subscriptionId, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    /** STOMP 1.2 header value escaping, as {@link StompEncoder} applies to MESSAGE frames. */
+    private static String escape(String value) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement = switch (c) {
+                case '\\' -> "\\\\";
+                case ':' -> "\\c";
+                case '\n' -> "\\n";
+                case '\r' -> "\\r";
+                default -> null;
+            };
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(value.length() + 8).append(value, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped != null ? escaped.toString() : value;
+    }
+
+    private static int indexOf(byte[] source, byte[] target) {
+        outer:
+        for (int i = 0; i <= source.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (source[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        throw new IllegalStateException("Subscription marker missing from encoded frame");
+    }
+}
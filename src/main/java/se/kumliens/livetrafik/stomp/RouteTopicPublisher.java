@@ -0,0 +1,187 @@
+package se.kumliens.livetrafik.stomp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import se.kumliens.livetrafik.VehicleCacheService;
+import se.kumliens.livetrafik.VehicleChangeListener;
+import se.kumliens.livetrafik.VehicleSnapshot;
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Publishes route topics, {@code /topic/{region}/vehicles/{type}/route/{routeId}}.
+ * Each cache change is split per route: a route's topic gets the upserts of
+ * vehicles on it and removals for vehicles that were removed or switched to
+ * another route. Only routes somebody subscribes to are encoded and published;
+ * the broker then fans each slice out like any other topic message.
+ */
+@Component
+@Slf4j
+public class RouteTopicPublisher implements VehicleChangeListener {
+
+    static final String ROUTE_SEGMENT = "/route/";
+
+    private final SimpMessagingTemplate messagingTemplate;
+    private final ObjectMapper objectMapper;
+    /** Route topic → number of subscriptions to it. */
+    private final Map<String, Integer> subscriptionCounts = new ConcurrentHashMap<>();
+    /** sessionId → subscriptionId → route topic, for unsubscribe and disconnect. */
+    private final Map<String, Map<String, String>> routeSubscriptionsBySession = new ConcurrentHashMap<>();
+    private final Counter messagesCounter;
+
+    public RouteTopicPublisher(
+            VehicleCacheService vehicleCacheService,
+            SimpMessagingTemplate messagingTemplate,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry) {
+        this.messagingTemplate = messagingTemplate;
+        this.objectMapper = objectMapper;
+        this.messagesCounter = Counter.builder("trafik.stomp.route.messages")
+            .description("Per-route vehicle deltas published to route topics")
+            .register(meterRegistry);
+        Gauge.builder("trafik.stomp.route.topics", subscriptionCounts, Map::size)
+            .description("Route topics with at least one subscription")
+            .register(meterRegistry);
+        vehicleCacheService.addChangeListener(this);
+    }
+
+    /** Returns {@code true} for destinations such as {@code /topic/sl/vehicles/bus/route/9011001000400000}. */
+    static boolean isRouteTopic(String destination) {
+        if (destination == null || !destination.startsWith("/topic/")) {
+            return false;
+        }
+        String[] parts = destination.substring("/topic/".length()).split("/", -1);
+        return parts.length == 5 && "vehicles".equals(parts[1]) && "route".equals(parts[3])
+            && !parts[0].isBlank() && !parts[2].isBlank() && !parts[4].isBlank();
+    }
+
+    static String routeTopic(VehicleSnapshot snapshot, String route) {
+        return "/topic/" + snapshot.region() + "/vehicles/" + snapshot.vehicleType() + ROUTE_SEGMENT + route;
+    }
+
+    @EventListener
+    public void handleSubscribe(SessionSubscribeEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        String destination = accessor.getDestination();
+        String sessionId = accessor.getSessionId();
+        String subscriptionId = accessor.getSubscriptionId();
+        if (sessionId == null || subscriptionId == null || !isRouteTopic(destination)) {
+            return;
+        }
+        String previous = routeSubscriptionsBySession
+            .computeIfAbsent(sessionId, id -> new ConcurrentHashMap<>())
+            .put(subscriptionId, destination);
+        if (previous != null) {
+            release(previous);
+        }
+        subscriptionCounts.merge(destination, 1, Integer::sum);
+    }
+
+    @EventListener
+    public void handleUnsubscribe(SessionUnsubscribeEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        Map<String, String> subscriptions = accessor.getSessionId() == null ? null
+            : routeSubscriptionsBySession.get(accessor.getSessionId());
+        String destination = subscriptions == null || accessor.getSubscriptionId() == null ? null
+            : subscriptions.remove(accessor.getSubscriptionId());
+        if (destination != null) {
+            release(destination);
+        }
+    }
+
+    @EventListener
+    public void handleSessionDisconnect(SessionDisconnectEvent event) {
+        Map<String, String> subscriptions = routeSubscriptionsBySession.remove(event.getSessionId());
+        if (subscriptions != null) {
+            subscriptions.values().forEach(this::release);
+        }
+    }
+
+    @Override
+    public void onChange(VehicleSnapshot snapshot, List<LiveVehicle> upserted, List<String> removedIds,
+            Map<String, String> departedRoutes) {
+        if (subscriptionCounts.isEmpty()) {
+            return;
+        }
+        Map<String, Slice> slices = new LinkedHashMap<>();
+        Map<String, String> finalRoutes = new HashMap<>();
+        for (LiveVehicle vehicle : upserted) {
+            String route = vehicle.routeKey();
+            finalRoutes.put(vehicle.getVehicleId(), route);
+            Slice slice = slice(slices, snapshot, route);
+            if (slice != null) {
+                slice.vehicles.add(vehicle);
+            }
+        }
+        departedRoutes.forEach((vehicleId, route) -> {
+            // Left the route (or the feed) unless an upsert in this change put it back on it
+            Slice slice = route.equals(finalRoutes.get(vehicleId)) ? null : slice(slices, snapshot, route);
+            if (slice != null) {
+                slice.removed.add(vehicleId);
+            }
+        });
+        Map<LiveVehicle, byte[]> encoded = new IdentityHashMap<>();
+        slices.forEach((destination, slice) -> publish(destination,
+            VehicleDeltaJson.encode(objectMapper, slice.vehicles, slice.removed, snapshot, encoded)));
+    }
+
+    /** Returns the slice for a subscribed route topic, or {@code null} for routes nobody follows. */
+    private Slice slice(Map<String, Slice> slices, VehicleSnapshot snapshot, String route) {
+        if (route == null) {
+            return null;
+        }
+        String destination = routeTopic(snapshot, route);
+        if (!subscriptionCounts.containsKey(destination)) {
+            return null;
+        }
+        return slices.computeIfAbsent(destination, d -> new Slice());
+    }
+
+    private void publish(String destination, byte[] body) {
+        try {
+            messagingTemplate.send(destination, jsonMessage(body));
+            messagesCounter.increment();
+        } catch (RuntimeException ex) {
+            log.warn("Failed to publish route delta to {}", destination, ex);
+        }
+    }
+
+    private void release(String destination) {
+        subscriptionCounts.computeIfPresent(destination, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private static Message<byte[]> jsonMessage(byte[] body) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        accessor.setLeaveMutable(true);
+        return MessageBuilder.createMessage(body, accessor.getMessageHeaders());
+    }
+
+    private static final class Slice {
+        private final List<LiveVehicle> vehicles = new ArrayList<>();
+        private final List<String> removed = new ArrayList<>();
+    }
+}
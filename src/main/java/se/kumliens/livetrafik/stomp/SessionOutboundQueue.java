@@ -0,0 +1,151 @@
+package se.kumliens.livetrafik.stomp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.messaging.Message;
+
+/**
+ * Pending outbound messages of a single session, in delivery order. Messages
+ * with a conflation key share one slot while undelivered; the slot keeps its
+ * original position and is merged when it is finally sent.
+ */
+final class SessionOutboundQueue {
+
+    enum Offer { ENQUEUED, CONFLATED, DROPPED, DISCONNECT }
+
+    private final String sessionId;
+    private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+    private final Map<String, Slot> slotsByKey = new HashMap<>();
+    private long pendingBytes;
+    private long behindSinceNanos;
+    private boolean draining;
+    private boolean closed;
+
+    SessionOutboundQueue(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    String sessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Queues a message. Above the high-water mark new slots are refused when
+     * {@code dropWhenFull} is set; otherwise the session is reported for
+     * disconnection once it has stayed above the mark for {@code graceNanos}.
+     * Conflation into an existing slot and control frames ({@code key == null}
+     * and not droppable) are never refused.
+     */
+    synchronized Offer offer(Message<?> message, String key, boolean droppable, int bytes, long nowNanos,
+            OutboundLimits limits) {
+        if (closed) {
+            return Offer.DROPPED;
+        }
+        Slot existing = key != null ? slotsByKey.get(key) : null;
+        if (existing == null && droppable && limits.dropWhenFull() && isAboveHighWaterMark(limits)) {
+            return Offer.DROPPED;
+        }
+
+        Offer result = existing != null ? Offer.CONFLATED : Offer.ENQUEUED;
+        Slot slot = existing;
+        if (slot == null) {
+            slot = new Slot(key, nowNanos);
+            slots.addLast(slot);
+            if (key != null) {
+                slotsByKey.put(key, slot);
+            }
+        }
+        slot.messages.add(message);
+        slot.bytes += bytes;
+        pendingBytes += bytes;
+
+        if (!limits.dropWhenFull() && isAboveHighWaterMark(limits)) {
+            if (behindSinceNanos == 0L) {
+                behindSinceNanos = nowNanos;
+            }
+            if (nowNanos - behindSinceNanos >= limits.graceNanos()) {
+                closed = true;
+                clear();
+                return Offer.DISCONNECT;
+            }
+        }
+        return result;
+    }
+
+    /** Later messages with {@code key} start a new slot behind everything queued so far. */
+    synchronized void seal(String key) {
+        slotsByKey.remove(key);
+    }
+
+    /** Marks the queue as draining; returns {@code true} if the caller must start a drain. */
+    synchronized boolean startDrain() {
+        if (draining || closed || slots.isEmpty()) {
+            return false;
+        }
+        draining = true;
+        return true;
+    }
+
+    /** Next slot to send, or {@code null} after clearing the draining flag when empty. */
+    synchronized Slot poll(OutboundLimits limits) {
+        Slot slot = closed ? null : slots.pollFirst();
+        if (slot == null) {
+            draining = false;
+            return null;
+        }
+        if (slot.key != null) {
+            slotsByKey.remove(slot.key, slot);
+        }
+        pendingBytes -= slot.bytes;
+        if (!isAboveHighWaterMark(limits)) {
+            behindSinceNanos = 0L;
+        }
+        return slot;
+    }
+
+    synchronized int depth() {
+        return slots.size();
+    }
+
+    synchronized void close() {
+        closed = true;
+        clear();
+    }
+
+    private boolean isAboveHighWaterMark(OutboundLimits limits) {
+        return slots.size() > limits.highWaterMarkMessages() || pendingBytes > limits.highWaterMarkBytes();
+    }
+
+    private void clear() {
+        slots.clear();
+        slotsByKey.clear();
+        pendingBytes = 0L;
+    }
+
+    static final class Slot {
+        private final String key;
+        private final long enqueuedAtNanos;
+        private final List<Message<?>> messages = new ArrayList<>(1);
+        private long bytes;
+
+        private Slot(String key, long enqueuedAtNanos) {
+            this.key = key;
+            this.enqueuedAtNanos = enqueuedAtNanos;
+        }
+
+        long enqueuedAtNanos() {
+            return enqueuedAtNanos;
+        }
+
+        List<Message<?>> messages() {
+            return messages;
+        }
+    }
+
+    record OutboundLimits(int highWaterMarkMessages, long highWaterMarkBytes, boolean dropWhenFull, long graceNanos) {
+    }
+}
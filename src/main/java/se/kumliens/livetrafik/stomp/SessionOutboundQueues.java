@@ -0,0 +1,293 @@
+package se.kumliens.livetrafik.stomp;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.lang.NonNull;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import se.kumliens.livetrafik.CborEncoder;
+import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
+import se.kumliens.livetrafik.stomp.SessionOutboundQueue.Offer;
+import se.kumliens.livetrafik.stomp.SessionOutboundQueue.OutboundLimits;
+import se.kumliens.livetrafik.stomp.SessionOutboundQueue.Slot;
+
+/**
+ * Gives every STOMP session its own outbound queue in front of the shared
+ * client outbound channel, so a client on a slow link only delays itself.
+ * <p>
+ * Runs after the latency interceptor on the client outbound channel: messages for
+ * open sessions are queued per session and drained on a virtual thread
+ * straight into the STOMP sub-protocol handler, or, for frames the
+ * {@link TopicFanoutBroker} encoded once, straight to the session. Undelivered vehicle deltas for
+ * the same subscription are conflated and merged with remove-first semantics
+ * when sent. Sessions above the high-water mark either have new messages
+ * dropped or, by default, are disconnected once they have stayed behind for
+ * the configured grace period.
+ */
+@Component
+@Slf4j
+public class SessionOutboundQueues implements ChannelInterceptor {
+
+    private static final String TOPIC_PREFIX = "/topic/";
+
+    private final Map<String, SessionOutboundQueue> queues = new ConcurrentHashMap<>();
+    private final Supplier<MessageHandler> outboundHandlerProvider;
+    private final ClientSessionRegistry sessions;
+    private final DeltaConflater conflater;
+    private final boolean enabled;
+    private final OutboundLimits limits;
+    private final ExecutorService drainExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final DistributionSummary depthSummary;
+    private final Timer waitTimer;
+    private final Counter conflatedCounter;
+    private final Counter droppedCounter;
+    private final Counter disconnectCounter;
+    private volatile MessageHandler outboundHandler;
+
+    @Autowired
+    public SessionOutboundQueues(
+            @Qualifier("subProtocolWebSocketHandler") ObjectProvider<WebSocketHandler> outboundHandlerProvider,
+            ClientSessionRegistry sessions,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${stomp.outbound.per-session-queues:true}") boolean enabled,
+            @Value("${stomp.outbound.high-water-mark-messages:64}") int highWaterMarkMessages,
+            @Value("${stomp.outbound.high-water-mark-bytes:4194304}") long highWaterMarkBytes,
+            @Value("${stomp.outbound.slow-consumer-policy:disconnect}") String slowConsumerPolicy,
+            @Value("${stomp.outbound.disconnect-after-seconds:10}") long disconnectAfterSeconds) {
+        // Resolved on first use: the sub-protocol handler is built from the configurers that use this bean
+        this(() -> (MessageHandler) outboundHandlerProvider.getObject(), sessions, objectMapper, meterRegistry, enabled,
+            new OutboundLimits(highWaterMarkMessages, highWaterMarkBytes,
+                "drop".equalsIgnoreCase(slowConsumerPolicy.trim()),
+                Duration.ofSeconds(disconnectAfterSeconds).toNanos()));
+    }
+
+    SessionOutboundQueues(
+            Supplier<MessageHandler> outboundHandlerProvider,
+            ClientSessionRegistry sessions,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            boolean enabled,
+            OutboundLimits limits) {
+        this.outboundHandlerProvider = outboundHandlerProvider;
+        this.sessions = sessions;
+        this.conflater = new DeltaConflater(objectMapper);
+        this.enabled = enabled;
+        this.limits = limits;
+        this.depthSummary = DistributionSummary.builder("trafik.stomp.outbound.session.depth")
+            .description("Per-session outbound queue depth observed when a message is queued")
+            .publishPercentiles(0.5, 0.99)
+            .register(meterRegistry);
+        this.waitTimer = Timer.builder("trafik.stomp.outbound.session.wait")
+            .description("Time messages spend in a session's outbound queue before being written")
+            .publishPercentileHistogram(true)
+            .publishPercentiles(0.5, 0.9, 0.99)
+            .minimumExpectedValue(Duration.ofNanos(50_000))
+            .maximumExpectedValue(Duration.ofSeconds(10))
+            .register(meterRegistry);
+        this.conflatedCounter = Counter.builder("trafik.stomp.outbound.conflated")
+            .description("Vehicle deltas merged into an undelivered delta for the same subscription")
+            .register(meterRegistry);
+        this.droppedCounter = Counter.builder("trafik.stomp.outbound.dropped")
+            .description("Messages dropped for sessions above the outbound high-water mark")
+            .register(meterRegistry);
+        this.disconnectCounter = Counter.builder("trafik.stomp.outbound.slow.disconnects")
+            .description("Sessions disconnected for staying above the outbound high-water mark")
+            .register(meterRegistry);
+        Gauge.builder("trafik.stomp.outbound.session.max.depth", queues, SessionOutboundQueues::maxDepth)
+            .description("Deepest per-session outbound queue")
+            .register(meterRegistry);
+    }
+
+    @Override
+    public Message<?> preSend(@NonNull Message<?> message, @NonNull MessageChannel channel) {
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        if (sessionId == null || !sessions.isOpen(sessionId)) {
+            return message;
+        }
+        if (!enabled) {
+            PreEncodedFrame frame = PreEncodedFrame.from(message);
+            if (frame != null && frame.binary()) {
+                // The STOMP handler only sends octet-stream bodies as binary frames, so CBOR is written here
+                deliver(sessionId, message);
+                return null;
+            }
+            return message;
+        }
+
+        SessionOutboundQueue queue = queues.computeIfAbsent(sessionId, SessionOutboundQueue::new);
+        boolean isData = SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) == SimpMessageType.MESSAGE;
+        boolean snapshot = message.getHeaders().containsKey(TopicFanoutBroker.SNAPSHOT_HEADER);
+        String key = conflationKey(message, isData);
+        if (snapshot && key != null) {
+            // A snapshot is never merged or dropped, and later deltas must not be merged into slots ahead of it
+            queue.seal(key);
+            key = null;
+        }
+        Offer offer = queue.offer(message, key, isData && !snapshot, sizeOf(message), System.nanoTime(), limits);
+        switch (offer) {
+            case CONFLATED -> conflatedCounter.increment();
+            case DROPPED -> droppedCounter.increment();
+            case DISCONNECT -> disconnect(queue);
+            case ENQUEUED -> { }
+        }
+        depthSummary.record(queue.depth());
+        if (queue.startDrain()) {
+            drainExecutor.execute(() -> drain(queue));
+        }
+        // Delivery now belongs to the session queue
+        return null;
+    }
+
+    @EventListener
+    public void handleSessionDisconnect(SessionDisconnectEvent event) {
+        SessionOutboundQueue queue = queues.remove(event.getSessionId());
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        drainExecutor.shutdownNow();
+    }
+
+    private void drain(SessionOutboundQueue queue) {
+        Slot slot;
+        while ((slot = queue.poll(limits)) != null) {
+            waitTimer.record(Duration.ofNanos(System.nanoTime() - slot.enqueuedAtNanos()));
+            for (Message<?> message : conflate(slot.messages())) {
+                deliver(queue.sessionId(), message);
+            }
+            // Virtual threads are not time-sliced; let request and other drain threads run between slots
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Writes frames the fan-out broker encoded once straight to the session;
+     * everything else goes through the STOMP sub-protocol handler.
+     */
+    private void deliver(String sessionId, Message<?> message) {
+        PreEncodedFrame frame = PreEncodedFrame.from(message);
+        try {
+            String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders());
+            if (frame != null && subscriptionId != null) {
+                sessions.send(sessionId, frame.toWebSocketMessage(subscriptionId, sessions.supportsBinary(sessionId)));
+            } else {
+                outboundHandler().handleMessage(message);
+            }
+        } catch (IOException ex) {
+            // Same outcome as a failed write in the STOMP handler
+            log.debug("Failed to write frame to session {}", sessionId, ex);
+            sessions.close(sessionId, CloseStatus.PROTOCOL_ERROR);
+        } catch (Exception ex) {
+            log.debug("Failed to deliver message to session {}", sessionId, ex);
+        }
+    }
+
+    /**
+     * Merges the deltas of a conflated slot into one message carrying the
+     * newest headers. Falls back to sending them one by one if a payload is
+     * not a vehicle delta.
+     */
+    private List<Message<?>> conflate(List<Message<?>> messages) {
+        if (messages.size() == 1) {
+            return messages;
+        }
+        try {
+            List<byte[]> payloads = new ArrayList<>(messages.size());
+            for (Message<?> message : messages) {
+                payloads.add((byte[]) message.getPayload());
+            }
+            Message<?> newest = messages.get(messages.size() - 1);
+            return List.of(MessageBuilder.createMessage(conflater.merge(payloads), newest.getHeaders()));
+        } catch (IOException | RuntimeException ex) {
+            log.debug("Could not merge {} conflated messages; sending them individually", messages.size(), ex);
+            return messages;
+        }
+    }
+
+    private void disconnect(SessionOutboundQueue queue) {
+        disconnectCounter.increment();
+        log.info("Disconnecting slow STOMP session {}: outbound queue above high-water mark", queue.sessionId());
+        drainExecutor.execute(() -> sessions.close(queue.sessionId(), CloseStatus.SESSION_NOT_RELIABLE));
+    }
+
+    private MessageHandler outboundHandler() {
+        MessageHandler handler = outboundHandler;
+        if (handler == null) {
+            handler = outboundHandlerProvider.get();
+            outboundHandler = handler;
+        }
+        return handler;
+    }
+
+    /**
+     * Vehicle topics are conflated per subscription; everything else keeps its
+     * own slot. CBOR bodies cannot be spliced by the conflater and are never merged.
+     */
+    private static String conflationKey(Message<?> message, boolean isData) {
+        if (!isData || !(message.getPayload() instanceof byte[])
+                || (message.getHeaders().get(MessageHeaders.CONTENT_TYPE) instanceof MimeType type
+                    && (CborEncoder.isCbor(type) || isFieldDiff(type)))) {
+            return null;
+        }
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        if (destination == null || !destination.startsWith(TOPIC_PREFIX)) {
+            return null;
+        }
+        return SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders());
+    }
+
+    /** Field-level deltas only carry changed attributes, so merging them by vehicle would lose fields. */
+    private static boolean isFieldDiff(MimeType type) {
+        return VehicleBroadcastPayload.FIELD_DIFF_CONTENT_TYPE.getParameter("delta").equals(type.getParameter("delta"));
+    }
+
+    private static int sizeOf(Message<?> message) {
+        return message.getPayload() instanceof byte[] bytes ? bytes.length : 0;
+    }
+
+    private static double maxDepth(Map<String, SessionOutboundQueue> queues) {
+        int max = 0;
+        for (SessionOutboundQueue queue : queues.values()) {
+            max = Math.max(max, queue.depth());
+        }
+        return max;
+    }
+}
@@ -0,0 +1,431 @@
+package se.kumliens.livetrafik.stomp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.SubscribableChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.broker.AbstractBrokerMessageHandler;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import se.kumliens.livetrafik.CborEncoder;
+import se.kumliens.livetrafik.VehicleCacheService;
+import se.kumliens.livetrafik.VehicleSnapshot;
+import se.kumliens.livetrafik.model.BoundingBox;
+
+/**
+ * Broker for the {@code /topic} destinations. Our destinations are a small,
+ * fixed set of exact names, so subscribers are kept as a precomputed array per
+ * destination instead of being matched per message. Each published message is
+ * encoded as a STOMP frame once ({@link PreEncodedFrame}) and handed to the
+ * per-session outbound queues, which write it without going through the
+ * STOMP encoder again.
+ * <p>
+ * A SUBSCRIBE to a vehicle topic with a {@value #BBOX_HEADER} header
+ * ({@code minLon,minLat,maxLon,maxLat}) becomes a viewport subscription,
+ * served by the {@link ViewportRouter} instead of the topic's subscriber list.
+ * <p>
+ * Plain subscriptions to a vehicle topic first get the feed's current
+ * snapshot ({@link VehicleSnapshot#snapshotJson}), encoded once per cache
+ * version. The subscriber is registered and the snapshot queued under the
+ * same per-destination lock that fan-out holds, and the relay updates the
+ * cache before publishing, so every delta is either in the snapshot or
+ * delivered after it.
+ * <p>
+ * Subscribers that ask for {@code application/cbor} in a {@code content-type}
+ * or {@code accept} header on SUBSCRIBE get the same messages transcoded by
+ * the {@link CborEncoder}, once per message, as binary WebSocket frames.
+ * Sessions that cannot carry binary frames (SockJS) stay on JSON.
+ * <p>
+ * The simple broker stays registered on another prefix and keeps handling
+ * CONNECT, heart-beats and DISCONNECT for the sessions.
+ */
+@Component
+public class TopicFanoutBroker extends AbstractBrokerMessageHandler {
+
+    static final String BBOX_HEADER = "bbox";
+    /** Message header marking a snapshot sent on subscribe; its value is the cache version. */
+    static final String SNAPSHOT_HEADER = "trafik.snapshotVersion";
+
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+    private static final int LOCK_STRIPES = 64;
+    private static final String CBOR_SNAPSHOT_PREFIX = "cbor:";
+
+    private final Map<String, Subscriber[]> subscribersByDestination = new ConcurrentHashMap<>();
+    /** sessionId → subscriptionId → destination, for unsubscribe and disconnect. */
+    private final Map<String, Map<String, String>> subscriptionsBySession = new ConcurrentHashMap<>();
+    private final ViewportRouter viewportRouter;
+    private final VehicleCacheService vehicleCacheService;
+    private final ObjectMapper objectMapper;
+    private final CborEncoder cborEncoder;
+    private final ClientSessionRegistry sessions;
+    private final boolean snapshotOnSubscribe;
+    /** Serialises fan-out and snapshot-on-subscribe per destination. */
+    private final Object[] destinationLocks = new Object[LOCK_STRIPES];
+    private final Map<String, SnapshotFrame> snapshotFrames = new ConcurrentHashMap<>();
+    private final StompEncoder encoder = new StompEncoder();
+    private final AtomicLong messageIds = new AtomicLong();
+    private final Counter framesCounter;
+    private final Counter deliveriesCounter;
+    private final Counter snapshotsCounter;
+    private final Counter cborFramesCounter;
+
+    public TopicFanoutBroker(
+            @Qualifier("clientInboundChannel") SubscribableChannel clientInboundChannel,
+            @Qualifier("clientOutboundChannel") MessageChannel clientOutboundChannel,
+            @Qualifier("brokerChannel") SubscribableChannel brokerChannel,
+            ViewportRouter viewportRouter,
+            VehicleCacheService vehicleCacheService,
+            ObjectMapper objectMapper,
+            CborEncoder cborEncoder,
+            ClientSessionRegistry sessions,
+            MeterRegistry meterRegistry,
+            @Value("${stomp.broker.fanout:true}") boolean enabled,
+            @Value("${stomp.broker.snapshot-on-subscribe:true}") boolean snapshotOnSubscribe) {
+        super(clientInboundChannel, clientOutboundChannel, brokerChannel, List.of("/topic/"));
+        setAutoStartup(enabled);
+        this.viewportRouter = viewportRouter;
+        this.vehicleCacheService = vehicleCacheService;
+        this.objectMapper = objectMapper;
+        this.cborEncoder = cborEncoder;
+        this.sessions = sessions;
+        this.snapshotOnSubscribe = snapshotOnSubscribe;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            destinationLocks[i] = new Object();
+        }
+        this.framesCounter = Counter.builder("trafik.stomp.fanout.frames")
+            .description("STOMP frames encoded once and fanned out to all subscribers of a topic")
+            .register(meterRegistry);
+        this.deliveriesCounter = Counter.builder("trafik.stomp.fanout.deliveries")
+            .description("Per-session deliveries of fanned-out frames")
+            .register(meterRegistry);
+        this.snapshotsCounter = Counter.builder("trafik.stomp.fanout.snapshots")
+            .description("Feed snapshots sent to new vehicle topic subscribers")
+            .register(meterRegistry);
+        this.cborFramesCounter = Counter.builder("trafik.stomp.fanout.cbor.frames")
+            .description("Messages transcoded to CBOR once for all binary subscribers of a topic")
+            .register(meterRegistry);
+        Gauge.builder("trafik.stomp.fanout.subscriptions", subscriptionsBySession, TopicFanoutBroker::countSubscriptions)
+            .description("Active /topic subscriptions")
+            .register(meterRegistry);
+    }
+
+    @Override
+    protected void handleMessageInternal(Message<?> message) {
+        MessageHeaders headers = message.getHeaders();
+        SimpMessageType messageType = SimpMessageHeaderAccessor.getMessageType(headers);
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(headers);
+        if (SimpMessageType.DISCONNECT.equals(messageType)) {
+            if (sessionId != null) {
+                removeSession(sessionId);
+                viewportRouter.removeSession(sessionId);
+            }
+            return;
+        }
+
+        String destination = SimpMessageHeaderAccessor.getDestination(headers);
+        if (!checkDestinationPrefix(destination)) {
+            return;
+        }
+        if (SimpMessageType.MESSAGE.equals(messageType)) {
+            fanOut(destination, message);
+        } else if (SimpMessageType.SUBSCRIBE.equals(messageType)) {
+            String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(headers);
+            if (sessionId != null && subscriptionId != null) {
+                BoundingBox box = viewportOf(headers, destination);
+                Subscriber subscriber = new Subscriber(sessionId, subscriptionId, wantsCbor(headers, sessionId));
+                if (box != null) {
+                    viewportRouter.viewport(sessionId, subscriptionId, destination, box);
+                } else if (snapshotOnSubscribe && ViewportRouter.feedOf(destination) != null) {
+                    subscribeWithSnapshot(subscriber, destination);
+                } else {
+                    subscribe(subscriber, destination);
+                }
+            }
+        } else if (SimpMessageType.UNSUBSCRIBE.equals(messageType)) {
+            String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(headers);
+            if (sessionId != null && subscriptionId != null) {
+                unsubscribe(sessionId, subscriptionId);
+                viewportRouter.unsubscribe(sessionId, subscriptionId);
+            }
+        }
+    }
+
+    /**
+     * Sets the viewport of a subscription ({@code /app/viewport}). A plain
+     * subscription to a vehicle topic is turned into a viewport subscription.
+     */
+    public void viewport(String sessionId, String subscriptionId, BoundingBox box) {
+        Map<String, String> subscriptions = subscriptionsBySession.get(sessionId);
+        String destination = subscriptions != null ? subscriptions.get(subscriptionId) : null;
+        if (destination != null && ViewportRouter.feedOf(destination) != null) {
+            unsubscribe(sessionId, subscriptionId);
+            viewportRouter.viewport(sessionId, subscriptionId, destination, box);
+        } else if (!viewportRouter.move(sessionId, subscriptionId, box)) {
+            throw new IllegalArgumentException("No vehicle topic subscription " + subscriptionId);
+        }
+    }
+
+    /** Sessions currently subscribed to {@code destination}, in subscription order. */
+    List<Subscriber> subscribers(String destination) {
+        return List.of(subscribersByDestination.getOrDefault(destination, NO_SUBSCRIBERS));
+    }
+
+    private void fanOut(String destination, Message<?> message) {
+        if (!subscribersByDestination.containsKey(destination)) {
+            return;
+        }
+        PreEncodedFrame frame = null;
+        if (message.getPayload() instanceof byte[] payload) {
+            frame = PreEncodedFrame.encode(encoder, destination,
+                contentType(message), nativeHeaders(message),
+                Long.toString(messageIds.incrementAndGet(), 36), payload);
+            framesCounter.increment();
+        }
+        // Transcoded outside the lock; a CBOR subscriber that just arrived is covered below
+        PreEncodedFrame cborFrame = hasCborSubscriber(subscribersByDestination.getOrDefault(destination, NO_SUBSCRIBERS))
+            ? cborFrame(destination, message) : null;
+        synchronized (lockFor(destination)) {
+            Subscriber[] subscribers = subscribersByDestination.getOrDefault(destination, NO_SUBSCRIBERS);
+            if (cborFrame == null && hasCborSubscriber(subscribers)) {
+                cborFrame = cborFrame(destination, message);
+            }
+            for (Subscriber subscriber : subscribers) {
+                PreEncodedFrame subscriberFrame = subscriber.cbor() && cborFrame != null ? cborFrame : frame;
+                SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+                accessor.setSessionId(subscriber.sessionId());
+                accessor.setSubscriptionId(subscriber.subscriptionId());
+                if (subscriberFrame == cborFrame && cborFrame != null) {
+                    accessor.setContentType(CborEncoder.CONTENT_TYPE);
+                }
+                accessor.copyHeadersIfAbsent(message.getHeaders());
+                if (subscriberFrame != null) {
+                    accessor.setHeader(PreEncodedFrame.HEADER, subscriberFrame);
+                }
+                accessor.setLeaveMutable(true);
+                Object payload = subscriberFrame != null ? subscriberFrame.payload() : message.getPayload();
+                if (send(destination, subscriber.sessionId(), payload, accessor)) {
+                    deliveriesCounter.increment();
+                }
+            }
+        }
+    }
+
+    /** The message transcoded to CBOR, or {@code null} if it is not a JSON body. */
+    private PreEncodedFrame cborFrame(String destination, Message<?> message) {
+        MimeType contentType = contentType(message);
+        if (!(message.getPayload() instanceof byte[] payload)
+                || (contentType != null && !MimeTypeUtils.APPLICATION_JSON.isCompatibleWith(contentType))) {
+            return null;
+        }
+        try {
+            byte[] cbor = cborEncoder.transcode(payload);
+            cborFramesCounter.increment();
+            return PreEncodedFrame.encode(encoder, destination, CborEncoder.CONTENT_TYPE, nativeHeaders(message),
+                Long.toString(messageIds.incrementAndGet(), 36), cbor);
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Sending JSON to CBOR subscribers of " + destination + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Registers a vehicle topic subscription and queues the feed's current
+     * snapshot for it before any delta fanned out after the registration.
+     */
+    private void subscribeWithSnapshot(Subscriber subscriber, String destination) {
+        ViewportRouter.Feed feed = ViewportRouter.feedOf(destination);
+        synchronized (lockFor(destination)) {
+            subscribe(subscriber, destination);
+            VehicleSnapshot snapshot = vehicleCacheService.snapshotFor(feed.region(), feed.vehicleType());
+            PreEncodedFrame frame;
+            try {
+                frame = snapshotFrame(destination, snapshot, subscriber.cbor());
+            } catch (IOException | RuntimeException ex) {
+                logger.error("Failed to encode snapshot for " + destination, ex);
+                return;
+            }
+            SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+            accessor.setSessionId(subscriber.sessionId());
+            accessor.setSubscriptionId(subscriber.subscriptionId());
+            accessor.setDestination(destination);
+            accessor.setContentType(subscriber.cbor() ? CborEncoder.CONTENT_TYPE : MimeTypeUtils.APPLICATION_JSON);
+            accessor.setHeader(PreEncodedFrame.HEADER, frame);
+            accessor.setHeader(SNAPSHOT_HEADER, snapshot.version());
+            accessor.setLeaveMutable(true);
+            if (send(destination, subscriber.sessionId(), frame.payload(), accessor)) {
+                snapshotsCounter.increment();
+            }
+        }
+    }
+
+    /** The snapshot frame for a destination and format, encoded once per cache version. */
+    private PreEncodedFrame snapshotFrame(String destination, VehicleSnapshot snapshot, boolean cbor)
+            throws IOException {
+        String key = cbor ? CBOR_SNAPSHOT_PREFIX + destination : destination;
+        SnapshotFrame cached = snapshotFrames.get(key);
+        if (cached != null && cached.version() == snapshot.version()) {
+            return cached.frame();
+        }
+        byte[] json = snapshot.snapshotJson(objectMapper);
+        PreEncodedFrame frame = PreEncodedFrame.encode(encoder, destination,
+            cbor ? CborEncoder.CONTENT_TYPE : MimeTypeUtils.APPLICATION_JSON, null,
+            Long.toString(messageIds.incrementAndGet(), 36), cbor ? cborEncoder.transcode(json) : json);
+        if (snapshot.version() > 0L) {
+            // Nothing cached for empty feeds; avoids pinning frames for arbitrary destinations
+            snapshotFrames.merge(key, new SnapshotFrame(snapshot.version(), frame),
+                (current, candidate) -> candidate.version() > current.version() ? candidate : current);
+        }
+        return frame;
+    }
+
+    /** CBOR is only honoured for sessions that can carry binary frames. */
+    private boolean wantsCbor(MessageHeaders headers, String sessionId) {
+        return (isCbor(SimpMessageHeaderAccessor.getFirstNativeHeader("content-type", headers))
+                || isCbor(SimpMessageHeaderAccessor.getFirstNativeHeader("accept", headers)))
+            && sessions.supportsBinary(sessionId);
+    }
+
+    private static boolean isCbor(String mimeType) {
+        if (mimeType == null || mimeType.isBlank()) {
+            return false;
+        }
+        try {
+            return CborEncoder.isCbor(MimeTypeUtils.parseMimeType(mimeType.trim()));
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    private static boolean hasCborSubscriber(Subscriber[] subscribers) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.cbor()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean send(String destination, String sessionId, Object payload, SimpMessageHeaderAccessor accessor) {
+        try {
+            getClientOutboundChannel().send(MessageBuilder.createMessage(payload, accessor.getMessageHeaders()));
+            return true;
+        } catch (RuntimeException ex) {
+            logger.error("Failed to send " + destination + " to session " + sessionId, ex);
+            return false;
+        }
+    }
+
+    private Object lockFor(String destination) {
+        return destinationLocks[Math.floorMod(destination.hashCode(), LOCK_STRIPES)];
+    }
+
+    private void subscribe(Subscriber subscriber, String destination) {
+        String sessionId = subscriber.sessionId();
+        String subscriptionId = subscriber.subscriptionId();
+        Map<String, String> subscriptions = subscriptionsBySession.computeIfAbsent(sessionId,
+            id -> new ConcurrentHashMap<>());
+        String previous = subscriptions.put(subscriptionId, destination);
+        if (previous != null) {
+            removeSubscriber(previous, sessionId, subscriptionId);
+        }
+        subscribersByDestination.compute(destination, (key, current) -> {
+            Subscriber[] base = current != null ? current : NO_SUBSCRIBERS;
+            Subscriber[] updated = Arrays.copyOf(base, base.length + 1);
+            updated[base.length] = subscriber;
+            return updated;
+        });
+    }
+
+    private void unsubscribe(String sessionId, String subscriptionId) {
+        Map<String, String> subscriptions = subscriptionsBySession.get(sessionId);
+        String destination = subscriptions != null ? subscriptions.remove(subscriptionId) : null;
+        if (destination != null) {
+            removeSubscriber(destination, sessionId, subscriptionId);
+        }
+    }
+
+    private void removeSession(String sessionId) {
+        Map<String, String> subscriptions = subscriptionsBySession.remove(sessionId);
+        if (subscriptions != null) {
+            subscriptions.forEach((subscriptionId, destination) ->
+                removeSubscriber(destination, sessionId, subscriptionId));
+        }
+    }
+
+    private void removeSubscriber(String destination, String sessionId, String subscriptionId) {
+        subscribersByDestination.computeIfPresent(destination, (key, current) -> {
+            List<Subscriber> remaining = new ArrayList<>(current.length);
+            for (Subscriber subscriber : current) {
+                if (!subscriber.sessionId().equals(sessionId) || !subscriber.subscriptionId().equals(subscriptionId)) {
+                    remaining.add(subscriber);
+                }
+            }
+            return remaining.isEmpty() ? null : remaining.toArray(NO_SUBSCRIBERS);
+        });
+    }
+
+    private BoundingBox viewportOf(MessageHeaders headers, String destination) {
+        String bbox = SimpMessageHeaderAccessor.getFirstNativeHeader(BBOX_HEADER, headers);
+        if (bbox == null || ViewportRouter.feedOf(destination) == null) {
+            return null;
+        }
+        try {
+            return BoundingBox.parse(bbox);
+        } catch (IllegalArgumentException ex) {
+            logger.warn("Ignoring invalid bbox header on " + destination + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private static MimeType contentType(Message<?> message) {
+        Object contentType = message.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+        if (contentType instanceof String value) {
+            return MimeTypeUtils.parseMimeType(value);
+        }
+        return contentType instanceof MimeType mimeType ? mimeType : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, List<String>> nativeHeaders(Message<?> message) {
+        return (Map<String, List<String>>) message.getHeaders().get(NativeMessageHeaderAccessor.NATIVE_HEADERS);
+    }
+
+    private static double countSubscriptions(Map<String, Map<String, String>> subscriptionsBySession) {
+        int count = 0;
+        for (Map<String, String> subscriptions : subscriptionsBySession.values()) {
+            count += subscriptions.size();
+        }
+        return count;
+    }
+
+    record Subscriber(String sessionId, String subscriptionId, boolean cbor) {
+        Subscriber(String sessionId, String subscriptionId) {
+            this(sessionId, subscriptionId, false);
+        }
+    }
+
+    private record SnapshotFrame(long version, PreEncodedFrame frame) {
+    }
+}
@@ -0,0 +1,63 @@
+package se.kumliens.livetrafik.stomp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.kumliens.livetrafik.VehicleSnapshot;
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Encodes filtered slices of a cache change in the upstream delta format, so
+ * clients and the per-session conflation treat them like any other vehicle
+ * delta. Vehicles are encoded once per change and shared between slices
+ * through the caller's {@code encoded} map.
+ */
+final class VehicleDeltaJson {
+
+    private static final byte[] VEHICLES_START = "{\"vehicles\":[".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REMOVED_FIELD = "],\"removed_vehicle_ids\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REGION_FIELD = ",\"region\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TYPE_FIELD = ",\"vehicleType\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIMESTAMP_FIELD = ",\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+
+    private VehicleDeltaJson() {
+    }
+
+    static byte[] encode(ObjectMapper objectMapper, List<LiveVehicle> vehicles, List<String> removedIds,
+            VehicleSnapshot snapshot, Map<LiveVehicle, byte[]> encoded) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(128 + vehicles.size() * 256);
+            out.write(VEHICLES_START);
+            for (int i = 0; i < vehicles.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                LiveVehicle vehicle = vehicles.get(i);
+                byte[] json = encoded.get(vehicle);
+                if (json == null) {
+                    json = objectMapper.writeValueAsBytes(vehicle);
+                    encoded.put(vehicle, json);
+                }
+                out.write(json);
+            }
+            out.write(REMOVED_FIELD);
+            out.write(objectMapper.writeValueAsBytes(removedIds));
+            out.write(REGION_FIELD);
+            out.write(objectMapper.writeValueAsBytes(snapshot.region()));
+            out.write(TYPE_FIELD);
+            out.write(objectMapper.writeValueAsBytes(snapshot.vehicleType()));
+            out.write(TIMESTAMP_FIELD);
+            out.write(Long.toString(snapshot.latestTimestamp()).getBytes(StandardCharsets.US_ASCII));
+            out.write('}');
+            return out.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to encode vehicle delta", ex);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package se.kumliens.livetrafik.stomp;
+
+import java.util.List;
+
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.messaging.handler.annotation.MessageMapping;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.stereotype.Controller;
+
+import se.kumliens.livetrafik.model.BoundingBox;
+
+/**
+ * Lets map clients move the viewport of a vehicle topic subscription without
+ * resubscribing: {@code SEND /app/viewport} with
+ * {@code {"subscription":"sub-0","bbox":[minLon,minLat,maxLon,maxLat]}}.
+ */
+@Controller
+public class ViewportController {
+
+    private final TopicFanoutBroker topicFanoutBroker;
+
+    public ViewportController(TopicFanoutBroker topicFanoutBroker) {
+        this.topicFanoutBroker = topicFanoutBroker;
+    }
+
+    @MessageMapping("/viewport")
+    public void viewport(ViewportRequest request,
+            @Header(SimpMessageHeaderAccessor.SESSION_ID_HEADER) String sessionId) {
+        topicFanoutBroker.viewport(sessionId, request.subscription(), BoundingBox.of(request.bbox()));
+    }
+
+    public record ViewportRequest(String subscription, List<Double> bbox) {
+    }
+}
@@ -0,0 +1,324 @@
+package se.kumliens.livetrafik.stomp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import se.kumliens.livetrafik.VehicleCacheService;
+import se.kumliens.livetrafik.VehicleChangeListener;
+import se.kumliens.livetrafik.VehicleSnapshot;
+import se.kumliens.livetrafik.model.BoundingBox;
+import se.kumliens.livetrafik.model.GeoGrid;
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+/**
+ * Serves viewport subscriptions: subscriptions to a typed vehicle topic that
+ * only want the vehicles inside a bounding box. Listens to cache changes and
+ * sends each viewport the upserts inside its box, plus removals for vehicles
+ * it has seen that were removed or have left the box.
+ * <p>
+ * Viewports are indexed by {@link GeoGrid} cell, and every vehicle a viewport
+ * has been sent is tracked, so a change only visits the viewports covering the
+ * vehicle's new cell and those that currently show it. Slices are sent in the
+ * upstream delta format ({@link VehicleDeltaJson}). Lock order is feed
+ * (cache) before router, matching the cache's change notifications.
+ */
+@Component
+@Slf4j
+public class ViewportRouter implements VehicleChangeListener {
+
+    /** Viewports spanning more cells than this are checked on every change instead. */
+    private static final long MAX_INDEXED_CELLS = 1024;
+
+    private final VehicleCacheService vehicleCacheService;
+    private final MessageChannel clientOutboundChannel;
+    private final ObjectMapper objectMapper;
+    private final Map<Feed, FeedViewports> feeds = new HashMap<>();
+    private final Map<String, Map<String, Viewport>> viewportsBySession = new HashMap<>();
+    private final Counter messagesCounter;
+
+    public ViewportRouter(
+            VehicleCacheService vehicleCacheService,
+            @Qualifier("clientOutboundChannel") MessageChannel clientOutboundChannel,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry) {
+        this.vehicleCacheService = vehicleCacheService;
+        this.clientOutboundChannel = clientOutboundChannel;
+        this.objectMapper = objectMapper;
+        this.messagesCounter = Counter.builder("trafik.stomp.viewport.messages")
+            .description("Filtered vehicle deltas sent to viewport subscriptions")
+            .register(meterRegistry);
+        Gauge.builder("trafik.stomp.viewport.subscriptions", this, ViewportRouter::countViewports)
+            .description("Active viewport subscriptions")
+            .register(meterRegistry);
+        vehicleCacheService.addChangeListener(this);
+    }
+
+    /**
+     * Returns the (region, type) feed behind a typed vehicle topic such as
+     * {@code /topic/sl/vehicles/bus}, or {@code null} for any other destination.
+     */
+    static Feed feedOf(String destination) {
+        if (destination == null || !destination.startsWith("/topic/")) {
+            return null;
+        }
+        String[] parts = destination.substring("/topic/".length()).split("/");
+        if (parts.length != 3 || !"vehicles".equals(parts[1]) || parts[0].isBlank() || parts[2].isBlank()) {
+            return null;
+        }
+        return new Feed(parts[0].trim().toLowerCase(), parts[2].trim().toLowerCase());
+    }
+
+    /**
+     * Registers or moves a viewport and sends it the vehicles now inside the
+     * box, with removals for those it showed that are now outside.
+     */
+    public void viewport(String sessionId, String subscriptionId, String destination, BoundingBox box) {
+        Feed feed = feedOf(destination);
+        if (feed == null) {
+            throw new IllegalArgumentException("Viewports need a vehicle topic: " + destination);
+        }
+        Viewport viewport;
+        synchronized (this) {
+            viewport = viewportsBySession.computeIfAbsent(sessionId, id -> new HashMap<>()).get(subscriptionId);
+            if (viewport != null && !viewport.feed.equals(feed)) {
+                remove(viewport);
+                viewport = null;
+            }
+            if (viewport == null) {
+                viewport = new Viewport(sessionId, subscriptionId, destination, feed);
+                viewportsBySession.get(sessionId).put(subscriptionId, viewport);
+            }
+            // Index first so no change published from here on is missed; the reset below supersedes earlier ones
+            index(viewport, box);
+        }
+        Viewport target = viewport;
+        vehicleCacheService.withVehiclesWithin(feed.region(), feed.vehicleType(), box, (snapshot, inside) -> {
+            synchronized (this) {
+                // Skip if the viewport was moved or dropped again meanwhile; that call sends its own reset
+                if (target.box == box) {
+                    reset(target, snapshot, inside);
+                }
+            }
+        });
+    }
+
+    /** Moves an existing viewport; returns {@code false} if there is none. */
+    public boolean move(String sessionId, String subscriptionId, BoundingBox box) {
+        String destination;
+        synchronized (this) {
+            Map<String, Viewport> viewports = viewportsBySession.get(sessionId);
+            Viewport viewport = viewports == null ? null : viewports.get(subscriptionId);
+            if (viewport == null) {
+                return false;
+            }
+            destination = viewport.destination;
+        }
+        viewport(sessionId, subscriptionId, destination, box);
+        return true;
+    }
+
+    public synchronized void unsubscribe(String sessionId, String subscriptionId) {
+        Map<String, Viewport> viewports = viewportsBySession.get(sessionId);
+        Viewport viewport = viewports == null ? null : viewports.remove(subscriptionId);
+        if (viewport != null) {
+            remove(viewport);
+        }
+    }
+
+    public synchronized void removeSession(String sessionId) {
+        Map<String, Viewport> viewports = viewportsBySession.remove(sessionId);
+        if (viewports != null) {
+            viewports.values().forEach(this::remove);
+        }
+    }
+
+    @Override
+    public synchronized void onChange(VehicleSnapshot snapshot, List<LiveVehicle> upserted, List<String> removedIds,
+            Map<String, String> departedRoutes) {
+        FeedViewports viewports = feeds.get(new Feed(snapshot.region(), snapshot.vehicleType()));
+        if (viewports == null) {
+            return;
+        }
+        Map<Viewport, Slice> slices = new LinkedHashMap<>();
+        for (String id : removedIds) {
+            Set<Viewport> viewers = viewports.viewersByVehicle.remove(id);
+            if (viewers != null) {
+                for (Viewport viewer : viewers) {
+                    viewer.visible.remove(id);
+                    slices.computeIfAbsent(viewer, v -> new Slice()).removed.add(id);
+                }
+            }
+        }
+        for (LiveVehicle vehicle : upserted) {
+            String id = vehicle.getVehicleId();
+            Set<Viewport> candidates = new LinkedHashSet<>(viewports.wide);
+            if (vehicle.hasPosition()) {
+                candidates.addAll(viewports.byCell.getOrDefault(GeoGrid.cellOf(vehicle), Set.of()));
+            }
+            candidates.addAll(viewports.viewersByVehicle.getOrDefault(id, Set.of()));
+            for (Viewport viewport : candidates) {
+                if (viewport.box.contains(vehicle)) {
+                    slices.computeIfAbsent(viewport, v -> new Slice()).vehicles.add(vehicle);
+                    if (viewport.visible.add(id)) {
+                        viewports.viewersByVehicle.computeIfAbsent(id, v -> new HashSet<>()).add(viewport);
+                    }
+                } else if (viewport.visible.remove(id)) {
+                    // Left the box: the client only learns that through a removal
+                    slices.computeIfAbsent(viewport, v -> new Slice()).removed.add(id);
+                    forgetViewer(viewports, id, viewport);
+                }
+            }
+        }
+        if (slices.isEmpty()) {
+            return;
+        }
+        Map<LiveVehicle, byte[]> encoded = new IdentityHashMap<>();
+        slices.forEach((viewport, slice) -> send(viewport, slice, snapshot, encoded));
+    }
+
+    private void reset(Viewport viewport, VehicleSnapshot snapshot, List<LiveVehicle> inside) {
+        FeedViewports viewports = feeds.get(viewport.feed);
+        Slice slice = new Slice();
+        Set<String> insideIds = new HashSet<>();
+        for (LiveVehicle vehicle : inside) {
+            insideIds.add(vehicle.getVehicleId());
+            slice.vehicles.add(vehicle);
+        }
+        for (String id : new ArrayList<>(viewport.visible)) {
+            if (!insideIds.contains(id)) {
+                slice.removed.add(id);
+                viewport.visible.remove(id);
+                forgetViewer(viewports, id, viewport);
+            }
+        }
+        for (String id : insideIds) {
+            if (viewport.visible.add(id)) {
+                viewports.viewersByVehicle.computeIfAbsent(id, v -> new HashSet<>()).add(viewport);
+            }
+        }
+        send(viewport, slice, snapshot, new IdentityHashMap<>());
+    }
+
+    private void index(Viewport viewport, BoundingBox box) {
+        FeedViewports viewports = feeds.computeIfAbsent(viewport.feed, feed -> new FeedViewports());
+        unindexCells(viewports, viewport);
+        viewport.box = box;
+        if (GeoGrid.cellCount(box) > MAX_INDEXED_CELLS) {
+            viewports.wide.add(viewport);
+        } else {
+            GeoGrid.forEachCell(box, cell -> viewports.byCell.computeIfAbsent(cell, c -> new HashSet<>()).add(viewport));
+        }
+    }
+
+    private void remove(Viewport viewport) {
+        FeedViewports viewports = feeds.get(viewport.feed);
+        if (viewports == null) {
+            return;
+        }
+        unindexCells(viewports, viewport);
+        viewport.box = null;
+        for (String id : viewport.visible) {
+            forgetViewer(viewports, id, viewport);
+        }
+        viewport.visible.clear();
+        if (viewports.byCell.isEmpty() && viewports.wide.isEmpty()) {
+            feeds.remove(viewport.feed);
+        }
+    }
+
+    private static void unindexCells(FeedViewports viewports, Viewport viewport) {
+        if (viewport.box == null) {
+            return;
+        }
+        if (!viewports.wide.remove(viewport)) {
+            GeoGrid.forEachCell(viewport.box, cell -> {
+                Set<Viewport> inCell = viewports.byCell.get(cell);
+                if (inCell != null && inCell.remove(viewport) && inCell.isEmpty()) {
+                    viewports.byCell.remove(cell);
+                }
+            });
+        }
+    }
+
+    private static void forgetViewer(FeedViewports viewports, String vehicleId, Viewport viewport) {
+        Set<Viewport> viewers = viewports.viewersByVehicle.get(vehicleId);
+        if (viewers != null && viewers.remove(viewport) && viewers.isEmpty()) {
+            viewports.viewersByVehicle.remove(vehicleId);
+        }
+    }
+
+    private void send(Viewport viewport, Slice slice, VehicleSnapshot snapshot, Map<LiveVehicle, byte[]> encoded) {
+        byte[] body = VehicleDeltaJson.encode(objectMapper, slice.vehicles, slice.removed, snapshot, encoded);
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId(viewport.sessionId);
+        accessor.setSubscriptionId(viewport.subscriptionId);
+        accessor.setDestination(viewport.destination);
+        accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        accessor.setLeaveMutable(true);
+        try {
+            clientOutboundChannel.send(MessageBuilder.createMessage(body, accessor.getMessageHeaders()));
+            messagesCounter.increment();
+        } catch (RuntimeException ex) {
+            log.debug("Failed to send viewport delta to session {}", viewport.sessionId, ex);
+        }
+    }
+
+    private synchronized double countViewports() {
+        int count = 0;
+        for (Map<String, Viewport> viewports : viewportsBySession.values()) {
+            count += viewports.size();
+        }
+        return count;
+    }
+
+    record Feed(String region, String vehicleType) {
+    }
+
+    private static final class FeedViewports {
+        private final Map<Long, Set<Viewport>> byCell = new HashMap<>();
+        private final Set<Viewport> wide = new LinkedHashSet<>();
+        private final Map<String, Set<Viewport>> viewersByVehicle = new HashMap<>();
+    }
+
+    private static final class Viewport {
+        private final String sessionId;
+        private final String subscriptionId;
+        private final String destination;
+        private final Feed feed;
+        private final Set<String> visible = new HashSet<>();
+        private BoundingBox box;
+
+        private Viewport(String sessionId, String subscriptionId, String destination, Feed feed) {
+            this.sessionId = sessionId;
+            this.subscriptionId = subscriptionId;
+            this.destination = destination;
+            this.feed = feed;
+        }
+    }
+
+    private static final class Slice {
+        private final List<LiveVehicle> vehicles = new ArrayList<>();
+        private final List<String> removed = new ArrayList<>();
+    }
+}
@@ -0,0 +1,82 @@
+package se.kumliens.livetrafik;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class DeltaCoalescerTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final BlockingQueue<Emitted> emitted = new LinkedBlockingQueue<>();
+
+    private DeltaCoalescer coalescer(Duration window) {
+        return new DeltaCoalescer(objectMapper, window, (topic, body) -> emitted.add(new Emitted(topic, body)),
+            meterRegistry);
+    }
+
+    @Test
+    void mergesWindowWithRemoveFirstSemantics() throws Exception {
+        // Long window: stop() flushes what is pending
+        DeltaCoalescer coalescer = coalescer(Duration.ofMinutes(1));
+        String topic = "/topic/sl/vehicles/bus";
+        coalescer.submit(topic, bytes("{\"vehicles\":[{\"vehicle_id\":\"A\",\"latitude\":1},{\"vehicle_id\":\"B\"}],"
+            + "\"removed_vehicle_ids\":[\"C\"],\"region\":\"sl\",\"vehicleType\":\"bus\",\"timestamp\":1}"));
+        coalescer.submit(topic, bytes("{\"vehicles\":[{\"vehicle_id\":\"C\"}],\"removed_vehicle_ids\":[\"B\"],\"timestamp\":2}"));
+        coalescer.submit(topic, bytes("{\"vehicles\":[{\"vehicle_id\":\"A\",\"latitude\":3}],\"removed_vehicle_ids\":[],\"timestamp\":3}"));
+
+        coalescer.stop();
+
+        assertThat(emitted).hasSize(1);
+        JsonNode merged = objectMapper.readTree(emitted.poll().body());
+        assertThat(merged.get("vehicles").findValuesAsText("vehicle_id")).containsExactly("C", "A");
+        assertThat(merged.get("vehicles").get(1).get("latitude").asInt()).isEqualTo(3);
+        assertThat(merged.get("removed_vehicle_ids").get(0).asText()).isEqualTo("B");
+        assertThat(merged.get("removed_vehicle_ids")).hasSize(1);
+        assertThat(merged.get("region").asText()).isEqualTo("sl");
+        assertThat(merged.get("timestamp").asLong()).isEqualTo(3L);
+        assertThat(meterRegistry.counter("trafik.relay.coalesced").count()).isEqualTo(2.0);
+    }
+
+    @Test
+    void keepsTopicsApartAndRelaysSingleDeltaVerbatim() throws Exception {
+        DeltaCoalescer coalescer = coalescer(Duration.ofMillis(20));
+        byte[] bus = bytes("{\"vehicles\":[{\"vehicle_id\":\"A\"}],\"removed_vehicle_ids\":[]}");
+        byte[] train = bytes("{\"vehicles\":[{\"vehicle_id\":\"T\"}],\"removed_vehicle_ids\":[]}");
+        coalescer.submit("/topic/sl/vehicles/bus", bus);
+        coalescer.submit("/topic/sl/vehicles/train", train);
+
+        List<Emitted> frames = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Emitted frame = emitted.poll(2, TimeUnit.SECONDS);
+            assertThat(frame).isNotNull();
+            frames.add(frame);
+        }
+        coalescer.stop();
+
+        assertThat(emitted).isEmpty();
+        assertThat(frames).extracting(Emitted::topic)
+            .containsExactlyInAnyOrder("/topic/sl/vehicles/bus", "/topic/sl/vehicles/train");
+        assertThat(frames).extracting(Emitted::body).containsExactlyInAnyOrder(bus, train);
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private record Emitted(String topic, byte[] body) {
+    }
+}
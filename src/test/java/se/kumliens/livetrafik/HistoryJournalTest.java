@@ -0,0 +1,170 @@
+package se.kumliens.livetrafik;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import se.kumliens.livetrafik.model.LiveVehicle;
+import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
+import se.kumliens.livetrafik.simulator.JournalReplay;
+
+class HistoryJournalTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reconstructsPastStatesAndReplaysChanges() throws Exception {
+        VehicleCacheService cache = new VehicleCacheService(mapper, Duration.ofMinutes(5));
+        HistoryJournal journal = journal(cache);
+        journal.start();
+        awaitCheckpoint(journal);
+
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("A"), vehicle("B")), List.of()));
+        cache.applyDelta(payload("sl", "train", List.of(vehicle("T")), List.of()));
+        long afterFirst = pause();
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("C")), List.of("A")));
+        journal.stop();
+        long afterSecond = pause();
+
+        assertThat(idsAt(journal, "ul/bus", afterFirst)).containsExactlyInAnyOrder("A", "B");
+        assertThat(idsAt(journal, "ul/bus", afterSecond)).containsExactlyInAnyOrder("B", "C");
+        assertThat(idsAt(journal, "sl/train", afterSecond)).containsExactly("T");
+        assertThat(journal.stateAt(0L)).isEmpty();
+
+        List<HistoryJournal.TimedFeed> replayed = new ArrayList<>();
+        HistoryJournal.replay(dir, 0L, Long.MAX_VALUE, replayed::add);
+        assertThat(replayed).extracting(timed -> timed.change().removed()).containsExactly(List.of(), List.of(),
+            List.of("A"));
+        assertThat(JournalReplay.frames(dir, afterFirst, Long.MAX_VALUE)).singleElement()
+            .satisfies(frame -> assertThat(frame).contains("\"topic\":\"realtime:ul/vehicles/bus\""));
+    }
+
+    @Test
+    void rebuildsAnEmptyCacheOnStart() throws Exception {
+        VehicleCacheService before = new VehicleCacheService(mapper, Duration.ofMinutes(5));
+        HistoryJournal first = journal(before);
+        first.start();
+        before.applyDelta(payload("ul", "bus", List.of(vehicle("A"), vehicle("B")), List.of()));
+        before.applyDelta(payload("ul", "bus", List.of(), List.of("B")));
+        first.stop();
+
+        VehicleCacheService after = new VehicleCacheService(mapper, Duration.ofMinutes(5));
+        HistoryJournal second = journal(after);
+        second.start();
+        second.stop();
+
+        assertThat(after.snapshotForTesting("ul", "bus")).extracting(LiveVehicle::getVehicleId).containsExactly("A");
+    }
+
+    @Test
+    void changesQueuedWhenASegmentRollsAreFoundInTheNextSegment() throws Exception {
+        AtomicInteger checkpoints = new AtomicInteger();
+        CountDownLatch rolling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        VehicleCacheService cache = new VehicleCacheService(mapper, Duration.ofMinutes(5)) {
+            @Override
+            public List<VehicleSnapshot> snapshots() {
+                List<VehicleSnapshot> snapshots = super.snapshots();
+                if (checkpoints.incrementAndGet() == 2) {
+                    // Hold the writer after its second checkpoint so the next change queues up behind it
+                    rolling.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return snapshots;
+            }
+        };
+        // Every change after a millisecond starts a new segment
+        HistoryJournal journal = new HistoryJournal(cache, new SimpleMeterRegistry(), dir, 1 << 20,
+            Duration.ofMillis(1), Duration.ofHours(1), 1L << 30, 64, true);
+        journal.start();
+        awaitCheckpoint(journal);
+        pause();
+
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("A")), List.of()));
+        rolling.await();
+        pause();
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("B")), List.of()));
+        long queued = pause();
+        release.countDown();
+        journal.stop();
+
+        // B was committed before the roll it triggered, and written after that roll's checkpoint
+        assertThat(idsAt(journal, "ul/bus", queued)).containsExactlyInAnyOrder("A", "B");
+    }
+
+    @Test
+    void aSegmentStillBeingOpenedFallsBackToThePreviousOne() throws Exception {
+        VehicleCacheService cache = new VehicleCacheService(mapper, Duration.ofMinutes(5));
+        HistoryJournal journal = journal(cache);
+        journal.start();
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("A")), List.of()));
+        journal.stop();
+        long later = pause() + 1;
+        // What a reader can list between the writer creating the next segment and writing its checkpoint
+        Files.write(dir.resolve("history-%013d.seg".formatted(later)), new byte[4096]);
+
+        assertThat(idsAt(journal, "ul/bus", later + 1)).containsExactly("A");
+    }
+
+    private HistoryJournal journal(VehicleCacheService cache) {
+        return new HistoryJournal(cache, new SimpleMeterRegistry(), dir, 1 << 20, Duration.ofMinutes(10),
+            Duration.ofHours(1), 1L << 30, 64, true);
+    }
+
+    private static void awaitCheckpoint(HistoryJournal journal) throws InterruptedException {
+        for (int i = 0; i < 200 && journal.stateAt(System.currentTimeMillis()).isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    /** Returns a time strictly between the changes before and after the call. */
+    private static long pause() throws InterruptedException {
+        Thread.sleep(5);
+        long now = System.currentTimeMillis();
+        Thread.sleep(5);
+        return now;
+    }
+
+    private static List<String> idsAt(HistoryJournal journal, String feed, long at) {
+        return journal.stateAt(at).orElseThrow().stream()
+            .filter(state -> (state.region() + "/" + state.vehicleType()).equals(feed))
+            .flatMap(state -> state.upserted().stream())
+            .map(LiveVehicle::getVehicleId)
+            .toList();
+    }
+
+    private static VehicleBroadcastPayload payload(String region, String type, List<LiveVehicle> vehicles,
+            List<String> removed) {
+        VehicleBroadcastPayload payload = new VehicleBroadcastPayload();
+        payload.setRegion(region);
+        payload.setVehicleType(type);
+        payload.setVehicles(vehicles);
+        payload.setRemovedVehicleIds(removed);
+        return payload;
+    }
+
+    private static LiveVehicle vehicle(String id) {
+        return LiveVehicle.builder().vehicleId(id).latitude(59.86).longitude(17.64)
+            .updatedAt(Instant.now().toString()).updatedAtMillis(System.currentTimeMillis()).build();
+    }
+}
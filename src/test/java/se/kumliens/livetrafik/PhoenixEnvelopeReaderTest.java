@@ -0,0 +1,76 @@
+package se.kumliens.livetrafik;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.kumliens.livetrafik.PhoenixEnvelopeReader.PhoenixEnvelope;
+
+class PhoenixEnvelopeReaderTest {
+
+    private final PhoenixEnvelopeReader reader = new PhoenixEnvelopeReader(new ObjectMapper());
+
+    @Test
+    void slicesInnerPayloadVerbatim() throws Exception {
+        String inner = "{\"vehicles\":[{\"vehicle_id\":\"A\",\"latitude\":59.85}],\"removed_vehicle_ids\":[\"B\"],\"timestamp\":1730000000000}";
+        String frame = "{\"topic\":\"realtime:ul/vehicles/bus\",\"event\":\"broadcast\","
+            + "\"payload\":{\"type\":\"broadcast\",\"event\":\"vehicles\",\"payload\":" + inner + "},\"ref\":null}";
+
+        PhoenixEnvelope envelope = reader.read(frame);
+
+        assertThat(envelope.isVehicleBroadcast()).isTrue();
+        assertThat(envelope.topic()).isEqualTo("realtime:ul/vehicles/bus");
+        assertThat(envelope.timestamp()).isEqualTo(1730000000000L);
+        assertThat(envelope.payload(frame)).isEqualTo(inner);
+    }
+
+    @Test
+    void toleratesInnerEventAfterPayload() throws Exception {
+        String frame = "{\"payload\":{\"payload\":{\"vehicles\":[]},\"event\":\"vehicles\"},"
+            + "\"event\":\"broadcast\",\"topic\":\"realtime:sl/vehicles/train\"}";
+
+        PhoenixEnvelope envelope = reader.read(frame);
+
+        assertThat(envelope.isVehicleBroadcast()).isTrue();
+        assertThat(envelope.payload(frame)).isEqualTo("{\"vehicles\":[]}");
+    }
+
+    @Test
+    void heartbeatRepliesAreNotVehicleBroadcasts() throws Exception {
+        String frame = "{\"topic\":\"phoenix\",\"event\":\"phx_reply\",\"payload\":{\"status\":\"ok\",\"response\":{}},\"ref\":\"3\"}";
+
+        PhoenixEnvelope envelope = reader.read(frame);
+
+        assertThat(envelope.isVehicleBroadcast()).isFalse();
+        assertThat(envelope.event()).isEqualTo("phx_reply");
+        assertThat(envelope.status()).isEqualTo("ok");
+    }
+
+    @Test
+    void stopsReadingAfterNonBroadcastEvent() throws Exception {
+        // Trailing garbage would fail the parse if the reader kept going
+        String frame = "{\"topic\":\"phoenix\",\"event\":\"heartbeat\",\"payload\":{not json";
+
+        PhoenixEnvelope envelope = reader.read(frame);
+
+        assertThat(envelope.event()).isEqualTo("heartbeat");
+        assertThat(envelope.isVehicleBroadcast()).isFalse();
+    }
+
+    @Test
+    void bindsVehiclePayloadForAcceptedTopics() throws Exception {
+        String inner = "{\"vehicles\":[{\"vehicle_id\":\"A\"}],\"removed_vehicle_ids\":[\"B\"],\"timestamp\":42}";
+        String frame = "{\"topic\":\"realtime:ul/vehicles/bus\",\"event\":\"broadcast\","
+            + "\"payload\":{\"event\":\"vehicles\",\"payload\":" + inner + "}}";
+
+        PhoenixEnvelope envelope = reader.read(frame, topic -> topic.endsWith("/bus"));
+
+        assertThat(envelope.vehiclePayload()).isNotNull();
+        assertThat(envelope.vehiclePayload().getVehicles()).hasSize(1);
+        assertThat(envelope.vehiclePayload().getRemovedVehicleIds()).containsExactly("B");
+        assertThat(envelope.timestamp()).isEqualTo(42L);
+        assertThat(envelope.payload(frame)).isEqualTo(inner);
+    }
+}
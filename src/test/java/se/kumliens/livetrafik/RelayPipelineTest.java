@@ -0,0 +1,96 @@
+package se.kumliens.livetrafik;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class RelayPipelineTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private RelayPipeline<Integer, String> pipeline;
+
+    @AfterEach
+    void stop() {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    void messagesPassEveryStageInOrder() throws Exception {
+        List<String> merged = new CopyOnWriteArrayList<>();
+        List<String> dispatched = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(500);
+        pipeline = new RelayPipeline<>("0", 8, RelayPipeline.Overflow.BLOCK,
+            message -> message.startsWith("skip") ? null : Integer.parseInt(message),
+            parsed -> {
+                merged.add("m" + parsed);
+                return "d" + parsed;
+            },
+            outbound -> {
+                // Everything dispatched has been merged first
+                assertThat(merged).contains("m" + outbound.substring(1));
+                dispatched.add(outbound);
+                done.countDown();
+            },
+            meterRegistry);
+
+        for (int i = 0; i < 500; i++) {
+            assertThat(pipeline.submit(Integer.toString(i))).isTrue();
+            if (i % 100 == 0) {
+                pipeline.submit("skip");
+            }
+        }
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(dispatched).containsExactlyElementsOf(IntStream.range(0, 500).mapToObj(i -> "d" + i).toList());
+        assertThat(meterRegistry.get("trafik.relay.stage.depth").tag("stage", "merge").gauge().value()).isZero();
+    }
+
+    @Test
+    void dropPolicyShedsIngestWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        pipeline = new RelayPipeline<>("0", 2, RelayPipeline.Overflow.DROP,
+            message -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            },
+            parsed -> null, outbound -> { }, meterRegistry);
+
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            accepted += pipeline.submit("m" + i) ? 1 : 0;
+        }
+        release.countDown();
+
+        // One message held by the parse stage plus a full buffer of two
+        assertThat(accepted).isBetween(2, 3);
+        assertThat(meterRegistry.get("trafik.relay.pipeline.dropped").counter().count()).isEqualTo(10 - accepted);
+    }
+
+    @Test
+    void ringBufferRoundsCapacityAndReportsFull() {
+        SpscRingBuffer<String> buffer = new SpscRingBuffer<>(3);
+        assertThat(buffer.capacity()).isEqualTo(4);
+        for (int i = 0; i < 4; i++) {
+            assertThat(buffer.offer("e" + i)).isTrue();
+        }
+        assertThat(buffer.offer("e4")).isFalse();
+        assertThat(buffer.poll()).isEqualTo("e0");
+        assertThat(buffer.offer("e4")).isTrue();
+        assertThat(buffer.size()).isEqualTo(4);
+    }
+}
@@ -1,22 +1,35 @@
 package se.kumliens.livetrafik;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import se.kumliens.livetrafik.VehicleCacheService.CacheMetrics;
+import se.kumliens.livetrafik.model.LiveVehicle;
 import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
 
 class VehicleCacheServiceTest {
@@ -38,7 +51,7 @@ class VehicleCacheServiceTest {
 
         cache.applyDelta(payload("ul", "bus", List.of(), List.of("A"), 2L));
 
-        ArrayNode vehicles = vehiclesForRegion("ul");
+        List<LiveVehicle> vehicles = vehiclesForRegion("ul");
         assertEquals(0, vehicles.size());
     }
 
@@ -56,9 +69,9 @@ class VehicleCacheServiceTest {
 
         cache.applyDelta(delta);
 
-        ArrayNode vehicles = vehiclesForRegion("ul");
+        List<LiveVehicle> vehicles = vehiclesForRegion("ul");
         assertEquals(1, vehicles.size());
-        assertEquals(2.0, vehicles.get(0).path("latitude").asDouble());
+        assertEquals(2.0, vehicles.get(0).getLatitude());
     }
 
     @Test
@@ -72,12 +85,12 @@ class VehicleCacheServiceTest {
             vehicle("A", 5.0, ts())
         ), List.of(), 2L));
 
-        ArrayNode vehicles = vehiclesForRegion("ul");
+        List<LiveVehicle> vehicles = vehiclesForRegion("ul");
         assertEquals(2, vehicles.size());
 
         Map<String, Double> latitudes = Map.of(
-            vehicles.get(0).path("vehicle_id").asText(), vehicles.get(0).path("latitude").asDouble(),
-            vehicles.get(1).path("vehicle_id").asText(), vehicles.get(1).path("latitude").asDouble()
+            vehicles.get(0).getVehicleId(), vehicles.get(0).getLatitude(),
+            vehicles.get(1).getVehicleId(), vehicles.get(1).getLatitude()
         );
 
         assertEquals(5.0, latitudes.get("A"));
@@ -104,18 +117,275 @@ class VehicleCacheServiceTest {
 
         shortTtlCache.applyDelta(payload("ul", "bus", List.of(), List.of("A"), 2L));
 
-        ArrayNode vehicles = assertInstanceOf(ArrayNode.class, shortTtlCache.getLatestVehicles("ul").get("vehicles"));
+        List<LiveVehicle> vehicles = shortTtlCache.getLatestVehicles("ul").vehicles();
         assertEquals(0, vehicles.size());
     }
 
-    private ArrayNode vehiclesForRegion(String region) {
-        Map<String, Object> latest = cache.getLatestVehicles(region);
-        Object vehicles = latest.get("vehicles");
-        assertTrue(vehicles instanceof ArrayNode, "vehicles payload should be an ArrayNode");
-        return (ArrayNode) vehicles;
+    @Test
+    void snapshotIsReusedUntilNextDelta() throws Exception {
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("A", 1.0, ts())), List.of(), 1L));
+        cache.applyDelta(payload("ul", "train", List.of(vehicle("T", 3.0, ts())), List.of(), 1L));
+
+        RegionSnapshot first = cache.getLatestVehicles("ul");
+        assertSame(first, cache.getLatestVehicles("ul"));
+
+        JsonNode body = mapper.readTree(first.json());
+        assertEquals(2, body.path("vehicles").size());
+        assertEquals("ul", body.path("region").asText());
+        assertEquals(first.timestamp(), body.path("timestamp").asLong());
+
+        cache.applyDelta(payload("ul", "bus", List.of(), List.of("A"), 2L));
+
+        RegionSnapshot second = cache.getLatestVehicles("ul");
+        assertNotEquals(first.version(), second.version());
+        assertEquals(1, mapper.readTree(second.json()).path("vehicles").size());
+        assertEquals(2, first.vehicles().size(), "published snapshots must not change after the fact");
+    }
+
+    @Test
+    void gzipBodyIsBuiltOncePerVersion() throws Exception {
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("A", 1.0, ts())), List.of(), 1L));
+
+        RegionSnapshot snapshot = cache.getLatestVehicles("ul");
+        byte[] compressed = snapshot.gzipJson();
+
+        assertSame(compressed, cache.getLatestVehicles("ul").gzipJson());
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            assertArrayEquals(snapshot.json(), in.readAllBytes());
+        }
+    }
+
+    @Test
+    void changesSinceFoldsJournalWithRemoveFirstSemantics() {
+        CacheMetrics base = cache.applyDelta(payload("ul", "bus", List.of(
+            vehicle("A", 1.0, ts()),
+            vehicle("B", 2.0, ts())
+        ), List.of(), 1L));
+
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("A", 3.0, ts())), List.of("B"), 2L));
+        cache.applyDelta(payload("ul", "train", List.of(vehicle("T", 4.0, ts())), List.of(), 3L));
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("B", 5.0, ts())), List.of("A"), 4L));
+
+        RegionDelta delta = cache.getChangesSince("ul", base.version());
+
+        assertFalse(delta.full());
+        assertEquals(cache.getLatestVehicles("ul").version(), delta.version());
+        assertEquals(List.of("A"), delta.removedVehicleIds());
+        Map<String, Double> latitudes = delta.vehicles().stream()
+            .collect(Collectors.toMap(LiveVehicle::getVehicleId, LiveVehicle::getLatitude));
+        assertEquals(Map.of("B", 5.0, "T", 4.0), latitudes);
+
+        RegionDelta unchanged = cache.getChangesSince("ul", delta.version());
+        assertTrue(unchanged.vehicles().isEmpty());
+        assertTrue(unchanged.removedVehicleIds().isEmpty());
+    }
+
+    @Test
+    void versionsFromBeforeARestartNeverMatchAndForceAFullResponse() throws Exception {
+        VehicleCacheService beforeRestart = new VehicleCacheService(mapper, Duration.ofMinutes(5));
+        beforeRestart.applyDelta(payload("ul", "bus", List.of(vehicle("A", 1.0, ts())), List.of(), 1L));
+        beforeRestart.applyDelta(payload("ul", "bus", List.of(vehicle("B", 2.0, ts())), List.of(), 2L));
+        long savedVersion = beforeRestart.getLatestVehicles("ul").version();
+
+        Thread.sleep(2);
+        VehicleCacheService afterRestart = new VehicleCacheService(mapper, Duration.ofMinutes(5));
+        afterRestart.applyDelta(payload("ul", "bus", List.of(vehicle("C", 3.0, ts())), List.of(), 1L));
+        afterRestart.applyDelta(payload("ul", "bus", List.of(vehicle("D", 4.0, ts())), List.of(), 2L));
+
+        long version = afterRestart.getLatestVehicles("ul").version();
+        assertTrue(version > savedVersion);
+        RegionDelta delta = afterRestart.getChangesSince("ul", savedVersion);
+        assertTrue(delta.full());
+        assertEquals(List.of("C", "D"), delta.vehicles().stream().map(LiveVehicle::getVehicleId).sorted().toList());
+    }
+
+    @Test
+    void regionSnapshotNeverPairsFeedsFromDifferentVersions() throws Exception {
+        AtomicBoolean interleave = new AtomicBoolean();
+        List<Thread> writers = new ArrayList<>();
+        VehicleCacheService racy = new VehicleCacheService(mapper, Duration.ofMinutes(5)) {
+            @Override
+            public VehicleSnapshot snapshotFor(String region, String vehicleType) {
+                VehicleSnapshot snapshot = super.snapshotFor(region, vehicleType);
+                if ("bus".equals(vehicleType) && interleave.compareAndSet(true, false)) {
+                    // A bus and then a train commit land between the two feed reads, if nothing stops them
+                    Thread writer = new Thread(() -> {
+                        applyDelta(payload("ul", "bus", List.of(), List.of("A"), 2L));
+                        applyDelta(payload("ul", "train", List.of(vehicle("U", 4.0, ts())), List.of(), 2L));
+                    });
+                    writers.add(writer);
+                    writer.start();
+                    try {
+                        writer.join(200);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return snapshot;
+            }
+        };
+        racy.applyDelta(payload("ul", "bus", List.of(vehicle("A", 1.0, ts())), List.of(), 1L));
+        racy.applyDelta(payload("ul", "train", List.of(vehicle("T", 3.0, ts())), List.of(), 1L));
+
+        interleave.set(true);
+        RegionSnapshot during = racy.getLatestVehicles("ul");
+        writers.get(0).join();
+
+        assertEquals(List.of("A", "T"), during.vehicles().stream().map(LiveVehicle::getVehicleId).sorted().toList());
+        assertEquals(List.of("T", "U"), racy.getLatestVehicles("ul").vehicles().stream().map(LiveVehicle::getVehicleId).sorted().toList());
+        RegionDelta delta = racy.getChangesSince("ul", during.version());
+        assertFalse(delta.full());
+        assertEquals(List.of("A"), delta.removedVehicleIds());
+    }
+
+    @Test
+    void changesSinceFallsBackToFullSnapshotOnceJournalIsTruncated() {
+        VehicleCacheService smallJournal = new VehicleCacheService(mapper, Duration.ofMinutes(5), 1);
+        CacheMetrics first = smallJournal.applyDelta(payload("ul", "bus", List.of(vehicle("A", 1.0, ts())), List.of(), 1L));
+        smallJournal.applyDelta(payload("ul", "bus", List.of(vehicle("B", 2.0, ts())), List.of(), 2L));
+        smallJournal.applyDelta(payload("ul", "bus", List.of(vehicle("C", 3.0, ts())), List.of(), 3L));
+
+        RegionDelta delta = smallJournal.getChangesSince("ul", first.version());
+
+        assertTrue(delta.full());
+        assertEquals(3, delta.vehicles().size());
+    }
+
+    @Test
+    void sweeperExpiresQuietFeedsAndCountsEvictions() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        VehicleCacheService sweeping = new VehicleCacheService(mapper, registry, Duration.ofMillis(50), 16, Duration.ZERO);
+        sweeping.applyDelta(payload("ul", "bus", List.of(vehicle("A", 1.0, ts()), vehicle("B", 2.0, ts())), List.of(), 1L));
+        long versionBefore = sweeping.getLatestVehicles("ul").version();
+
+        Thread.sleep(100);
+        sweeping.sweepExpired();
+
+        assertEquals(0, sweeping.sizeForTesting("ul", "bus"));
+        assertTrue(sweeping.getLatestVehicles("ul").version() > versionBefore);
+        assertEquals(2.0, registry.get("trafik.cache.evictions").tag("region", "ul").tag("type", "bus").counter().count());
+        assertEquals(List.of("A", "B"), sweeping.getChangesSince("ul", versionBefore).removedVehicleIds().stream().sorted().toList());
+    }
+
+    @Test
+    void warmRestartRestoresUnexpiredVehiclesFromTheStore(@TempDir Path dir) {
+        Path file = dir.resolve("vehicles.bin");
+        VehicleCacheService before = storedCache(file, Duration.ofMinutes(5));
+        before.applyDelta(payload("ul", "bus", List.of(
+            onRoute(vehicle("A", 1.0, ts()), "11"),
+            vehicle("B", 2.0, ts()),
+            vehicle("C", 3.0, Instant.now().minusSeconds(120).toString())
+        ), List.of(), 1L));
+        before.applyDelta(payload("ul", "bus", List.of(vehicle("A", 1.5, ts())), List.of("B"), 2L));
+        before.applyDelta(payload("sl", "train", List.of(vehicle("T", 4.0, ts())), List.of(), 1L));
+        before.stop();
+
+        // A shorter TTL on restart drops C
+        VehicleCacheService after = storedCache(file, Duration.ofMinutes(1));
+
+        List<LiveVehicle> ulBus = after.snapshotForTesting("ul", "bus");
+        assertEquals(List.of("A"), ulBus.stream().map(LiveVehicle::getVehicleId).toList());
+        assertEquals(1.5, ulBus.get(0).getLatitude());
+        assertEquals(List.of("T"), after.snapshotForTesting("sl", "train").stream().map(LiveVehicle::getVehicleId).toList());
+        assertTrue(after.getLatestVehicles("ul").version() > 0L);
+    }
+
+    @Test
+    void latestTimestampFollowsUpsertsAndRemovalOfNewestVehicle() {
+        Instant base = Instant.parse("2024-10-27T10:00:00Z");
+        VehicleCacheService longTtl = new VehicleCacheService(mapper, Duration.ofDays(36500));
+        longTtl.applyDelta(payload("ul", "bus", List.of(
+            vehicle("A", 1.0, base.toString()),
+            vehicle("B", 2.0, base.plusSeconds(30).toString())
+        ), List.of(), 1L));
+
+        CacheMetrics afterUpsert = longTtl.applyDelta(payload("ul", "bus",
+            List.of(vehicle("C", 3.0, base.plusSeconds(10).toString())), List.of(), 2L));
+        assertEquals(base.plusSeconds(30).toEpochMilli(), afterUpsert.latestTimestamp());
+
+        CacheMetrics afterRemoval = longTtl.applyDelta(payload("ul", "bus", List.of(), List.of("B"), 3L));
+        assertEquals(base.plusSeconds(10).toEpochMilli(), afterRemoval.latestTimestamp());
+        assertEquals(afterRemoval.latestTimestamp(), longTtl.getLatestVehicles("ul").timestamp());
+    }
+
+    @Test
+    void routeLookupFollowsRouteChangesAndRemovals() {
+        cache.applyDelta(payload("ul", "bus", List.of(
+            onRoute(vehicle("A", 1.0, ts()), "11"),
+            onRoute(vehicle("B", 2.0, ts()), "11"),
+            onRoute(vehicle("C", 3.0, ts()), "8")
+        ), List.of(), 1L));
+        cache.applyDelta(payload("ul", "train", List.of(onRoute(vehicle("T", 4.0, ts()), "11")), List.of(), 1L));
+
+        RouteVehicles route11 = cache.getRouteVehicles("UL", "11");
+        assertEquals(List.of("A", "B", "T"), route11.vehicles().stream().map(LiveVehicle::getVehicleId).sorted().toList());
+        assertEquals(cache.getLatestVehicles("ul").version(), route11.version());
+
+        cache.applyDelta(payload("ul", "bus", List.of(onRoute(vehicle("A", 1.5, ts()), "8")), List.of("B"), 2L));
+
+        assertEquals(List.of("T"), cache.getRouteVehicles("ul", "11").vehicles().stream().map(LiveVehicle::getVehicleId).toList());
+        assertEquals(List.of("A", "C"), cache.getRouteVehicles("ul", "8").vehicles().stream().map(LiveVehicle::getVehicleId).sorted().toList());
+        assertTrue(cache.getRouteVehicles("ul", "99").vehicles().isEmpty());
+    }
+
+    @Test
+    void fieldDiffReportsOnlyChangedVehiclesAndRemovals() {
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("A", 1.0, ts()), vehicle("B", 2.0, ts())), List.of(), 1L));
+
+        List<LiveVehicle> changes = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        CacheMetrics metrics = cache.applyDelta(payload("ul", "bus",
+            List.of(vehicle("A", 1.5, ts()), vehicle("B", 2.0, ts()), vehicle("C", 3.0, ts())), List.of("X", "B"), 2L),
+            changes, removed);
+
+        assertEquals(3, metrics.updatedCount());
+        assertEquals(List.of("A", "B", "C"), changes.stream().map(LiveVehicle::getVehicleId).toList());
+        assertEquals(1.5, changes.get(0).getLatitude());
+        assertEquals(List.of("B"), removed);
+
+        changes.clear();
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("A", 1.5, ts())), List.of(), 3L), changes, removed);
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    void readersNeverSeeAHalfMergedDelta() throws Exception {
+        cache.applyDelta(payload("ul", "bus", List.of(vehicle("A", 1.0, ts()), vehicle("B", 2.0, ts())), List.of(), 1L));
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger torn = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                List<String> ids = cache.snapshotFor("ul", "bus").vehicles().stream().map(LiveVehicle::getVehicleId).toList();
+                if (!ids.contains("A") || ids.size() != 2) {
+                    torn.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+
+        // Remove-then-add of the same vehicle in one delta must be atomic for readers
+        for (int i = 0; i < 2_000; i++) {
+            cache.applyDelta(payload("ul", "bus", List.of(vehicle("A", 1.0 + i, ts())), List.of("A"), i + 2L));
+        }
+        done.set(true);
+        reader.join();
+
+        assertEquals(0, torn.get());
+    }
+
+    private List<LiveVehicle> vehiclesForRegion(String region) {
+        return cache.getLatestVehicles(region).vehicles();
+    }
+
+    private VehicleCacheService storedCache(Path file, Duration ttl) {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        VehicleCacheService stored = new VehicleCacheService(mapper, registry, ttl, 16, Duration.ZERO,
+            new MappedVehicleStore(file, 64, 512, registry));
+        stored.start();
+        return stored;
     }
 
-    private VehicleBroadcastPayload payload(String region, String type, List<ObjectNode> vehicles, List<String> removed, long timestamp) {
+    private VehicleBroadcastPayload payload(String region, String type, List<LiveVehicle> vehicles, List<String> removed, long timestamp) {
         VehicleBroadcastPayload payload = new VehicleBroadcastPayload();
         payload.setRegion(region);
         payload.setVehicleType(type);
@@ -125,12 +395,16 @@ class VehicleCacheServiceTest {
         return payload;
     }
 
-    private ObjectNode vehicle(String id, double lat, String updatedAt) {
+    private LiveVehicle vehicle(String id, double lat, String updatedAt) {
         ObjectNode node = mapper.createObjectNode();
         node.put("vehicle_id", id);
         node.put("latitude", lat);
         node.put("updated_at", updatedAt);
-        return node;
+        return mapper.convertValue(node, LiveVehicle.class);
+    }
+
+    private LiveVehicle onRoute(LiveVehicle vehicle, String route) {
+        return vehicle.toBuilder().route(route).build();
     }
 
     private String ts() {
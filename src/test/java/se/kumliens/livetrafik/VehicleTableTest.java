@@ -0,0 +1,73 @@
+package se.kumliens.livetrafik;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import se.kumliens.livetrafik.model.LiveVehicle;
+
+class VehicleTableTest {
+
+    @Test
+    void recyclesHandlesOfRemovedVehicles() {
+        VehicleTable table = new VehicleTable();
+        int a = table.intern("a");
+        table.set(a, vehicle("a"), 1L);
+        int b = table.intern("b");
+        table.set(b, vehicle("b"), 2L);
+
+        assertThat(table.intern("a")).isEqualTo(a);
+        table.remove(a);
+        assertThat(table.isLive(a)).isFalse();
+        assertThat(table.handleOf("a")).isEqualTo(VehicleTable.ABSENT);
+
+        int c = table.intern("c");
+        assertThat(c).isEqualTo(a);
+        assertThat(table.vehicle(c)).isNull();
+        assertThat(table.handleLimit()).isEqualTo(2);
+        assertThat(table.handleOf("b")).isEqualTo(b);
+        assertThat(table.lastUpdated(b)).isEqualTo(2L);
+    }
+
+    @Test
+    void agreesWithAHashMapUnderChurn() {
+        VehicleTable table = new VehicleTable(4);
+        Map<String, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int step = 0; step < 50_000; step++) {
+            String id = "v" + random.nextInt(2_000);
+            if (random.nextInt(3) == 0) {
+                int handle = table.handleOf(id);
+                assertThat(handle != VehicleTable.ABSENT).isEqualTo(expected.remove(id) != null);
+                if (handle != VehicleTable.ABSENT) {
+                    table.remove(handle);
+                }
+            } else {
+                table.set(table.intern(id), vehicle(id), step);
+                expected.put(id, (long) step);
+            }
+        }
+
+        assertThat(table.size()).isEqualTo(expected.size());
+        Set<String> live = new HashSet<>();
+        for (int handle = 0; handle < table.handleLimit(); handle++) {
+            if (table.isLive(handle)) {
+                live.add(table.id(handle));
+                assertThat(table.lastUpdated(handle)).isEqualTo(expected.get(table.id(handle)));
+                assertThat(table.vehicle(handle).getVehicleId()).isEqualTo(table.id(handle));
+            }
+        }
+        assertThat(live).isEqualTo(expected.keySet());
+        expected.keySet().forEach(id -> assertThat(table.handleOf(id)).isNotEqualTo(VehicleTable.ABSENT));
+    }
+
+    private static LiveVehicle vehicle(String id) {
+        return LiveVehicle.builder().vehicleId(id).build();
+    }
+}
@@ -0,0 +1,48 @@
+package se.kumliens.livetrafik.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+class PerMessageDeflateFilterTest {
+
+    private static final String OFFERS = "permessage-deflate; client_max_window_bits, x-custom";
+
+    @Test
+    void disabledEndpointDropsDeflateOffers() {
+        assertThat(new PerMessageDeflateFilter(false, true).rewrite(List.of(OFFERS))).containsExactly("x-custom");
+    }
+
+    @Test
+    void noContextTakeoverIsAddedToEachDeflateOffer() {
+        PerMessageDeflateFilter filter = new PerMessageDeflateFilter(true, false);
+
+        assertThat(filter.rewrite(List.of(OFFERS, "permessage-deflate; server_no_context_takeover")))
+            .containsExactly("permessage-deflate; client_max_window_bits; server_no_context_takeover", "x-custom",
+                "permessage-deflate; server_no_context_takeover");
+    }
+
+    @Test
+    void handshakeSeesRewrittenHeader() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/ws-native");
+        request.addHeader(HttpHeaders.UPGRADE, "websocket");
+        request.addHeader(WebSocketHttpHeaders.SEC_WEBSOCKET_EXTENSIONS, "permessage-deflate");
+        MockFilterChain chain = new MockFilterChain();
+
+        new PerMessageDeflateFilter(false, true).doFilter(request, new MockHttpServletResponse(), chain);
+
+        HttpServletRequest handshake = (HttpServletRequest) chain.getRequest();
+        assertThat(handshake.getHeader(WebSocketHttpHeaders.SEC_WEBSOCKET_EXTENSIONS)).isNull();
+        assertThat(Collections.list(handshake.getHeaderNames())).doesNotContain(WebSocketHttpHeaders.SEC_WEBSOCKET_EXTENSIONS);
+    }
+}
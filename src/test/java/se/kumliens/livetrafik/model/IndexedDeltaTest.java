@@ -0,0 +1,38 @@
+package se.kumliens.livetrafik.model;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class IndexedDeltaTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void keepsEveryVehicleWithoutAnIdAndLeavesOutMissingFields() throws Exception {
+        IndexedDelta first = delta("""
+            {"vehicles":[{"latitude":1},{"vehicle_id":"A","latitude":1}]}
+            """);
+        IndexedDelta second = delta("""
+            {"vehicles":[{"latitude":2},{"vehicle_id":"A","latitude":2}],"removed_vehicle_ids":[]}
+            """);
+
+        JsonNode merged = mapper.readTree(IndexedDelta.merge(mapper, List.of(first, second)));
+
+        assertThat(merged.get("vehicles").findValues("latitude")).extracting(JsonNode::asInt)
+            .containsExactly(1, 2, 2);
+        assertThat(merged.has("region")).isFalse();
+        assertThat(merged.has("vehicleType")).isFalse();
+        assertThat(merged.has("timestamp")).isFalse();
+    }
+
+    private IndexedDelta delta(String json) throws Exception {
+        return IndexedDelta.parse(mapper, json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,79 @@
+package se.kumliens.livetrafik.model;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class LiveVehicleTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void knownFieldsAreTypedAndInterned() throws Exception {
+        LiveVehicle vehicle = mapper.readValue("""
+            {"vehicle_id":"v1","route":"%s","trip_id":"t1","latitude":59.85,"longitude":17.64,
+             "bearing":90,"updated_at":"2024-10-27T10:00:00Z"}
+            """.formatted(new String("801".toCharArray())), LiveVehicle.class);
+
+        assertThat(vehicle.getVehicleId()).isEqualTo("v1");
+        assertThat(vehicle.getRoute()).isSameAs("801");
+        assertThat(vehicle.getLatitude()).isEqualTo(59.85);
+        assertThat(vehicle.getBearing()).isEqualTo(90.0);
+        assertThat(vehicle.getSpeed()).isNaN();
+        assertThat(vehicle.getUpdatedAtMillis()).isEqualTo(1730023200000L);
+        assertThat(vehicle.hasPosition()).isTrue();
+    }
+
+    @Test
+    void unknownAndMistypedFieldsRoundTripThroughExtras() throws Exception {
+        String json = """
+            {"vehicle_id":"v1","latitude":"59.85","delay":-30,"operator":"UL",
+             "occupancy":{"level":2},"label":null,"cancelled":false}
+            """;
+
+        LiveVehicle vehicle = mapper.readValue(json, LiveVehicle.class);
+        JsonNode written = mapper.readTree(mapper.writeValueAsString(vehicle));
+
+        assertThat(vehicle.getLatitude()).isNaN();
+        assertThat(vehicle.extra("delay")).isEqualTo(-30);
+        assertThat(written).isEqualTo(mapper.readTree(json));
+    }
+
+    @Test
+    void integerNumbersAreWrittenBackAsIntegers() throws Exception {
+        String json = """
+            {"vehicle_id":"v1","latitude":59.85,"longitude":17.64,"bearing":90,"speed":12.0,"delay":-30}
+            """;
+
+        LiveVehicle vehicle = mapper.readValue(json, LiveVehicle.class);
+        String written = mapper.writeValueAsString(vehicle);
+
+        assertThat(written).contains("\"bearing\":90,", "\"speed\":12.0");
+        assertThat(mapper.readTree(written)).isEqualTo(mapper.readTree(json));
+        assertThat(mapper.writeValueAsString(vehicle.toBuilder().latitude(59.86).build().changesSince(vehicle)))
+            .contains("\"latitude\":59.86")
+            .doesNotContain("bearing");
+    }
+
+    @Test
+    void changesSinceKeepsOnlyChangedAttributes() throws Exception {
+        LiveVehicle previous = mapper.readValue("""
+            {"vehicle_id":"v1","route":"801","latitude":59.85,"longitude":17.64,"bearing":90,
+             "delay":-30,"operator":"UL","updated_at":"2024-10-27T10:00:00Z"}
+            """, LiveVehicle.class);
+        LiveVehicle moved = mapper.readValue("""
+            {"vehicle_id":"v1","route":"801","latitude":59.86,"longitude":17.64,
+             "delay":15,"operator":"UL","updated_at":"2024-10-27T10:00:05Z"}
+            """, LiveVehicle.class);
+        LiveVehicle idle = previous.toBuilder().updatedAt("2024-10-27T10:00:10Z").build();
+
+        assertThat(mapper.readTree(mapper.writeValueAsString(moved.changesSince(previous)))).isEqualTo(mapper.readTree("""
+            {"vehicle_id":"v1","latitude":59.86,"updated_at":"2024-10-27T10:00:05Z","bearing":null,"delay":15}
+            """));
+        assertThat(idle.changesSince(previous)).isNull();
+        assertThat(moved.changesSince(null)).isSameAs(moved);
+    }
+}
@@ -0,0 +1,51 @@
+package se.kumliens.livetrafik.simulator;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import se.kumliens.livetrafik.HistoryJournal;
+
+/**
+ * Turns recorded production changes from a history journal into Realtime
+ * broadcast frames for {@link SimulatorScenario#getReplayFrames()}, so load
+ * tests can replay real traffic instead of a synthetic fleet.
+ */
+public final class JournalReplay {
+
+    private JournalReplay() {
+    }
+
+    public static List<String> frames(Path journalDirectory, long from, long to) {
+        ObjectMapper mapper = new ObjectMapper();
+        List<String> frames = new ArrayList<>();
+        HistoryJournal.replay(journalDirectory, from, to, timed -> {
+            HistoryJournal.Feed change = timed.change();
+            ObjectNode payload = mapper.createObjectNode();
+            payload.set("vehicles", mapper.valueToTree(change.upserted()));
+            payload.set("removed_vehicle_ids", mapper.valueToTree(change.removed()));
+            payload.put("region", change.region());
+            payload.put("vehicleType", change.vehicleType());
+            payload.put("timestamp", timed.time());
+
+            ObjectNode frame = mapper.createObjectNode();
+            frame.put("topic", "realtime:" + change.region() + "/vehicles/" + change.vehicleType());
+            frame.put("event", "broadcast");
+            ObjectNode envelope = frame.putObject("payload");
+            envelope.put("type", "broadcast");
+            envelope.put("event", "vehicles");
+            envelope.set("payload", payload);
+            frame.putNull("ref");
+            try {
+                frames.add(mapper.writeValueAsString(frame));
+            } catch (JsonProcessingException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        return frames;
+    }
+}
@@ -0,0 +1,298 @@
+package se.kumliens.livetrafik.simulator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Local stand-in for Supabase Realtime. Answers {@code phx_join} and
+ * heartbeats like Phoenix does and broadcasts vehicle deltas to every joined
+ * channel according to a {@link SimulatorScenario}, so end-to-end load tests
+ * can run offline and at rates production never sends.
+ * <p>
+ * Point the relay at it through {@code supabase.url}, e.g.
+ * {@code ws://localhost:4000/realtime/v1/websocket}; the path and query
+ * string are ignored.
+ */
+@Slf4j
+public class RealtimeSimulator extends WebSocketServer {
+
+    private static final String REALTIME_PREFIX = "realtime:";
+
+    private final SimulatorScenario scenario;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<WebSocket, Set<String>> joinedTopics = new ConcurrentHashMap<>();
+    private final Map<String, SyntheticFleet> fleets = new ConcurrentHashMap<>();
+    private final Map<String, List<ObjectNode>> replayByTopic;
+    private final Map<String, Integer> replayCursor = new ConcurrentHashMap<>();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final AtomicLong broadcastsSent = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private volatile boolean paused;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "realtime-simulator");
+        t.setDaemon(true);
+        return t;
+    });
+    private long startedAtMillis;
+    private long nextStormAtMillis;
+
+    public RealtimeSimulator(int port, SimulatorScenario scenario) {
+        super(new InetSocketAddress("localhost", port));
+        this.scenario = scenario;
+        this.replayByTopic = groupReplayFrames(scenario.getReplayFrames());
+        setReuseAddr(true);
+    }
+
+    /** Starts the server and the broadcast ticker, waiting until the port is bound. */
+    public RealtimeSimulator startAndAwait() throws InterruptedException {
+        start();
+        if (!started.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Realtime simulator did not start");
+        }
+        startedAtMillis = System.currentTimeMillis();
+        nextStormAtMillis = startedAtMillis + scenario.getRemovalStormEverySeconds() * 1000L;
+        long tickMillis = tickMillis();
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        log.info("Realtime simulator listening on {}", url());
+        return this;
+    }
+
+    /** Suspends broadcasts, e.g. while load-test clients are still connecting. Joins and heartbeats are still answered. */
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        paused = false;
+    }
+
+    public void shutdown() throws InterruptedException {
+        ticker.shutdownNow();
+        stop(1000);
+    }
+
+    /** Value for {@code supabase.url}. */
+    public String url() {
+        return "ws://localhost:" + getPort() + "/realtime/v1/websocket";
+    }
+
+    public long getBroadcastsSent() {
+        return broadcastsSent.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public int getJoinedChannels() {
+        return fleets.size();
+    }
+
+    @Override
+    public void onStart() {
+        setConnectionLostTimeout(0);
+        started.countDown();
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        joinedTopics.put(conn, ConcurrentHashMap.newKeySet());
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        joinedTopics.remove(conn);
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        log.warn("Realtime simulator connection error", ex);
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        try {
+            JsonNode frame = mapper.readTree(message);
+            String topic = frame.path("topic").asText();
+            String event = frame.path("event").asText();
+            JsonNode ref = frame.get("ref");
+            switch (event) {
+                case "phx_join" -> {
+                    joinedTopics.computeIfAbsent(conn, c -> ConcurrentHashMap.newKeySet()).add(topic);
+                    fleets.computeIfAbsent(topic, this::newFleet);
+                    conn.send(reply(topic, ref));
+                }
+                case "phx_leave" -> {
+                    joinedTopics.getOrDefault(conn, Set.of()).remove(topic);
+                    conn.send(reply(topic, ref));
+                }
+                case "heartbeat" -> conn.send(reply("phoenix", ref));
+                default -> log.debug("Realtime simulator ignoring {} on {}", event, topic);
+            }
+        } catch (IOException ex) {
+            log.warn("Realtime simulator received malformed frame: {}", message);
+        }
+    }
+
+    private void tick() {
+        if (paused) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            int deltas = deltasThisTick(now);
+            boolean storm = scenario.getRemovalStormEverySeconds() > 0 && now >= nextStormAtMillis;
+            if (storm) {
+                nextStormAtMillis = now + scenario.getRemovalStormEverySeconds() * 1000L;
+            }
+            for (String topic : fleets.keySet()) {
+                for (int n = 0; n < deltas; n++) {
+                    double removal = storm && n == 0 ? scenario.getRemovalStormFraction() : 0.0;
+                    broadcast(topic, nextPayload(topic, removal));
+                }
+            }
+        } catch (Exception ex) {
+            log.warn("Realtime simulator tick failed", ex);
+        }
+    }
+
+    private int deltasThisTick(long now) {
+        double perTick = scenario.getDeltasPerSecond() * tickMillis() / 1000.0;
+        int burstEvery = scenario.getBurstEverySeconds();
+        if (burstEvery > 0 && (now - startedAtMillis) % (burstEvery * 1000L) < scenario.getBurstDurationMillis()) {
+            perTick *= scenario.getBurstMultiplier();
+        }
+        return (int) Math.max(1, Math.round(perTick));
+    }
+
+    private long tickMillis() {
+        return Math.max(1L, Math.round(1000.0 / Math.max(scenario.getDeltasPerSecond(), 0.001)));
+    }
+
+    private ObjectNode nextPayload(String topic, double removalFraction) {
+        List<ObjectNode> replay = replayByTopic.get(topic);
+        if (replay != null && removalFraction == 0.0) {
+            // Only the ticker thread advances the cursor
+            int index = replayCursor.getOrDefault(topic, 0);
+            replayCursor.put(topic, (index + 1) % replay.size());
+            ObjectNode payload = replay.get(index).deepCopy();
+            payload.put("timestamp", System.currentTimeMillis());
+            return payload;
+        }
+        return fleets.get(topic).nextDelta(mapper, scenario.getVehiclesPerDelta(), removalFraction);
+    }
+
+    private void broadcast(String topic, ObjectNode payload) throws IOException {
+        ObjectNode frame = mapper.createObjectNode();
+        frame.put("topic", topic);
+        frame.put("event", "broadcast");
+        ObjectNode envelope = frame.putObject("payload");
+        envelope.put("type", "broadcast");
+        envelope.put("event", "vehicles");
+        envelope.set("payload", payload);
+        frame.putNull("ref");
+        String text = mapper.writeValueAsString(frame);
+
+        broadcastsSent.incrementAndGet();
+        joinedTopics.forEach((conn, topics) -> {
+            if (topics.contains(topic) && conn.isOpen()) {
+                conn.send(text);
+                framesSent.incrementAndGet();
+            }
+        });
+    }
+
+    private String reply(String topic, JsonNode ref) throws IOException {
+        ObjectNode frame = mapper.createObjectNode();
+        frame.put("topic", topic);
+        frame.put("event", "phx_reply");
+        ObjectNode payload = frame.putObject("payload");
+        payload.put("status", "ok");
+        payload.putObject("response");
+        frame.set("ref", ref);
+        return mapper.writeValueAsString(frame);
+    }
+
+    private SyntheticFleet newFleet(String topic) {
+        String channel = topic.startsWith(REALTIME_PREFIX) ? topic.substring(REALTIME_PREFIX.length()) : topic;
+        String[] parts = channel.split("/");
+        String region = parts.length > 0 ? parts[0] : "sl";
+        String type = parts.length > 2 ? parts[2] : "bus";
+        return new SyntheticFleet(region, type, scenario.getFleetSize(), scenario.getSeed());
+    }
+
+    private Map<String, List<ObjectNode>> groupReplayFrames(List<String> frames) {
+        Map<String, List<ObjectNode>> byTopic = new HashMap<>();
+        for (String frame : frames) {
+            try {
+                JsonNode node = mapper.readTree(frame);
+                JsonNode payload = node.path("payload").path("payload");
+                if (payload.isObject()) {
+                    byTopic.computeIfAbsent(node.path("topic").asText(), t -> new ArrayList<>())
+                        .add((ObjectNode) payload);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return byTopic;
+    }
+
+    /**
+     * Runs the simulator standalone, e.g. against a relay started with
+     * {@code SUPABASE_URL=ws://localhost:4000/realtime/v1/websocket}.
+     * Scenario overrides are read from {@code simulator.*} system properties;
+     * {@code simulator.replay} may point at a file with one recorded frame per line,
+     * or {@code simulator.replay-journal} at a history journal directory.
+     */
+    public static void main(String[] args) throws Exception {
+        SimulatorScenario scenario = SimulatorScenario.fromSystemProperties("simulator",
+            SimulatorScenario.builder().build());
+        String replay = System.getProperty("simulator.replay");
+        if (replay != null && !replay.isBlank()) {
+            scenario = scenario.toBuilder()
+                .replayFrames(Files.readAllLines(Path.of(replay)).stream().filter(l -> !l.isBlank()).toList())
+                .build();
+        }
+        String journal = System.getProperty("simulator.replay-journal");
+        if (journal != null && !journal.isBlank()) {
+            scenario = scenario.toBuilder()
+                .replayFrames(JournalReplay.frames(Path.of(journal), 0L, Long.MAX_VALUE))
+                .build();
+        }
+        RealtimeSimulator simulator = new RealtimeSimulator(Integer.getInteger("simulator.port", 4000), scenario)
+            .startAndAwait();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                simulator.shutdown();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,218 @@
+package se.kumliens.livetrafik.simulator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.ByteArrayMessageConverter;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import jakarta.websocket.ContainerProvider;
+import jakarta.websocket.WebSocketContainer;
+import lombok.extern.slf4j.Slf4j;
+import se.kumliens.livetrafik.LivetrafikWsServerApplication;
+import se.kumliens.livetrafik.VehicleCacheService;
+
+/**
+ * End-to-end run of the relay against {@link RealtimeSimulator}: N STOMP
+ * subscribers on {@code /ws-native} receive the simulated SL feeds while the
+ * cache is kept in sync. Defaults keep it short enough for every build; scale
+ * it up with e.g.
+ * {@code ./mvnw test -Dtest=RelayLoadTest -Dload.subscribers=500 -Dload.seconds=60 -Dload.deltas-per-second=20 -Dload.fleet-size=5000}.
+ * Scenario properties are listed on {@link SimulatorScenario#fromSystemProperties}.
+ */
+@Slf4j
+@SpringBootTest(classes = LivetrafikWsServerApplication.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class RelayLoadTest {
+
+    private static final List<String> TOPICS = List.of("/topic/sl/vehicles/bus", "/topic/sl/vehicles/train");
+
+    private static RealtimeSimulator simulator;
+    private static SimulatorScenario scenario;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private VehicleCacheService vehicleCacheService;
+
+    @DynamicPropertySource
+    static void supabaseProperties(DynamicPropertyRegistry registry) throws InterruptedException {
+        scenario = SimulatorScenario.fromSystemProperties("load", SimulatorScenario.builder()
+            .fleetSize(300)
+            .deltasPerSecond(10)
+            .vehiclesPerDelta(50)
+            .burstEverySeconds(2)
+            .burstDurationMillis(200)
+            .removalStormEverySeconds(1)
+            .removalStormFraction(0.3)
+            .build());
+        simulator = new RealtimeSimulator(0, scenario).startAndAwait();
+        // Held back until every subscriber is connected so ramp-up does not compete with the feed
+        simulator.pause();
+        registry.add("supabase.url", simulator::url);
+        registry.add("supabase.anon-key", () -> "simulator");
+        registry.add("supabase.regions", () -> "sl");
+        registry.add("supabase.vehicle-types", () -> "bus,train");
+        // One upstream connection per feed, as when sharding is enabled on the Pi
+        registry.add("supabase.connections", () -> "2");
+        registry.add("monitoring.heartbeat.url", () -> "http://localhost:9/proxy-heartbeat");
+    }
+
+    @AfterAll
+    static void stopSimulator() throws InterruptedException {
+        simulator.shutdown();
+    }
+
+    @Test
+    void subscribersReceiveSimulatedFeed() throws Exception {
+        int subscribers = Integer.getInteger("load.subscribers", 4);
+        int seconds = Integer.getInteger("load.seconds", 3);
+
+        // Tomcat's client buffer defaults to 8 KB; conflated deltas can carry the whole fleet
+        int maxMessageBytes = 64 * 1024 + scenario.getFleetSize() * 512;
+        WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+        container.setDefaultMaxTextMessageBufferSize(maxMessageBytes);
+        WebSocketStompClient client = new WebSocketStompClient(new StandardWebSocketClient(container));
+        client.setMessageConverter(new ByteArrayMessageConverter() {
+            @Override
+            protected boolean supportsMimeType(MessageHeaders headers) {
+                return true; // keep the relayed JSON as raw bytes
+            }
+        });
+        client.setInboundMessageSizeLimit(maxMessageBytes);
+
+        List<Subscriber> clients = new ArrayList<>(subscribers);
+        for (int i = 0; i < subscribers; i++) {
+            Subscriber subscriber = new Subscriber();
+            subscriber.session = client.connectAsync("ws://localhost:" + port + "/ws-native", subscriber)
+                .get(10, TimeUnit.SECONDS);
+            for (String topic : TOPICS) {
+                subscriber.session.subscribe(topic, subscriber);
+            }
+            clients.add(subscriber);
+        }
+
+        simulator.resume();
+        long broadcastsBefore = simulator.getBroadcastsSent();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long broadcasts = simulator.getBroadcastsSent() - broadcastsBefore;
+
+        List<Long> latencies = new ArrayList<>();
+        long messages = 0;
+        long bytes = 0;
+        int terminated = 0;
+        for (Subscriber subscriber : clients) {
+            if (subscriber.session.isConnected()) {
+                subscriber.session.disconnect();
+            } else {
+                // Closed by the server, typically a slow consumer exceeding its send buffer
+                terminated++;
+            }
+            messages += subscriber.messages.get();
+            bytes += subscriber.bytes.get();
+            synchronized (subscriber.latencies) {
+                latencies.addAll(subscriber.latencies);
+            }
+        }
+        client.stop();
+        latencies.sort(null);
+
+        log.info("Relay load: subscribers={} terminated={} upstreamBroadcasts/s={} stompMessages/s={} MB/s={} latencyMs p50={} p99={} max={}",
+            subscribers,
+            terminated,
+            String.format("%.1f", broadcasts / elapsed),
+            String.format("%.1f", messages / elapsed),
+            String.format("%.2f", bytes / elapsed / 1_000_000),
+            percentile(latencies, 0.50),
+            percentile(latencies, 0.99),
+            latencies.isEmpty() ? -1 : latencies.get(latencies.size() - 1));
+
+        assertThat(simulator.getJoinedChannels()).isEqualTo(TOPICS.size());
+        assertThat(clients).allSatisfy(subscriber -> assertThat(subscriber.messages.get()).isPositive());
+        assertThat(vehicleCacheService.getLatestVehicles("sl").vehicles()).isNotEmpty();
+    }
+
+    private static long percentile(List<Long> sorted, double quantile) {
+        if (sorted.isEmpty()) {
+            return -1;
+        }
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(quantile * sorted.size())));
+    }
+
+    /** Upstream {@code timestamp} is the last field the simulator writes, so a scan from the end is enough. */
+    private static long timestampOf(byte[] payload) {
+        String text = new String(payload, StandardCharsets.UTF_8);
+        int index = text.lastIndexOf("\"timestamp\":");
+        if (index < 0) {
+            return 0L;
+        }
+        int end = index + "\"timestamp\":".length();
+        int digits = end;
+        while (digits < text.length() && Character.isDigit(text.charAt(digits))) {
+            digits++;
+        }
+        return digits > end ? Long.parseLong(text, end, digits, 10) : 0L;
+    }
+
+    private static final class Subscriber extends StompSessionHandlerAdapter implements StompFrameHandler {
+        private final AtomicLong messages = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final List<Long> latencies = new ArrayList<>();
+        private StompSession session;
+
+        @Override
+        public void handleException(StompSession session, StompCommand command, StompHeaders headers, byte[] payload,
+                Throwable exception) {
+            log.error("STOMP subscriber failed to handle {}", command, exception);
+        }
+
+        @Override
+        public void handleTransportError(StompSession session, Throwable exception) {
+            log.error("STOMP subscriber transport error", exception);
+        }
+
+        @Override
+        public Type getPayloadType(StompHeaders headers) {
+            return byte[].class;
+        }
+
+        @Override
+        public void handleFrame(StompHeaders headers, Object payload) {
+            if (!(payload instanceof byte[] body)) {
+                // ERROR frames (e.g. "Session closed." on disconnect) reach the session handler without a body
+                log.debug("STOMP subscriber received {}", headers);
+                return;
+            }
+            long timestamp = timestampOf(body);
+            messages.incrementAndGet();
+            bytes.addAndGet(body.length);
+            if (timestamp > 0L) {
+                synchronized (latencies) {
+                    latencies.add(System.currentTimeMillis() - timestamp);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package se.kumliens.livetrafik.simulator;
+
+import java.util.List;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Load profile for {@link RealtimeSimulator}. Rates and sizes apply per joined
+ * channel; bursts and removal storms are disabled when their period is zero.
+ */
+@Getter
+@Builder(toBuilder = true)
+public final class SimulatorScenario {
+
+    /** Vehicles per channel in the synthetic fleet. */
+    @Builder.Default
+    private final int fleetSize = 500;
+    /** Broadcasts per second and channel outside bursts. */
+    @Builder.Default
+    private final double deltasPerSecond = 1.0;
+    /** Upserted vehicles per synthetic delta. */
+    @Builder.Default
+    private final int vehiclesPerDelta = 100;
+    @Builder.Default
+    private final int burstEverySeconds = 0;
+    @Builder.Default
+    private final int burstDurationMillis = 1000;
+    /** Rate multiplier while a burst is active. */
+    @Builder.Default
+    private final int burstMultiplier = 10;
+    @Builder.Default
+    private final int removalStormEverySeconds = 0;
+    /** Share of the active fleet removed in a single storm delta. */
+    @Builder.Default
+    private final double removalStormFraction = 0.5;
+    @Builder.Default
+    private final long seed = 42L;
+    /**
+     * Recorded Realtime broadcast frames to replay instead of synthetic deltas.
+     * Frames are matched to joined channels by topic and get a fresh
+     * {@code timestamp} when sent.
+     */
+    @Builder.Default
+    private final List<String> replayFrames = List.of();
+
+    /**
+     * Reads overrides from system properties named {@code <prefix>.fleet-size},
+     * {@code <prefix>.deltas-per-second}, {@code <prefix>.vehicles-per-delta},
+     * {@code <prefix>.burst-every-seconds}, {@code <prefix>.burst-multiplier},
+     * {@code <prefix>.removal-storm-every-seconds} and
+     * {@code <prefix>.removal-storm-fraction}.
+     */
+    public static SimulatorScenario fromSystemProperties(String prefix, SimulatorScenario defaults) {
+        return defaults.toBuilder()
+            .fleetSize(Integer.getInteger(prefix + ".fleet-size", defaults.fleetSize))
+            .deltasPerSecond(doubleProperty(prefix + ".deltas-per-second", defaults.deltasPerSecond))
+            .vehiclesPerDelta(Integer.getInteger(prefix + ".vehicles-per-delta", defaults.vehiclesPerDelta))
+            .burstEverySeconds(Integer.getInteger(prefix + ".burst-every-seconds", defaults.burstEverySeconds))
+            .burstMultiplier(Integer.getInteger(prefix + ".burst-multiplier", defaults.burstMultiplier))
+            .removalStormEverySeconds(Integer.getInteger(prefix + ".removal-storm-every-seconds",
+                defaults.removalStormEverySeconds))
+            .removalStormFraction(doubleProperty(prefix + ".removal-storm-fraction", defaults.removalStormFraction))
+            .build();
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null || value.isBlank() ? defaultValue : Double.parseDouble(value);
+    }
+}
@@ -0,0 +1,111 @@
+package se.kumliens.livetrafik.simulator;
+
+import java.time.Instant;
+import java.util.SplittableRandom;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Moving fleet for one region/type channel. Each delta advances the next
+ * {@code vehiclesPerDelta} vehicles round-robin; vehicles removed by a storm
+ * come back the next time the cursor reaches them.
+ */
+final class SyntheticFleet {
+
+    private static final String[] DESTINATIONS = {
+        "Centralstationen", "Gottsunda", "Årsta", "Flemingsberg", "Ropsten", "Skärholmen", "Arlanda"
+    };
+
+    private final String region;
+    private final String vehicleType;
+    private final SplittableRandom random;
+    private final double[] latitude;
+    private final double[] longitude;
+    private final double[] bearing;
+    private final boolean[] active;
+    private int cursor;
+
+    SyntheticFleet(String region, String vehicleType, int size, long seed) {
+        this.region = region;
+        this.vehicleType = vehicleType;
+        this.random = new SplittableRandom(seed ^ (region + vehicleType).hashCode());
+        this.latitude = new double[size];
+        this.longitude = new double[size];
+        this.bearing = new double[size];
+        this.active = new boolean[size];
+        double centreLat = "ul".equals(region) ? 59.8586 : 59.3293;
+        double centreLon = "ul".equals(region) ? 17.6389 : 18.0686;
+        for (int i = 0; i < size; i++) {
+            latitude[i] = centreLat + random.nextDouble(-0.15, 0.15);
+            longitude[i] = centreLon + random.nextDouble(-0.3, 0.3);
+            bearing[i] = random.nextInt(360);
+        }
+    }
+
+    int size() {
+        return active.length;
+    }
+
+    /** Builds the inner broadcast payload for the next delta. */
+    synchronized ObjectNode nextDelta(ObjectMapper mapper, int vehiclesPerDelta, double removalFraction) {
+        ObjectNode payload = mapper.createObjectNode();
+        ArrayNode vehicles = payload.putArray("vehicles");
+        ArrayNode removed = payload.putArray("removed_vehicle_ids");
+        String now = Instant.now().toString();
+
+        int count = Math.min(vehiclesPerDelta, active.length);
+        for (int n = 0; n < count; n++) {
+            int i = cursor;
+            cursor = (cursor + 1) % active.length;
+            move(i);
+            active[i] = true;
+            vehicles.add(vehicle(mapper, i, now));
+        }
+
+        int removals = (int) Math.round(active.length * removalFraction);
+        for (int n = 0, i = random.nextInt(active.length); n < removals; n++, i = (i + 1) % active.length) {
+            if (active[i]) {
+                active[i] = false;
+                removed.add(vehicleId(i));
+            }
+        }
+
+        payload.put("region", region);
+        payload.put("vehicleType", vehicleType);
+        payload.put("timestamp", System.currentTimeMillis());
+        return payload;
+    }
+
+    private void move(int i) {
+        bearing[i] = (bearing[i] + random.nextDouble(-20, 20) + 360) % 360;
+        double step = random.nextDouble(0.0, 0.0008);
+        latitude[i] += step * Math.cos(Math.toRadians(bearing[i]));
+        longitude[i] += step * Math.sin(Math.toRadians(bearing[i])) * 2;
+    }
+
+    private ObjectNode vehicle(ObjectMapper mapper, int i, String updatedAt) {
+        int line = 1 + (i % 120);
+        ObjectNode vehicle = mapper.createObjectNode();
+        vehicle.put("vehicle_id", vehicleId(i));
+        vehicle.put("trip_id", "1401" + String.format("%013d", i * 3L));
+        vehicle.put("route", String.valueOf(line));
+        vehicle.put("route_id", "901100300" + String.format("%04d", line) + "000");
+        vehicle.put("latitude", latitude[i]);
+        vehicle.put("longitude", longitude[i]);
+        vehicle.put("bearing", Math.rint(bearing[i]));
+        vehicle.put("speed", Math.rint(random.nextDouble(0, 20) * 10) / 10);
+        vehicle.put("line_number", String.valueOf(line));
+        vehicle.put("destination", DESTINATIONS[i % DESTINATIONS.length]);
+        vehicle.put("delay_seconds", random.nextInt(-60, 400));
+        vehicle.put("vehicle_type", vehicleType);
+        vehicle.put("region", region);
+        vehicle.put("updated_at", updatedAt);
+        return vehicle;
+    }
+
+    private String vehicleId(int i) {
+        return region + "-" + vehicleType + "-" + i;
+    }
+}
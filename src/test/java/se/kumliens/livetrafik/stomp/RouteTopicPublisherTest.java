@@ -0,0 +1,114 @@
+package se.kumliens.livetrafik.stomp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import se.kumliens.livetrafik.VehicleCacheService;
+import se.kumliens.livetrafik.model.LiveVehicle;
+import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
+
+class RouteTopicPublisherTest {
+
+    private static final String ROUTE_4 = "/topic/sl/vehicles/bus/route/4";
+    private static final String ROUTE_1 = "/topic/sl/vehicles/bus/route/1";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final VehicleCacheService cache = new VehicleCacheService(mapper, meterRegistry, 5, 256, 0);
+    private final ExecutorSubscribableChannel broker = new ExecutorSubscribableChannel();
+    private final List<Message<?>> published = new CopyOnWriteArrayList<>();
+    private final RouteTopicPublisher publisher =
+        new RouteTopicPublisher(cache, new SimpMessagingTemplate(broker), mapper, meterRegistry);
+
+    RouteTopicPublisherTest() {
+        broker.subscribe(published::add);
+    }
+
+    @Test
+    void recognisesRouteTopics() {
+        assertThat(RouteTopicPublisher.isRouteTopic(ROUTE_4)).isTrue();
+        assertThat(RouteTopicPublisher.isRouteTopic("/topic/sl/vehicles/bus")).isFalse();
+        assertThat(RouteTopicPublisher.isRouteTopic("/topic/sl/vehicles/bus/route/")).isFalse();
+        assertThat(RouteTopicPublisher.isRouteTopic("/topic/sl/vehicles/bus/line/4")).isFalse();
+    }
+
+    @Test
+    void splitsChangesPerSubscribedRoute() throws Exception {
+        subscribe("s1", "sub-0", ROUTE_4);
+        subscribe("s2", "sub-0", ROUTE_1);
+
+        cache.applyDelta(delta(List.of(vehicle("a", "4"), vehicle("b", "4"), vehicle("c", "1"), vehicle("d", "55")),
+            List.of()));
+
+        assertThat(published).extracting(m -> SimpMessageHeaderAccessor.getDestination(m.getHeaders()))
+            .containsExactly(ROUTE_4, ROUTE_1);
+        assertThat(body(0).path("vehicles").findValuesAsText("vehicle_id")).containsExactly("a", "b");
+        assertThat(body(1).path("vehicles").findValuesAsText("vehicle_id")).containsExactly("c");
+        published.clear();
+
+        // a switches from 4 to 1, b is removed, d stays on a route nobody follows
+        cache.applyDelta(delta(List.of(vehicle("a", "1"), vehicle("d", "55")), List.of("b")));
+
+        assertThat(published).hasSize(2);
+        JsonNode route1 = body(0);
+        JsonNode route4 = body(1);
+        assertThat(route1.path("vehicles").findValuesAsText("vehicle_id")).containsExactly("a");
+        assertThat(route1.path("removed_vehicle_ids")).isEmpty();
+        assertThat(route4.path("vehicles")).isEmpty();
+        assertThat(route4.path("removed_vehicle_ids")).extracting(JsonNode::asText).containsExactlyInAnyOrder("a", "b");
+        published.clear();
+
+        publisher.handleSessionDisconnect(new SessionDisconnectEvent(this, control(SimpMessageType.DISCONNECT, "s1",
+            null, null), "s1", CloseStatus.NORMAL));
+        cache.applyDelta(delta(List.of(vehicle("e", "4")), List.of()));
+        assertThat(published).isEmpty();
+    }
+
+    private void subscribe(String sessionId, String subscriptionId, String destination) {
+        publisher.handleSubscribe(new SessionSubscribeEvent(this,
+            control(SimpMessageType.SUBSCRIBE, sessionId, subscriptionId, destination)));
+    }
+
+    private JsonNode body(int index) throws Exception {
+        return mapper.readTree((byte[]) published.get(index).getPayload());
+    }
+
+    private static Message<byte[]> control(SimpMessageType type, String sessionId, String subscriptionId,
+            String destination) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(type);
+        accessor.setSessionId(sessionId);
+        accessor.setSubscriptionId(subscriptionId);
+        accessor.setDestination(destination);
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+
+    private static VehicleBroadcastPayload delta(List<LiveVehicle> vehicles, List<String> removed) {
+        VehicleBroadcastPayload payload = new VehicleBroadcastPayload();
+        payload.setRegion("sl");
+        payload.setVehicleType("bus");
+        payload.setVehicles(vehicles);
+        payload.setRemovedVehicleIds(removed);
+        return payload;
+    }
+
+    private static LiveVehicle vehicle(String id, String route) {
+        return LiveVehicle.builder().vehicleId(id).route(route).latitude(59.33).longitude(18.06).build();
+    }
+}
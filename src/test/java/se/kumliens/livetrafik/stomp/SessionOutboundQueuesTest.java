@@ -0,0 +1,137 @@
+package se.kumliens.livetrafik.stomp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import se.kumliens.livetrafik.stomp.SessionOutboundQueue.OutboundLimits;
+
+class SessionOutboundQueuesTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final BlockingQueue<Message<?>> delivered = new LinkedBlockingQueue<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final WebSocketSession session = mock(WebSocketSession.class);
+    private SessionOutboundQueues queues;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        queues.stop();
+    }
+
+    @Test
+    void conflatesDeltasQueuedBehindASlowWrite() throws Exception {
+        queues = newQueues(new OutboundLimits(64, 4_000_000, false, Duration.ofSeconds(10).toNanos()));
+
+        send("sub-0", """
+            {"vehicles":[{"vehicle_id":"v1","route":"1"},{"vehicle_id":"v2","route":"2"}],"removed_vehicle_ids":[],"region":"ul","vehicleType":"bus","timestamp":1}""");
+        Message<?> first = delivered.poll(5, TimeUnit.SECONDS);
+        assertThat(first).isNotNull();
+
+        // The first write is still blocked, so these share one slot
+        send("sub-0", """
+            {"vehicles":[{"vehicle_id":"v1","route":"1b","occupancy":{"level":2}}],"removed_vehicle_ids":["v2","v9"],"region":"ul","vehicleType":"bus","timestamp":2}""");
+        send("sub-0", """
+            {"vehicles":[{"vehicle_id":"v3","route":"3"},{"vehicle_id":"v9"}],"removed_vehicle_ids":[],"region":"ul","vehicleType":"bus","timestamp":3}""");
+        release.countDown();
+
+        Message<?> merged = delivered.poll(5, TimeUnit.SECONDS);
+        assertThat(merged).isNotNull();
+        assertThat(delivered.poll(200, TimeUnit.MILLISECONDS)).isNull();
+        assertThat(SimpMessageHeaderAccessor.getSubscriptionId(merged.getHeaders())).isEqualTo("sub-0");
+
+        JsonNode body = mapper.readTree((byte[]) merged.getPayload());
+        assertThat(body.path("vehicles").findValuesAsText("vehicle_id")).containsExactly("v1", "v3", "v9");
+        assertThat(body.path("vehicles").get(0).path("occupancy").path("level").asInt()).isEqualTo(2);
+        assertThat(body.path("removed_vehicle_ids")).extracting(JsonNode::asText).containsExactly("v2");
+        assertThat(body.path("timestamp").asLong()).isEqualTo(3L);
+        assertThat(meterRegistry.counter("trafik.stomp.outbound.conflated").count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void disconnectsSessionThatStaysAboveHighWaterMark() throws Exception {
+        queues = newQueues(new OutboundLimits(1, 4_000_000, false, 0L));
+
+        send("sub-0", "{\"vehicles\":[]}");
+        assertThat(delivered.poll(5, TimeUnit.SECONDS)).isNotNull();
+        send("sub-1", "{\"vehicles\":[]}");
+        send("sub-2", "{\"vehicles\":[]}");
+
+        verify(session, timeout(5000)).close(CloseStatus.SESSION_NOT_RELIABLE);
+        assertThat(meterRegistry.counter("trafik.stomp.outbound.slow.disconnects").count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void dropPolicyRefusesNewSlotsButKeepsConflating() throws Exception {
+        queues = newQueues(new OutboundLimits(1, 4_000_000, true, 0L));
+
+        send("sub-0", "{\"vehicles\":[]}");
+        assertThat(delivered.poll(5, TimeUnit.SECONDS)).isNotNull();
+        send("sub-1", "{\"vehicles\":[{\"vehicle_id\":\"a\"}]}");
+        send("sub-2", "{\"vehicles\":[{\"vehicle_id\":\"b\"}]}");
+        send("sub-3", "{\"vehicles\":[{\"vehicle_id\":\"c\"}]}");
+        send("sub-1", "{\"vehicles\":[{\"vehicle_id\":\"d\"}]}");
+        release.countDown();
+
+        List<String> subscriptions = List.of(
+            SimpMessageHeaderAccessor.getSubscriptionId(delivered.poll(5, TimeUnit.SECONDS).getHeaders()),
+            SimpMessageHeaderAccessor.getSubscriptionId(delivered.poll(5, TimeUnit.SECONDS).getHeaders()));
+        assertThat(subscriptions).containsExactly("sub-1", "sub-2");
+        assertThat(meterRegistry.counter("trafik.stomp.outbound.dropped").count()).isEqualTo(1.0);
+        assertThat(meterRegistry.counter("trafik.stomp.outbound.conflated").count()).isEqualTo(1.0);
+    }
+
+    private SessionOutboundQueues newQueues(OutboundLimits limits) throws Exception {
+        when(session.getId()).thenReturn("s1");
+        ClientSessionRegistry registry = new ClientSessionRegistry();
+        registry.decorate(mock(WebSocketHandler.class)).afterConnectionEstablished(session);
+
+        MessageHandler handler = message -> {
+            delivered.add(message);
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        return new SessionOutboundQueues(() -> handler, registry, mapper, meterRegistry, true, limits);
+    }
+
+    private void send(String subscriptionId, String json) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId("s1");
+        accessor.setSubscriptionId(subscriptionId);
+        accessor.setDestination("/topic/ul/vehicles/bus");
+        Message<byte[]> message = MessageBuilder.createMessage(json.getBytes(StandardCharsets.UTF_8),
+            accessor.getMessageHeaders());
+        assertThat(queues.preSend(message, mock(MessageChannel.class))).isNull();
+    }
+}
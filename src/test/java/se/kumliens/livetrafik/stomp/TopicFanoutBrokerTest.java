@@ -0,0 +1,226 @@
+package se.kumliens.livetrafik.stomp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompDecoder;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import se.kumliens.livetrafik.CborEncoder;
+import se.kumliens.livetrafik.VehicleCacheService;
+import se.kumliens.livetrafik.model.LiveVehicle;
+import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
+
+class TopicFanoutBrokerTest {
+
+    private static final String TOPIC = "/topic/sl/vehicles/bus";
+
+    private final ExecutorSubscribableChannel inbound = new ExecutorSubscribableChannel();
+    private final ExecutorSubscribableChannel outbound = new ExecutorSubscribableChannel();
+    private final ExecutorSubscribableChannel broker = new ExecutorSubscribableChannel();
+    private final List<Message<?>> sent = new CopyOnWriteArrayList<>();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final VehicleCacheService cache = new VehicleCacheService(mapper, meterRegistry, 5, 256, 0);
+    private final ClientSessionRegistry sessions = new ClientSessionRegistry();
+    private final TopicFanoutBroker fanout = newBroker(false);
+
+    TopicFanoutBrokerTest() {
+        outbound.subscribe(sent::add);
+        fanout.start();
+    }
+
+    @AfterEach
+    void stop() {
+        fanout.stop();
+    }
+
+    @Test
+    void encodesOnceAndPatchesSubscriptionPerSession() {
+        inbound.send(control(SimpMessageType.SUBSCRIBE, "s1", "sub-0", TOPIC));
+        inbound.send(control(SimpMessageType.SUBSCRIBE, "s2", "sub-0", TOPIC));
+        inbound.send(control(SimpMessageType.SUBSCRIBE, "s3", "a:b", TOPIC));
+        inbound.send(control(SimpMessageType.SUBSCRIBE, "s4", "sub-0", "/topic/ul/vehicles/bus"));
+
+        byte[] payload = "{\"vehicles\":[],\"removed_vehicle_ids\":[]}".getBytes(StandardCharsets.UTF_8);
+        broker.send(publish(TOPIC, payload));
+
+        assertThat(sent).hasSize(3);
+        assertThat(sent).extracting(m -> SimpMessageHeaderAccessor.getSessionId(m.getHeaders()))
+            .containsExactly("s1", "s2", "s3");
+        PreEncodedFrame frame = PreEncodedFrame.from(sent.get(0));
+        assertThat(frame).isNotNull().isSameAs(PreEncodedFrame.from(sent.get(2)));
+        assertThat(meterRegistry.counter("trafik.stomp.fanout.frames").count()).isEqualTo(1.0);
+
+        // Sessions sharing a subscription id share the very same WebSocket message
+        assertThat(frame.toWebSocketMessage("sub-0", true)).isSameAs(frame.toWebSocketMessage("sub-0", true));
+
+        StompHeaderAccessor decoded = decode(frame, "a:b");
+        assertThat(decoded.getSubscriptionId()).isEqualTo("a:b");
+        assertThat(decoded.getDestination()).isEqualTo(TOPIC);
+        assertThat(decoded.getContentType()).isEqualTo(MimeTypeUtils.APPLICATION_JSON);
+        assertThat(decoded.getMessageId()).isNotBlank();
+    }
+
+    @Test
+    void dropsSubscriptionsOnUnsubscribeAndDisconnect() {
+        inbound.send(control(SimpMessageType.SUBSCRIBE, "s1", "sub-0", TOPIC));
+        inbound.send(control(SimpMessageType.SUBSCRIBE, "s1", "sub-1", "/topic/sl/vehicles/train"));
+        inbound.send(control(SimpMessageType.SUBSCRIBE, "s2", "sub-0", TOPIC));
+
+        inbound.send(control(SimpMessageType.UNSUBSCRIBE, "s2", "sub-0", null));
+        assertThat(fanout.subscribers(TOPIC)).containsExactly(new TopicFanoutBroker.Subscriber("s1", "sub-0"));
+
+        inbound.send(control(SimpMessageType.DISCONNECT, "s1", null, null));
+        assertThat(fanout.subscribers(TOPIC)).isEmpty();
+        assertThat(fanout.subscribers("/topic/sl/vehicles/train")).isEmpty();
+
+        broker.send(publish(TOPIC, new byte[] {'{', '}'}));
+        assertThat(sent).isEmpty();
+    }
+
+    @Test
+    void bboxHeaderMakesAViewportSubscription() {
+        Message<byte[]> subscribe = control(SimpMessageType.SUBSCRIBE, "s1", "sub-0", TOPIC);
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(subscribe);
+        accessor.setNativeHeader(TopicFanoutBroker.BBOX_HEADER, "18.03,59.31,18.10,59.35");
+        inbound.send(MessageBuilder.createMessage(subscribe.getPayload(), accessor.getMessageHeaders()));
+
+        assertThat(fanout.subscribers(TOPIC)).isEmpty();
+        // The viewport's initial (empty) state
+        assertThat(sent).hasSize(1);
+
+        broker.send(publish(TOPIC, new byte[] {'{', '}'}));
+        assertThat(sent).hasSize(1);
+    }
+
+    @Test
+    void newSubscriberGetsCachedSnapshotBeforeDeltas() throws Exception {
+        fanout.stop();
+        TopicFanoutBroker snapshotting = newBroker(true);
+        snapshotting.start();
+        try {
+            cache.applyDelta(delta("a", "b"));
+            long version = cache.snapshotFor("sl", "bus").version();
+
+            inbound.send(control(SimpMessageType.SUBSCRIBE, "s1", "sub-0", TOPIC));
+            inbound.send(control(SimpMessageType.SUBSCRIBE, "s2", "sub-7", TOPIC));
+            broker.send(publish(TOPIC, "{\"vehicles\":[],\"removed_vehicle_ids\":[\"a\"]}".getBytes(StandardCharsets.UTF_8)));
+
+            assertThat(sent).hasSize(4);
+            Message<?> first = sent.get(0);
+            assertThat(first.getHeaders().get(TopicFanoutBroker.SNAPSHOT_HEADER)).isEqualTo(version);
+            JsonNode body = mapper.readTree((byte[]) first.getPayload());
+            assertThat(body.path("vehicles").findValuesAsText("vehicle_id")).containsExactlyInAnyOrder("a", "b");
+            assertThat(body.path("version").asLong()).isEqualTo(version);
+            assertThat(body.path("snapshot").asBoolean()).isTrue();
+            // Encoded once for the version and shared by both subscribers
+            assertThat(PreEncodedFrame.from(first)).isNotNull().isSameAs(PreEncodedFrame.from(sent.get(1)));
+            assertThat(decode(PreEncodedFrame.from(sent.get(1)), "sub-7").getSubscriptionId()).isEqualTo("sub-7");
+            assertThat(sent.subList(2, 4)).allSatisfy(m ->
+                assertThat(m.getHeaders().containsKey(TopicFanoutBroker.SNAPSHOT_HEADER)).isFalse());
+
+            // Not for other destinations
+            inbound.send(control(SimpMessageType.SUBSCRIBE, "s1", "sub-1", "/topic/vehicles"));
+            assertThat(sent).hasSize(4);
+        } finally {
+            snapshotting.stop();
+        }
+    }
+
+    @Test
+    void cborSubscribersGetOneTranscodedBinaryFrame() throws Exception {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("s2");
+        sessions.decorate(mock(WebSocketHandler.class)).afterConnectionEstablished(session);
+
+        inbound.send(control(SimpMessageType.SUBSCRIBE, "s1", "sub-0", TOPIC));
+        inbound.send(withNativeHeader(control(SimpMessageType.SUBSCRIBE, "s2", "sub-0", TOPIC), "content-type", "application/cbor"));
+        // s3 has no binary-capable session and stays on JSON
+        inbound.send(withNativeHeader(control(SimpMessageType.SUBSCRIBE, "s3", "sub-0", TOPIC), "accept", "application/cbor"));
+
+        byte[] json = "{\"vehicles\":[{\"vehicle_id\":\"a\"}],\"removed_vehicle_ids\":[\"b\"]}".getBytes(StandardCharsets.UTF_8);
+        broker.send(publish(TOPIC, json));
+
+        assertThat(sent).hasSize(3);
+        assertThat(sent.get(0).getPayload()).isSameAs(json);
+        assertThat(sent.get(2).getPayload()).isSameAs(json);
+        Message<?> cbor = sent.get(1);
+        assertThat(cbor.getHeaders().get(MessageHeaders.CONTENT_TYPE)).isEqualTo(CborEncoder.CONTENT_TYPE);
+        assertThat(PreEncodedFrame.from(cbor).toWebSocketMessage("sub-0", true)).isInstanceOf(BinaryMessage.class);
+        JsonNode decoded = new CBORMapper().readTree((byte[]) cbor.getPayload());
+        assertThat(decoded).isEqualTo(mapper.readTree(json));
+        assertThat(meterRegistry.counter("trafik.stomp.fanout.cbor.frames").count()).isEqualTo(1.0);
+    }
+
+    private TopicFanoutBroker newBroker(boolean snapshotOnSubscribe) {
+        return new TopicFanoutBroker(inbound, outbound, broker, new ViewportRouter(cache, outbound, mapper, meterRegistry),
+            cache, mapper, new CborEncoder(false), sessions, meterRegistry, true, snapshotOnSubscribe);
+    }
+
+    private static Message<byte[]> withNativeHeader(Message<byte[]> message, String name, String value) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(message);
+        accessor.setNativeHeader(name, value);
+        return MessageBuilder.createMessage(message.getPayload(), accessor.getMessageHeaders());
+    }
+
+    private static VehicleBroadcastPayload delta(String... vehicleIds) {
+        VehicleBroadcastPayload payload = new VehicleBroadcastPayload();
+        payload.setRegion("sl");
+        payload.setVehicleType("bus");
+        payload.setVehicles(Arrays.stream(vehicleIds)
+            .map(id -> LiveVehicle.builder().vehicleId(id).build())
+            .toList());
+        payload.setRemovedVehicleIds(List.of());
+        return payload;
+    }
+
+    private static StompHeaderAccessor decode(PreEncodedFrame frame, String subscriptionId) {
+        TextMessage text = (TextMessage) frame.toWebSocketMessage(subscriptionId, true);
+        List<Message<byte[]>> messages = new StompDecoder().decode(ByteBuffer.wrap(text.asBytes()));
+        assertThat(messages).hasSize(1);
+        assertThat(new String(messages.get(0).getPayload(), StandardCharsets.UTF_8)).startsWith("{\"vehicles\"");
+        return StompHeaderAccessor.wrap(messages.get(0));
+    }
+
+    private static Message<byte[]> control(SimpMessageType type, String sessionId, String subscriptionId,
+            String destination) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(type);
+        accessor.setSessionId(sessionId);
+        accessor.setSubscriptionId(subscriptionId);
+        accessor.setDestination(destination);
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+
+    private static Message<byte[]> publish(String destination, byte[] payload) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setDestination(destination);
+        accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        return MessageBuilder.createMessage(payload, accessor.getMessageHeaders());
+    }
+}
@@ -0,0 +1,100 @@
+package se.kumliens.livetrafik.stomp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import se.kumliens.livetrafik.VehicleCacheService;
+import se.kumliens.livetrafik.model.BoundingBox;
+import se.kumliens.livetrafik.model.LiveVehicle;
+import se.kumliens.livetrafik.model.VehicleBroadcastPayload;
+
+class ViewportRouterTest {
+
+    private static final String TOPIC = "/topic/sl/vehicles/bus";
+    // Central Stockholm
+    private static final BoundingBox CITY = new BoundingBox(18.03, 59.31, 18.10, 59.35);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final VehicleCacheService cache = new VehicleCacheService(mapper, meterRegistry, 5, 256, 0);
+    private final ExecutorSubscribableChannel outbound = new ExecutorSubscribableChannel();
+    private final List<Message<?>> sent = new CopyOnWriteArrayList<>();
+    private final ViewportRouter router = new ViewportRouter(cache, outbound, mapper, meterRegistry);
+
+    ViewportRouterTest() {
+        outbound.subscribe(sent::add);
+    }
+
+    @Test
+    void newViewportGetsOnlyVehiclesInsideIt() throws Exception {
+        cache.applyDelta(delta(List.of(vehicle("in", 59.33, 18.06), vehicle("out", 59.60, 17.60)), List.of()));
+
+        router.viewport("s1", "sub-0", TOPIC, CITY);
+
+        assertThat(sent).hasSize(1);
+        assertThat(SimpMessageHeaderAccessor.getSubscriptionId(sent.get(0).getHeaders())).isEqualTo("sub-0");
+        JsonNode body = body(0);
+        assertThat(body.path("vehicles").findValuesAsText("vehicle_id")).containsExactly("in");
+        assertThat(body.path("removed_vehicle_ids")).isEmpty();
+        assertThat(body.path("region").asText()).isEqualTo("sl");
+    }
+
+    @Test
+    void sendsUpsertsInsideAndRemovalsForVehiclesThatLeaveOrVanish() throws Exception {
+        cache.applyDelta(delta(List.of(vehicle("a", 59.33, 18.06), vehicle("b", 59.34, 18.07)), List.of()));
+        router.viewport("s1", "sub-0", TOPIC, CITY);
+        sent.clear();
+
+        // a leaves the box, c enters it, far stays outside
+        cache.applyDelta(delta(List.of(vehicle("a", 59.50, 18.30), vehicle("c", 59.32, 18.05),
+            vehicle("far", 59.80, 17.00)), List.of()));
+        assertThat(sent).hasSize(1);
+        assertThat(body(0).path("vehicles").findValuesAsText("vehicle_id")).containsExactly("c");
+        assertThat(body(0).path("removed_vehicle_ids").get(0).asText()).isEqualTo("a");
+
+        // Vehicles outside the box never reach the viewport
+        cache.applyDelta(delta(List.of(vehicle("far", 59.81, 17.01)), List.of("a")));
+        assertThat(sent).hasSize(1);
+
+        cache.applyDelta(delta(List.of(), List.of("b")));
+        assertThat(sent).hasSize(2);
+        assertThat(body(1).path("removed_vehicle_ids").get(0).asText()).isEqualTo("b");
+
+        // Moving the viewport drops what is no longer in view and adds what now is
+        router.move("s1", "sub-0", new BoundingBox(18.20, 59.45, 18.40, 59.55));
+        assertThat(body(2).path("vehicles").findValuesAsText("vehicle_id")).isEmpty();
+        assertThat(body(2).path("removed_vehicle_ids").get(0).asText()).isEqualTo("c");
+
+        router.removeSession("s1");
+        cache.applyDelta(delta(List.of(vehicle("d", 59.50, 18.30)), List.of()));
+        assertThat(sent).hasSize(3);
+    }
+
+    private JsonNode body(int index) throws Exception {
+        return mapper.readTree((byte[]) sent.get(index).getPayload());
+    }
+
+    private static VehicleBroadcastPayload delta(List<LiveVehicle> vehicles, List<String> removed) {
+        VehicleBroadcastPayload payload = new VehicleBroadcastPayload();
+        payload.setRegion("sl");
+        payload.setVehicleType("bus");
+        payload.setVehicles(vehicles);
+        payload.setRemovedVehicleIds(removed);
+        return payload;
+    }
+
+    private static LiveVehicle vehicle(String id, double latitude, double longitude) {
+        return LiveVehicle.builder().vehicleId(id).latitude(latitude).longitude(longitude).build();
+    }
+}